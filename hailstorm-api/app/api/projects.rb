@@ -42,7 +42,9 @@ patch '/projects/:id' do |id|
     hailstorm_config = deep_decode(project_config.stringified_config)
     cmd_template = Hailstorm::Middleware::CommandExecutionTemplate.new(found_project, hailstorm_config)
     begin
-      process_action(cmd_template, data, found_project, project_config)
+      with_project_log_context(found_project.project_code) do
+        process_action(cmd_template, data, found_project, project_config)
+      end
     rescue Hailstorm::UnknownCommandException
       return 422
     end
@@ -8,6 +8,7 @@ require 'helpers/execution_cycles_helper'
 require 'hailstorm/model/amazon_cloud'
 require 'hailstorm/model/data_center'
 require 'hailstorm/model/load_agent'
+require 'initializer/redis_logger'
 
 # Helper for projects API
 module ProjectsHelper
@@ -53,6 +54,16 @@ module ProjectsHelper
     title.length < MAX_PROJECT_CODE_LEN ? title.to_s.downcase.gsub(/\s+/, '-') : Digest::SHA1.hexdigest(title)
   end
 
+  # Runs the block with the project code in the logger MDC, so the messages logged by the block, and by the threads it
+  # starts, are published for the project.
+  # @param [String] project_code
+  def with_project_log_context(project_code)
+    org.apache.log4j.MDC.put(RedisLogger::PROJECT_CODE_KEY, project_code)
+    yield
+  ensure
+    org.apache.log4j.MDC.remove(RedisLogger::PROJECT_CODE_KEY)
+  end
+
   def process_action(cmd_template, data, found_project, project_config)
     case data['action'].to_sym
     when :start
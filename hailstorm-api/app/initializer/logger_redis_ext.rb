@@ -2,7 +2,7 @@
 
 # Extension to Hailstorm logger. A future release could replace this with a log4j or logback appender.
 
-REDIS_LOGGER = RedisLogger.new
+REDIS_LOGGER = RedisLogger.new(stream: ENV['REDIS_LOG_STREAM'])
 
 # The standard Hailstorm logger extended to publish to Redis.
 class Hailstorm::Support::Log4jBackedLogger
@@ -19,6 +19,9 @@ class Hailstorm::Support::Log4jBackedLogger
 
     return if filters.include?(true)
 
-    REDIS_LOGGER.publish(priority: self.class.logger_levels.find_index(log_level), level: log_level, message: message)
+    REDIS_LOGGER.publish(priority: self.class.logger_levels.find_index(log_level),
+                         level: log_level,
+                         message: message,
+                         project_code: logger_mdc_impl.get(RedisLogger::PROJECT_CODE_KEY))
   end
 end
@@ -8,28 +8,44 @@ require 'json'
 # This acts as a simple circuit-breaker when it fails to send a message to Redis. The next set of messages
 # (a configurable number) are skipped, and the message after is tried again for publishing. The implicit
 # assumption is the message transmission can be lossy without affecting system availability.
+#
+# With a stream, each message is also added to a Redis Stream capped at about +stream_length+ messages, for
+# consumers that must not lose messages while they are down.
+#
+# Messages logged while a project command runs carry the +projectCode+ of the project, so they are routed to the
+# viewers of that project. Other messages go to all viewers.
 class RedisLogger
 
   BREAK_FOR = 10
 
   CHANNEL = 'hailstorm-logs'
 
+  STREAM_LENGTH = 10_000
+
+  # Key of the project code in the logger MDC
+  PROJECT_CODE_KEY = 'projectCode'
+
   # @return [Redis]
   attr_reader :redis
 
   # @param [Integer]
   attr_accessor :skip_message_count
 
-  def initialize(redis_client: nil, break_for: nil)
+  # @param [String] stream key of the stream to add messages to, none if nil
+  # @param [Integer] stream_length
+  def initialize(redis_client: nil, break_for: nil, stream: nil, stream_length: nil)
     @redis = redis_client || Redis.new
     @break_for = break_for || BREAK_FOR
+    @stream = stream
+    @stream_length = stream_length || STREAM_LENGTH
     self.skip_message_count = 0
   end
 
   # @param [Integer] priority
   # @param [Symbol] level
   # @param [String] message
-  def publish(priority:, level:, message:)
+  # @param [String] project_code project the message is about, none if nil
+  def publish(priority:, level:, message:, project_code: nil)
     log_event = {
       timestamp: Time.now.to_i,
       priority: priority,
@@ -37,9 +53,13 @@ class RedisLogger
       message: message
     }
 
+    log_event[:projectCode] = project_code if project_code
+
     begin
       if self.skip_message_count.zero?
-        self.redis.publish(CHANNEL, JSON.dump(log_event))
+        message_str = JSON.dump(log_event)
+        self.redis.publish(CHANNEL, message_str)
+        self.redis.xadd(@stream, { event: message_str }, maxlen: @stream_length, approximate: true) if @stream
       else
         self.skip_message_count -= 1
       end
@@ -128,6 +128,18 @@ describe 'api/projects' do
           @browser.patch("/projects/#{@project.id}", JSON.dump({ action: 'stop' }))
           expect(@browser.last_response).to be_successful
         end
+
+        it 'should log with the project code while the action runs' do
+          project_codes = []
+          allow_any_instance_of(Hailstorm::Model::Project).to receive(:stop) do
+            project_codes.push(org.apache.log4j.MDC.get(RedisLogger::PROJECT_CODE_KEY))
+          end
+
+          @browser.patch("/projects/#{@project.id}", JSON.dump({ action: 'stop' }))
+          expect(@browser.last_response).to be_successful
+          expect(project_codes).to eq(['acme_priming'])
+          expect(org.apache.log4j.MDC.get(RedisLogger::PROJECT_CODE_KEY)).to be_nil
+        end
       end
 
       context 'action=abort' do
@@ -11,4 +11,16 @@ describe Hailstorm::Support::Log4jBackedLogger do
     logger = Hailstorm::Support::Log4jBackedLogger.get_logger('logger_redis_ext_spec')
     logger.debug('Test Message')
   end
+
+  it 'should publish the project code in the MDC' do
+    expect_any_instance_of(RedisLogger).to receive(:publish).with(hash_including(project_code: 'acme_priming'))
+    require 'initializer/logger_redis_ext'
+    logger = Hailstorm::Support::Log4jBackedLogger.get_logger('logger_redis_ext_spec')
+    org.apache.log4j.MDC.put(RedisLogger::PROJECT_CODE_KEY, 'acme_priming')
+    begin
+      logger.info('Test Message')
+    ensure
+      org.apache.log4j.MDC.remove(RedisLogger::PROJECT_CODE_KEY)
+    end
+  end
 end
@@ -21,6 +21,36 @@ describe RedisLogger do
     @redis_logger.publish(log_params)
   end
 
+  it 'should publish the project code of a message' do
+    expect(@mock_redis).to receive(:publish) do |_channel, log_event_str|
+      expect(JSON.parse(log_event_str)['projectCode']).to eq('acme_priming')
+    end
+
+    @redis_logger.publish(priority: 1, level: :info, message: 'test message', project_code: 'acme_priming')
+  end
+
+  it 'should publish a message without a project code' do
+    expect(@mock_redis).to receive(:publish) do |_channel, log_event_str|
+      expect(JSON.parse(log_event_str)).to_not have_key('projectCode')
+    end
+
+    @redis_logger.publish(priority: 1, level: :info, message: 'test message')
+  end
+
+  context 'with a stream' do
+    it 'should add the message to the stream' do
+      redis_logger = RedisLogger.new(redis_client: @mock_redis, stream: 'hailstorm-logs', stream_length: 100)
+      expect(@mock_redis).to receive(:publish).with(RedisLogger::CHANNEL, anything)
+      expect(@mock_redis).to receive(:xadd) do |key, entry, opts|
+        expect(key).to eq('hailstorm-logs')
+        expect(JSON.parse(entry[:event])['message']).to eq('test message')
+        expect(opts).to eq(maxlen: 100, approximate: true)
+      end
+
+      redis_logger.publish(priority: 1, level: :info, message: 'test message')
+    end
+  end
+
   context 'when a message publish fails due to a redis error' do
     before(:each) do
       allow(@mock_redis).to receive(:publish) { raise(Redis::BaseError, 'mock redis client error') }
@@ -1,7 +1,5 @@
 package com.tpg.labs.hailstorm.clientexchange;
 
-import com.fasterxml.jackson.annotation.JsonIgnore;
-
 import java.time.Duration;
 
 public class LogEvent {
@@ -60,11 +58,4 @@ public class LogEvent {
     public void setId(long id) {
         this.id = id;
     }
-
-    @JsonIgnore
-    public static LogEvent build(LogEvent original) {
-        original.setId(original.getTimestamp() * new Double(Math.ceil(Math.random() * 10000)).longValue() +
-                original.message.hashCode());
-        return original;
-    }
 }
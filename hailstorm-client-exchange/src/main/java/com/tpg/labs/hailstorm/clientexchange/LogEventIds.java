@@ -0,0 +1,55 @@
+package com.tpg.labs.hailstorm.clientexchange;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Ids of log events, made of the millisecond they are received in, the instance, and a sequence within the
+ * millisecond, so the ids of an instance always increase and the ids of different instances never collide. Ids fit in
+ * 53 bits, so JavaScript clients read them as exact numbers.
+ *
+ * When more events arrive in a millisecond than the sequence holds, or the clock goes back, ids are taken from the
+ * following milliseconds, so they keep increasing.
+ */
+class LogEventIds {
+
+    /** 2020-01-01T00:00:00Z, with 41 bits of milliseconds lasting until 2089 */
+    static final long EPOCH = 1577836800000L;
+    static final int INSTANCE_BITS = 4;
+    static final int SEQUENCE_BITS = 8;
+    static final int MAX_INSTANCE_ID = (1 << INSTANCE_BITS) - 1;
+
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    private final long instanceBits;
+    private final LongSupplier clock;
+
+    /** millisecond and sequence of the last id */
+    private final AtomicLong last = new AtomicLong();
+
+    LogEventIds(int instanceId) {
+        this(instanceId, System::currentTimeMillis);
+    }
+
+    LogEventIds(int instanceId, LongSupplier clock) {
+        if (instanceId < 0 || instanceId > MAX_INSTANCE_ID) {
+            throw new IllegalArgumentException(String.format("Instance id %d is not in 0..%d",
+                    instanceId, MAX_INSTANCE_ID));
+        }
+
+        this.instanceBits = (long) instanceId << SEQUENCE_BITS;
+        this.clock = clock;
+    }
+
+    long next() {
+        final long earliest = (clock.getAsLong() - EPOCH) << SEQUENCE_BITS;
+        long previous;
+        long current;
+        do {
+            previous = last.get();
+            current = Math.max(earliest, previous + 1);
+        } while (!last.compareAndSet(previous, current));
+
+        return (current >>> SEQUENCE_BITS) << (INSTANCE_BITS + SEQUENCE_BITS) | instanceBits | (current & SEQUENCE_MASK);
+    }
+}
@@ -0,0 +1,85 @@
+package com.tpg.labs.hailstorm.clientexchange;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Selects the log events a subscriber receives. The priority floor is given as a <code>priority</code>, or as the
+ * name of the lowest <code>level</code>. A subscriber of a project can ask for the recent events of the project
+ * received after the event <code>afterId</code>, or with a timestamp from <code>since</code>, before the live events.
+ */
+public class LogFilter {
+
+    /**
+     * Levels in order of priority, as published by the Hailstorm logger.
+     */
+    static final List<String> LEVELS = Arrays.asList("debug", "info", "warn", "error", "fatal");
+
+    private String projectCode;
+    private Integer priority;
+    private String level;
+    private Long afterId;
+    private Long since;
+
+    public String getProjectCode() {
+        return projectCode;
+    }
+
+    public void setProjectCode(String projectCode) {
+        this.projectCode = projectCode;
+    }
+
+    public Integer getPriority() {
+        return priority;
+    }
+
+    public void setPriority(Integer priority) {
+        this.priority = priority;
+    }
+
+    public String getLevel() {
+        return level;
+    }
+
+    public void setLevel(String level) {
+        this.level = level;
+    }
+
+    public Long getAfterId() {
+        return afterId;
+    }
+
+    public void setAfterId(Long afterId) {
+        this.afterId = afterId;
+    }
+
+    public Long getSince() {
+        return since;
+    }
+
+    public void setSince(Long since) {
+        this.since = since;
+    }
+
+    /**
+     * @return lowest priority of the events to receive
+     * @throws IllegalArgumentException if the level is not known
+     */
+    public int minPriority() {
+        if (priority != null) {
+            return priority;
+        }
+
+        if (level == null) {
+            return 0;
+        }
+
+        int index = LEVELS.indexOf(level.toLowerCase(Locale.ROOT));
+        if (index < 0) {
+            throw new IllegalArgumentException(String.format("Unknown level %s", level));
+        }
+
+        return index;
+    }
+}
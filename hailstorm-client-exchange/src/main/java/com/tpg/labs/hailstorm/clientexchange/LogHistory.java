@@ -0,0 +1,180 @@
+package com.tpg.labs.hailstorm.clientexchange;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The last events of a project, up to a number of events and an age, in a ring of parallel arrays, so the history
+ * costs no object per event beyond its message. Events are rebuilt when they are replayed. The arrays start small and
+ * double as events are added, up to the capacity, so a project with few events holds little memory.
+ *
+ * Not thread safe: callers hold the lock of the project.
+ */
+class LogHistory {
+
+    static final int INITIAL_LENGTH = 16;
+
+    private final String projectCode;
+    private final int capacity;
+    private final long ttlMillis;
+    private long[] ids;
+    private long[] timestamps;
+    private long[] receivedAt;
+    private int[] priorities;
+    private String[] levels;
+    private String[] messages;
+    private int head;
+    private int size;
+
+    /**
+     * @param projectCode of the events, or null for events of no project
+     * @param capacity events kept
+     * @param ttlMillis events are dropped this long after they are received
+     */
+    LogHistory(String projectCode, int capacity, long ttlMillis) {
+        this.projectCode = projectCode;
+        this.capacity = capacity;
+        this.ttlMillis = ttlMillis;
+        allocate(Math.min(capacity, INITIAL_LENGTH));
+    }
+
+    void add(LogEvent logEvent, long now) {
+        if (capacity == 0) {
+            return;
+        }
+
+        if (size == ids.length && size < capacity) {
+            grow();
+        }
+
+        int length = ids.length;
+        int position = (head + size) % length;
+        if (size == length) {
+            head = (head + 1) % length;
+        } else {
+            size++;
+        }
+
+        ids[position] = logEvent.getId();
+        timestamps[position] = logEvent.getTimestamp();
+        receivedAt[position] = now;
+        priorities[position] = logEvent.getPriority();
+        levels[position] = logEvent.getLevel() == null ? null : logEvent.getLevel().intern();
+        messages[position] = logEvent.getMessage();
+    }
+
+    /**
+     * @return events with a greater id, found by bisection as ids increase
+     */
+    List<LogEvent> after(long eventId, long now) {
+        evictExpired(now);
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (ids[(head + middle) % ids.length] <= eventId) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return eventsFrom(low);
+    }
+
+    /**
+     * @return events with a timestamp at or after the given one
+     */
+    List<LogEvent> since(long timestamp, long now) {
+        evictExpired(now);
+        int first = 0;
+        while (first < size && timestamps[(head + first) % timestamps.length] < timestamp) {
+            first++;
+        }
+
+        return eventsFrom(first);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return true if all the events have expired
+     */
+    boolean isEmpty(long now) {
+        evictExpired(now);
+        return size == 0;
+    }
+
+    /**
+     * @return length of the arrays the events are kept in
+     */
+    int length() {
+        return ids.length;
+    }
+
+    private void evictExpired(long now) {
+        while (size > 0 && now - receivedAt[head] > ttlMillis) {
+            messages[head] = null;
+            levels[head] = null;
+            head = (head + 1) % ids.length;
+            size--;
+        }
+    }
+
+    private void allocate(int length) {
+        ids = new long[length];
+        timestamps = new long[length];
+        receivedAt = new long[length];
+        priorities = new int[length];
+        levels = new String[length];
+        messages = new String[length];
+    }
+
+    /**
+     * Doubles the arrays, up to the capacity, with the oldest event moved to the start.
+     */
+    private void grow() {
+        long[] oldIds = ids;
+        long[] oldTimestamps = timestamps;
+        long[] oldReceivedAt = receivedAt;
+        int[] oldPriorities = priorities;
+        String[] oldLevels = levels;
+        String[] oldMessages = messages;
+        allocate((int) Math.min(capacity, 2L * oldIds.length));
+        copyInOrder(oldIds, ids);
+        copyInOrder(oldTimestamps, timestamps);
+        copyInOrder(oldReceivedAt, receivedAt);
+        copyInOrder(oldPriorities, priorities);
+        copyInOrder(oldLevels, levels);
+        copyInOrder(oldMessages, messages);
+        head = 0;
+    }
+
+    /**
+     * Copies a full ring to the start of a longer array.
+     */
+    private void copyInOrder(Object ring, Object array) {
+        int tail = size - head;
+        System.arraycopy(ring, head, array, 0, tail);
+        System.arraycopy(ring, 0, array, tail, head);
+    }
+
+    private List<LogEvent> eventsFrom(int first) {
+        List<LogEvent> events = new ArrayList<>(size - first);
+        for (int i = first; i < size; i++) {
+            int position = (head + i) % ids.length;
+            LogEvent logEvent = new LogEvent();
+            logEvent.setProjectCode(projectCode);
+            logEvent.setId(ids[position]);
+            logEvent.setTimestamp(timestamps[position]);
+            logEvent.setPriority(priorities[position]);
+            logEvent.setLevel(levels[position]);
+            logEvent.setMessage(messages[position]);
+            events.add(logEvent);
+        }
+
+        return events;
+    }
+}
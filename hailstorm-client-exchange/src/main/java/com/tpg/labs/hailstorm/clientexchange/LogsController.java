@@ -4,6 +4,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.messaging.handler.annotation.MessageMapping;
+import org.springframework.messaging.handler.annotation.Payload;
 import org.springframework.stereotype.Controller;
 import reactor.core.publisher.Flux;
 
@@ -18,8 +19,12 @@ public class LogsController {
         this.logsService = logsService;
     }
 
+    /**
+     * Streams the log events of all projects, or of the project and priority floor in the optional filter, after the
+     * recent events of the project if the filter asks for them.
+     */
     @MessageMapping("logs")
-    public Flux<LogEvent> logs() {
-        return logsService.logStream();
+    public Flux<LogEvent> logs(@Payload(required = false) LogFilter filter) {
+        return logsService.logStream(filter == null ? new LogFilter() : filter);
     }
 }
@@ -4,5 +4,29 @@ import reactor.core.publisher.Flux;
 
 public interface LogsService {
 
-    Flux<LogEvent> logStream();
+    /**
+     * @return log events of all projects
+     */
+    default Flux<LogEvent> logStream() {
+        return logStream(new LogFilter());
+    }
+
+    /**
+     * @param projectCode events of this project only, or of all projects if null
+     * @param minPriority events of at least this priority
+     * @return log events
+     */
+    default Flux<LogEvent> logStream(String projectCode, int minPriority) {
+        LogFilter filter = new LogFilter();
+        filter.setProjectCode(projectCode);
+        filter.setPriority(minPriority);
+        return logStream(filter);
+    }
+
+    /**
+     * @param filter
+     * @return recent events of the project if asked for, followed by the live events
+     * @throws IllegalArgumentException if the filter has an unknown level
+     */
+    Flux<LogEvent> logStream(LogFilter filter);
 }
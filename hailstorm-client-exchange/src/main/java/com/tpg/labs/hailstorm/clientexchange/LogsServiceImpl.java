@@ -9,25 +9,68 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.BufferOverflowStrategy;
+import reactor.core.Disposable;
 import reactor.core.publisher.Flux;
-import reactor.core.publisher.Mono;
+import reactor.core.publisher.FluxSink;
 
-import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
+/**
+ * Decodes each message from Redis once, and multicasts the events to all subscribers. Every subscriber has a buffer
+ * of its own, so a slow viewer loses events by the overflow strategy instead of holding up the others.
+ *
+ * Subscribers of a single project are kept by project code, and each event is handed only to the subscribers of its
+ * project, so the cost of an event does not grow with the number of viewers of other projects. Events without a
+ * project code go to every subscriber.
+ *
+ * The last events of each project are kept in a {@link LogHistory} once the service is started, so a subscriber that
+ * connects late can replay them. Events without a project code are kept in a shared history, and replayed with those
+ * of the project. The history is read, and the subscriber added, under the locks that events are recorded and handed
+ * out under, the shared lock and then the lock of the project, so the replay is followed by the live events without
+ * gaps or duplicates.
+ *
+ * A project has a history only once an event of the project is received; a client subscribing to a project with no
+ * events adds no more than its subscription. Projects without subscribers are dropped once their events expire.
+ */
 @Service
 public class LogsServiceImpl implements LogsService, InitializingBean {
 
     private static final String DEFAULT_CHANNEL_PATTERN = "hailstorm-logs";
+    private static final int DEFAULT_BUFFER_SIZE = 256;
+    private static final int DEFAULT_HISTORY_SIZE = 1000;
+    private static final long DEFAULT_HISTORY_TTL = 600;
 
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
     private ObjectMapper objectMapper;
     private StatefulRedisPubSubConnection<String, String> connection;
     private String channelPattern = DEFAULT_CHANNEL_PATTERN;
-    private Flux<String> eventSource;
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private BufferOverflowStrategy overflowStrategy = BufferOverflowStrategy.DROP_OLDEST;
+    private Flux<LogEvent> sharedEvents;
+    private int historySize = DEFAULT_HISTORY_SIZE;
+    private long historyTtl = DEFAULT_HISTORY_TTL;
+    private final Map<String, ProjectChannel> projectChannels = new ConcurrentHashMap<>();
+    private final ProjectChannel sharedChannel = new ProjectChannel(null);
+    private final AtomicLong nextEviction = new AtomicLong();
+    private int projectSubscribers;
+    private volatile boolean recording;
+    private Disposable dispatcher;
+    private RedisStreamLogSource streamLogSource;
+    private LogEventIds eventIds = new LogEventIds(0);
 
     @Autowired
     public void setObjectMapper(ObjectMapper objectMapper) {
@@ -39,38 +82,319 @@ public class LogsServiceImpl implements LogsService, InitializingBean {
         this.connection = connection;
     }
 
+    /**
+     * @param streamLogSource reads the messages from a Redis Stream instead of the pub/sub channel
+     */
+    @Autowired(required = false)
+    public void setStreamLogSource(RedisStreamLogSource streamLogSource) {
+        this.streamLogSource = streamLogSource;
+    }
+
     public void setChannelPattern(String channelPattern) {
         this.channelPattern = channelPattern;
     }
 
+    /**
+     * @param bufferSize events buffered for each subscriber
+     */
+    @Value("${logBufferSize:256}")
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @param overflowStrategy what to do when a subscriber's buffer is full: <code>drop_oldest</code>,
+     *                         <code>drop_latest</code> or <code>error</code>
+     */
+    @Value("${logBufferOverflow:drop_oldest}")
+    public void setOverflowStrategy(String overflowStrategy) {
+        this.overflowStrategy = BufferOverflowStrategy.valueOf(overflowStrategy.toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * @param historySize events of each project kept for replay, 0 to keep none
+     */
+    @Value("${logHistorySize:1000}")
+    public void setHistorySize(int historySize) {
+        this.historySize = historySize;
+    }
+
+    /**
+     * @param historyTtl seconds events are kept for replay
+     */
+    @Value("${logHistoryTtl:600}")
+    public void setHistoryTtl(long historyTtl) {
+        this.historyTtl = historyTtl;
+    }
+
+    /**
+     * @param instanceId tells apart the event ids of exchanges reading the same stream, 0 to 15
+     */
+    @Value("${logInstanceId:0}")
+    public void setInstanceId(int instanceId) {
+        this.eventIds = new LogEventIds(instanceId);
+    }
+
+    /**
+     * Decodes the messages once for all subscribers, and gives each event an id as it is received, so the ids of a
+     * project increase. The source is subscribed to while there are subscribers.
+     *
+     * @param eventSource JSON log messages
+     */
     public void setEventSource(Flux<String> eventSource) {
-        this.eventSource = eventSource;
+        this.sharedEvents = eventSource
+                .<LogEvent>handle((message, sink) -> {
+                    try {
+                        LogEvent logEvent = objectMapper.readValue(message, LogEvent.class);
+                        logEvent.setId(eventIds.next());
+                        sink.next(logEvent);
+                    } catch (JsonProcessingException | RuntimeException e) {
+                        logger.warn(e.getMessage());
+                    }
+                })
+                .publish()
+                .refCount();
     }
 
     @Override
     public void afterPropertiesSet() throws Exception {
-        RedisPubSubReactiveCommands<String, String> reactiveCommands = connection.reactive();
-        reactiveCommands.subscribe(channelPattern).toFuture().get();
-        eventSource = reactiveCommands.observeChannels().map(ChannelMessage::getMessage);
+        if (streamLogSource != null) {
+            setEventSource(streamLogSource.messages());
+        } else {
+            RedisPubSubReactiveCommands<String, String> reactiveCommands = connection.reactive();
+            reactiveCommands.subscribe(channelPattern).toFuture().get();
+            setEventSource(reactiveCommands.observeChannels().map(ChannelMessage::getMessage));
+        }
+
+        if (historySize > 0) {
+            startRecording();
+        }
+
         logger.debug("Event source configured");
     }
 
+    /**
+     * Subscribes to the events for good, so the history of every project is kept while nobody is watching.
+     */
+    synchronized void startRecording() {
+        recording = true;
+        connectDispatcher();
+    }
+
+    boolean hasProjectChannel(String projectCode) {
+        return projectChannels.containsKey(projectCode);
+    }
+
     @Override
-    public Flux<LogEvent> logStream() {
-        logger.debug("logStream");
-        return eventSource
-                .map(message -> {
-                    LogEvent logEvent = null;
-                    try {
-                        logEvent = objectMapper.readValue(message, LogEvent.class);
-                    } catch (JsonProcessingException e) {
-                        throw new RuntimeException(e);
+    public Flux<LogEvent> logStream(LogFilter filter) {
+        logger.debug("logStream({})", filter.getProjectCode());
+        final int minPriority = filter.minPriority();
+        Flux<LogEvent> events = filter.getProjectCode() == null ? sharedEvents : projectEvents(filter);
+        if (minPriority > 0) {
+            events = events.filter(logEvent -> logEvent.getPriority() >= minPriority);
+        }
+
+        return events.onBackpressureBuffer(bufferSize,
+                logEvent -> logger.debug("Dropped log event {} for a slow subscriber", logEvent.getId()),
+                overflowStrategy);
+    }
+
+    private Flux<LogEvent> projectEvents(LogFilter filter) {
+        return Flux.create(sink -> {
+            ProjectChannel channel = addProjectSink(filter, sink);
+            addProjectSubscriber();
+            sink.onDispose(() -> removeProjectSink(channel, sink));
+        });
+    }
+
+    /**
+     * Replays the history of the project and the shared history, and adds the sink, under the locks events are
+     * handed out under. A channel dropped while its lock was awaited is replaced.
+     */
+    private ProjectChannel addProjectSink(LogFilter filter, FluxSink<LogEvent> sink) {
+        synchronized (sharedChannel) {
+            while (true) {
+                ProjectChannel channel = projectChannels.computeIfAbsent(filter.getProjectCode(), ProjectChannel::new);
+                synchronized (channel) {
+                    if (channel.removed) {
+                        continue;
                     }
 
-                    return LogEvent.build(logEvent);
-                })
-                .onErrorContinue((throwable, o) -> {
-                    logger.warn(throwable.getMessage());
-                });
+                    replay(channel, filter).forEach(sink::next);
+                    channel.sinks.add(sink);
+                    return channel;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return events of the project and events of no project, in the order they were received
+     */
+    private List<LogEvent> replay(ProjectChannel channel, LogFilter filter) {
+        if (filter.getAfterId() == null && filter.getSince() == null) {
+            return Collections.emptyList();
+        }
+
+        final long now = System.currentTimeMillis();
+        List<LogEvent> events = new ArrayList<>(replay(channel.history, filter, now));
+        events.addAll(replay(sharedChannel.history, filter, now));
+        events.sort(Comparator.comparingLong(LogEvent::getId));
+        return events;
+    }
+
+    private static List<LogEvent> replay(LogHistory history, LogFilter filter, long now) {
+        if (history == null) {
+            return Collections.emptyList();
+        }
+
+        return filter.getAfterId() != null
+                ? history.after(filter.getAfterId(), now)
+                : history.since(filter.getSince(), now);
+    }
+
+    /**
+     * Subscribes to the shared events with the first project subscriber.
+     */
+    private synchronized void addProjectSubscriber() {
+        projectSubscribers++;
+        connectDispatcher();
+    }
+
+    /**
+     * Cancels the subscription to the shared events with the last project subscriber, unless recording. The channel
+     * is dropped with its last subscriber if it has no events.
+     */
+    private void removeProjectSink(ProjectChannel channel, FluxSink<LogEvent> sink) {
+        if (!channel.sinks.remove(sink)) {
+            return;
+        }
+
+        synchronized (channel) {
+            removeIfIdle(channel, System.currentTimeMillis());
+        }
+
+        synchronized (this) {
+            if (--projectSubscribers == 0 && !recording && dispatcher != null) {
+                dispatcher.dispose();
+                dispatcher = null;
+            }
+        }
+    }
+
+    private synchronized void connectDispatcher() {
+        if (dispatcher != null) {
+            return;
+        }
+
+        Disposable subscription = sharedEvents.subscribe(this::dispatch,
+                throwable -> forEachProjectSink(projectSink -> projectSink.error(throwable)),
+                () -> forEachProjectSink(FluxSink::complete));
+
+        // a source that completes on subscribing leaves no subscribers
+        if (projectSubscribers > 0 || recording) {
+            dispatcher = subscription;
+        }
+    }
+
+    /**
+     * Records the event in the history of its project, and hands it to the subscribers of the project. While
+     * recording, a channel is created for every project code events are received with.
+     */
+    private void dispatch(LogEvent logEvent) {
+        final long now = System.currentTimeMillis();
+        if (logEvent.getProjectCode() == null) {
+            synchronized (sharedChannel) {
+                record(sharedChannel, logEvent, now);
+                forEachProjectSink(sink -> sink.next(logEvent));
+            }
+        } else {
+            dispatchToProject(logEvent, now);
+        }
+
+        evictIdleChannels(now);
+    }
+
+    private void dispatchToProject(LogEvent logEvent, long now) {
+        while (true) {
+            ProjectChannel channel = recording
+                    ? projectChannels.computeIfAbsent(logEvent.getProjectCode(), ProjectChannel::new)
+                    : projectChannels.get(logEvent.getProjectCode());
+
+            if (channel == null) {
+                return;
+            }
+
+            synchronized (channel) {
+                if (channel.removed) {
+                    continue;
+                }
+
+                record(channel, logEvent, now);
+                channel.sinks.forEach(sink -> sink.next(logEvent));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Creates the history of a channel with its first event.
+     */
+    private void record(ProjectChannel channel, LogEvent logEvent, long now) {
+        if (historySize == 0) {
+            return;
+        }
+
+        if (channel.history == null) {
+            channel.history = new LogHistory(channel.projectCode, historySize, historyTtl * 1000);
+        }
+
+        channel.history.add(logEvent, now);
+    }
+
+    /**
+     * Drops the channels without subscribers whose events have expired, at most once in the time to live of events.
+     */
+    private void evictIdleChannels(long now) {
+        final long evictAt = nextEviction.get();
+        if (now < evictAt || !nextEviction.compareAndSet(evictAt, now + historyTtl * 1000)) {
+            return;
+        }
+
+        projectChannels.values().forEach(channel -> {
+            synchronized (channel) {
+                removeIfIdle(channel, now);
+            }
+        });
+    }
+
+    /**
+     * Called with the lock of the channel held.
+     */
+    private void removeIfIdle(ProjectChannel channel, long now) {
+        if (!channel.removed && channel.sinks.isEmpty() && (channel.history == null || channel.history.isEmpty(now))) {
+            channel.removed = true;
+            projectChannels.remove(channel.projectCode, channel);
+        }
+    }
+
+    private void forEachProjectSink(Consumer<FluxSink<LogEvent>> action) {
+        projectChannels.values().forEach(channel -> {
+            synchronized (channel) {
+                channel.sinks.forEach(action);
+            }
+        });
+    }
+
+    private static class ProjectChannel {
+
+        private final String projectCode;
+        private final Set<FluxSink<LogEvent>> sinks = new CopyOnWriteArraySet<>();
+        private LogHistory history;
+        private boolean removed;
+
+        private ProjectChannel(String projectCode) {
+            this.projectCode = projectCode;
+        }
     }
 }
@@ -0,0 +1,272 @@
+package com.tpg.labs.hailstorm.clientexchange;
+
+import io.lettuce.core.Consumer;
+import io.lettuce.core.Limit;
+import io.lettuce.core.Range;
+import io.lettuce.core.RedisBusyException;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.StreamMessage;
+import io.lettuce.core.XClaimArgs;
+import io.lettuce.core.XGroupCreateArgs;
+import io.lettuce.core.XReadArgs;
+import io.lettuce.core.XReadArgs.StreamOffset;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.reactive.RedisReactiveCommands;
+import io.lettuce.core.models.stream.PendingMessage;
+import io.lettuce.core.models.stream.PendingParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reads log messages from a Redis Stream as a member of a consumer group, instead of the pub/sub channel. Replicas in
+ * the same group share the messages, and each message is acknowledged after its batch is handed on, so messages
+ * added while the exchange is down are read when it comes back.
+ *
+ * Messages this consumer read but did not acknowledge are read again first, so a restart with the same consumer name
+ * resumes from the last acknowledged message. A replica that does not come back under its name, such as a container
+ * named after its host, leaves its messages pending; those not delivered for {@code claimIdle} milliseconds are claimed
+ * by the next consumer of the group to start reading, and read with its own. Batches are read one at a time, on a
+ * connection of their own, as a blocking read holds the connection.
+ */
+@Component
+@ConditionalOnProperty(name = "logSource", havingValue = "stream")
+public class RedisStreamLogSource implements InitializingBean, DisposableBean {
+
+    static final String EVENT_FIELD = "event";
+
+    private static final String DEFAULT_STREAM_KEY = "hailstorm-logs";
+    private static final String DEFAULT_GROUP = "hailstorm-client-exchange";
+    private static final int DEFAULT_BATCH_SIZE = 100;
+    private static final long DEFAULT_BLOCK = 1000;
+    private static final long DEFAULT_CLAIM_IDLE = 60000;
+    private static final Duration FIRST_BACKOFF = Duration.ofSeconds(1);
+    private static final Duration MAX_BACKOFF = Duration.ofSeconds(30);
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private RedisClient redisClient;
+    private StatefulRedisConnection<String, String> connection;
+    private String streamKey = DEFAULT_STREAM_KEY;
+    private String group = DEFAULT_GROUP;
+    private String consumer;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private long block = DEFAULT_BLOCK;
+    private long claimIdle = DEFAULT_CLAIM_IDLE;
+
+    @Autowired
+    public void setRedisClient(RedisClient redisClient) {
+        this.redisClient = redisClient;
+    }
+
+    @Value("${logStream.key:hailstorm-logs}")
+    public void setStreamKey(String streamKey) {
+        this.streamKey = streamKey;
+    }
+
+    /**
+     * @param group replicas in the same group share the messages; a replica in a group of its own reads them all
+     */
+    @Value("${logStream.group:hailstorm-client-exchange}")
+    public void setGroup(String group) {
+        this.group = group;
+    }
+
+    /**
+     * @param consumer name of this replica in the group, stable across restarts to resume its unacknowledged messages;
+     *                 the host name if empty, which changes with every container, so the messages are left to
+     *                 {@link #setClaimIdle(long) claim}
+     */
+    @Value("${logStream.consumer:}")
+    public void setConsumer(String consumer) {
+        this.consumer = consumer;
+    }
+
+    /**
+     * @param batchSize messages read, and acknowledged, at a time
+     */
+    @Value("${logStream.batchSize:100}")
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param block milliseconds a read waits for new messages
+     */
+    @Value("${logStream.block:1000}")
+    public void setBlock(long block) {
+        this.block = block;
+    }
+
+    /**
+     * @param claimIdle milliseconds since the messages of another consumer were delivered, before they are claimed on
+     *                  start; longer than a batch takes to be handed on. Not claimed if not positive.
+     */
+    @Value("${logStream.claimIdle:60000}")
+    public void setClaimIdle(long claimIdle) {
+        this.claimIdle = claimIdle;
+    }
+
+    void setConnection(StatefulRedisConnection<String, String> connection) {
+        this.connection = connection;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (consumer == null || consumer.isEmpty()) {
+            consumer = defaultConsumer();
+        }
+
+        if (connection == null) {
+            connection = redisClient.connect();
+        }
+
+        logger.info("Reading logs from stream {} as {} in group {}", streamKey, consumer, group);
+    }
+
+    @Override
+    public void destroy() {
+        connection.close();
+    }
+
+    /**
+     * Messages of the stream, unacknowledged ones first, with those claimed from idle consumers. The group is created
+     * if it does not exist, and reading starts over after a failure, with a backoff.
+     *
+     * @return JSON log messages
+     */
+    public Flux<String> messages() {
+        return Flux.defer(() -> {
+                    AtomicBoolean pending = new AtomicBoolean(true);
+                    return createGroup().then(claimIdle()).thenMany(readBatch(pending).repeat());
+                })
+                .doOnError(throwable -> logger.warn("Failed to read stream {}: {}", streamKey, throwable.getMessage()))
+                .retryBackoff(Long.MAX_VALUE, FIRST_BACKOFF, MAX_BACKOFF);
+    }
+
+    /**
+     * Creates the group, and the stream, if they do not exist. A new group starts at the beginning of the stream.
+     */
+    private Mono<Void> createGroup() {
+        return connection.reactive()
+                .xgroupCreate(StreamOffset.from(streamKey, "0-0"), group, XGroupCreateArgs.Builder.mkstream())
+                .onErrorResume(RedisBusyException.class, e -> Mono.empty())
+                .then();
+    }
+
+    /**
+     * Claims the pending messages of other consumers that have not been delivered for {@code claimIdle}, a page of
+     * {@code batchSize} at a time. A message read again since it was listed is left to its consumer.
+     */
+    private Mono<Void> claimIdle() {
+        if (claimIdle <= 0) {
+            return Mono.empty();
+        }
+
+        return claimPage("-").expand(this::claimPage).then();
+    }
+
+    /**
+     * @return the id after the last pending message of a full page, to list the next page from
+     */
+    private Mono<String> claimPage(String start) {
+        final RedisReactiveCommands<String, String> commands = connection.reactive();
+        return commands
+                .xpending(streamKey, group, Range.create(start, "+"), Limit.from(batchSize))
+                .collectList()
+                .flatMap(page -> {
+                    List<PendingMessage> pendingMessages = PendingParser.parseRange(page);
+                    String[] ids = pendingMessages.stream()
+                            .filter(message -> !consumer.equals(message.getConsumer()))
+                            .filter(message -> message.getMsSinceLastDelivery() >= claimIdle)
+                            .map(PendingMessage::getId)
+                            .toArray(String[]::new);
+
+                    Mono<String> next = pendingMessages.size() < batchSize
+                            ? Mono.empty()
+                            : Mono.just(nextId(pendingMessages.get(pendingMessages.size() - 1).getId()));
+                    if (ids.length == 0) {
+                        return next;
+                    }
+
+                    return commands
+                            .xclaim(streamKey, Consumer.from(group, consumer), XClaimArgs.Builder.minIdleTime(claimIdle),
+                                    ids)
+                            .count()
+                            .doOnNext(count -> logger.info("Claimed {} idle messages of stream {}", count, streamKey))
+                            .then(next);
+                });
+    }
+
+    /**
+     * @return the smallest id after a message id, as ranges of ids are inclusive
+     */
+    private static String nextId(String id) {
+        final int separator = id.indexOf('-');
+        return id.substring(0, separator + 1) + (Long.parseLong(id.substring(separator + 1)) + 1);
+    }
+
+    /**
+     * Reads the unacknowledged messages of this consumer while there are any, then new messages. The batch is
+     * acknowledged once all of it is taken downstream.
+     */
+    private Flux<String> readBatch(AtomicBoolean pending) {
+        return Flux.defer(() -> {
+            final boolean readPending = pending.get();
+            final RedisReactiveCommands<String, String> commands = connection.reactive();
+            // a generic array can not be created, and holds only this offset
+            @SuppressWarnings("unchecked")
+            final StreamOffset<String>[] offsets = (StreamOffset<String>[]) new StreamOffset<?>[] {
+                    readPending ? StreamOffset.from(streamKey, "0") : StreamOffset.lastConsumed(streamKey)
+            };
+
+            return commands
+                    .xreadgroup(Consumer.from(group, consumer), XReadArgs.Builder.count(batchSize).block(block), offsets)
+                    .collectList()
+                    .flatMapMany(batch -> {
+                        if (batch.isEmpty()) {
+                            pending.set(false);
+                            return Flux.empty();
+                        }
+
+                        return Flux.fromIterable(batch)
+                                .<String>handle((message, sink) -> {
+                                    // a trimmed message is still pending, with no body
+                                    if (message.getBody() != null && message.getBody().get(EVENT_FIELD) != null) {
+                                        sink.next(message.getBody().get(EVENT_FIELD));
+                                    }
+                                })
+                                .concatWith(acknowledge(commands, batch));
+                    });
+        });
+    }
+
+    private Mono<String> acknowledge(RedisReactiveCommands<String, String> commands,
+                                     List<StreamMessage<String, String>> batch) {
+        return commands
+                .xack(streamKey, group, batch.stream().map(StreamMessage::getId).toArray(String[]::new))
+                .then(Mono.empty());
+    }
+
+    private static String defaultConsumer() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return UUID.randomUUID().toString();
+        }
+    }
+}
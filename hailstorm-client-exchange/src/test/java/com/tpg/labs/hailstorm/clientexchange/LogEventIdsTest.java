@@ -0,0 +1,52 @@
+package com.tpg.labs.hailstorm.clientexchange;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class LogEventIdsTest {
+
+    @Test
+    void ids_increase_within_millisecond() {
+        LogEventIds eventIds = new LogEventIds(0, () -> LogEventIds.EPOCH + 1000);
+
+        long previous = eventIds.next();
+        for (int i = 0; i < 1000; i++) {
+            long id = eventIds.next();
+            assertThat(id).isGreaterThan(previous);
+            previous = id;
+        }
+    }
+
+    @Test
+    void ids_increase_when_clock_goes_back() {
+        AtomicLong clock = new AtomicLong(LogEventIds.EPOCH + 1000);
+        LogEventIds eventIds = new LogEventIds(0, clock::get);
+
+        long first = eventIds.next();
+        clock.set(LogEventIds.EPOCH + 10);
+
+        assertThat(eventIds.next()).isGreaterThan(first);
+    }
+
+    @Test
+    void ids_of_instances_differ() {
+        LogEventIds first = new LogEventIds(1, () -> LogEventIds.EPOCH + 1000);
+        LogEventIds second = new LogEventIds(2, () -> LogEventIds.EPOCH + 1000);
+
+        assertThat(first.next()).isNotEqualTo(second.next());
+        assertThatThrownBy(() -> new LogEventIds(LogEventIds.MAX_INSTANCE_ID + 1))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void ids_are_exact_in_javascript() {
+        long now = System.currentTimeMillis();
+        LogEventIds eventIds = new LogEventIds(LogEventIds.MAX_INSTANCE_ID, () -> now);
+
+        assertThat(eventIds.next()).isPositive().isLessThan(1L << 53);
+    }
+}
@@ -0,0 +1,85 @@
+package com.tpg.labs.hailstorm.clientexchange;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LogHistoryTest {
+
+    private static LogEvent logEvent(long id, long timestamp) {
+        LogEvent logEvent = new LogEvent();
+        logEvent.setId(id);
+        logEvent.setTimestamp(timestamp);
+        logEvent.setPriority(1);
+        logEvent.setLevel("info");
+        logEvent.setMessage("message " + id);
+        return logEvent;
+    }
+
+    @Test
+    void keeps_last_events() {
+        LogHistory history = new LogHistory("cuckoo", 3, 60000);
+        for (long id = 1; id <= 5; id++) {
+            history.add(logEvent(id, id * 10), 0);
+        }
+
+        assertThat(history.size()).isEqualTo(3);
+        assertThat(history.since(0, 0)).extracting(LogEvent::getId).containsExactly(3L, 4L, 5L);
+        assertThat(history.since(0, 0)).extracting(LogEvent::getProjectCode).containsOnly("cuckoo");
+    }
+
+    @Test
+    void replays_after_event() {
+        LogHistory history = new LogHistory("cuckoo", 10, 60000);
+        for (long id = 1; id <= 5; id++) {
+            history.add(logEvent(id, id * 10), 0);
+        }
+
+        assertThat(history.after(3, 0)).extracting(LogEvent::getId).containsExactly(4L, 5L);
+        assertThat(history.after(5, 0)).isEmpty();
+        assertThat(history.after(0, 0)).hasSize(5);
+        assertThat(history.after(99, 0)).isEmpty();
+        assertThat(history.since(30, 0)).extracting(LogEvent::getMessage)
+                .containsExactly("message 3", "message 4", "message 5");
+    }
+
+    @Test
+    void drops_expired_events() {
+        LogHistory history = new LogHistory("cuckoo", 10, 1000);
+        history.add(logEvent(1, 10), 0);
+        history.add(logEvent(2, 20), 500);
+
+        assertThat(history.since(0, 1200)).extracting(LogEvent::getId).containsExactly(2L);
+        assertThat(history.size()).isEqualTo(1);
+    }
+
+    @Test
+    void grows_to_capacity_in_order() {
+        LogHistory history = new LogHistory("cuckoo", 100, 1000);
+        assertThat(history.length()).isEqualTo(LogHistory.INITIAL_LENGTH);
+
+        history.add(logEvent(1, 10), 0);
+        history.add(logEvent(2, 20), 500);
+        // the first event expires, so the oldest one is not at the start of the array when it grows
+        for (long id = 3; id <= LogHistory.INITIAL_LENGTH + 2; id++) {
+            history.add(logEvent(id, id * 10), 1200);
+        }
+
+        assertThat(history.length()).isEqualTo(LogHistory.INITIAL_LENGTH * 2);
+        assertThat(history.since(0, 1200)).extracting(LogEvent::getId)
+                .startsWith(2L, 3L)
+                .endsWith(LogHistory.INITIAL_LENGTH + 1L, LogHistory.INITIAL_LENGTH + 2L)
+                .hasSize(LogHistory.INITIAL_LENGTH + 1)
+                .isSorted();
+        assertThat(history.isEmpty(1200)).isFalse();
+        assertThat(history.isEmpty(3000)).isTrue();
+    }
+
+    @Test
+    void keeps_nothing_without_capacity() {
+        LogHistory history = new LogHistory("cuckoo", 0, 1000);
+        history.add(logEvent(1, 10), 0);
+
+        assertThat(history.since(0, 0)).isEmpty();
+    }
+}
@@ -4,11 +4,16 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.Test;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.core.io.Resource;
+import reactor.core.Disposable;
+import reactor.core.publisher.DirectProcessor;
 import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
 
 import java.nio.file.Files;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Stream;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -48,4 +53,155 @@ class LogsServiceImplTest {
         List<LogEvent> events = service.logStream().collectList().block(Duration.ofMillis(100));
         assertThat(events).hasSize(1);
     }
+
+    @Test
+    void logStream_decoded_once_for_all_subscribers() {
+        AtomicInteger subscriptions = new AtomicInteger();
+        DirectProcessor<String> messages = DirectProcessor.create();
+
+        LogsService service = new LogsServiceImpl();
+        ((LogsServiceImpl) service).setEventSource(messages.doOnSubscribe(s -> subscriptions.incrementAndGet()));
+        ((LogsServiceImpl) service).setObjectMapper(new ObjectMapper());
+
+        List<LogEvent> first = new ArrayList<>();
+        List<LogEvent> second = new ArrayList<>();
+        Disposable firstSubscriber = service.logStream().subscribe(first::add);
+        Disposable secondSubscriber = service.logStream().subscribe(second::add);
+        messages.onNext("{ \"priority\": 1, \"message\": \"Starting Tests...\", \"timestamp\": 1582264238655 }");
+        firstSubscriber.dispose();
+        secondSubscriber.dispose();
+
+        assertThat(subscriptions).hasValue(1);
+        assertThat(first).hasSize(1);
+        assertThat(second).hasSize(1);
+        assertThat(first.get(0)).isSameAs(second.get(0));
+    }
+
+    @Test
+    void logStream_drops_oldest_for_slow_subscriber() {
+        DirectProcessor<String> messages = DirectProcessor.create();
+
+        LogsService service = new LogsServiceImpl();
+        ((LogsServiceImpl) service).setEventSource(messages);
+        ((LogsServiceImpl) service).setObjectMapper(new ObjectMapper());
+        ((LogsServiceImpl) service).setBufferSize(2);
+
+        StepVerifier.create(service.logStream(), 0)
+                .then(() -> {
+                    for (int i = 1; i <= 3; i++) {
+                        messages.onNext(String.format("{ \"priority\": 1, \"message\": \"%d\" }", i));
+                    }
+                })
+                .thenRequest(2)
+                .assertNext(logEvent -> assertThat(logEvent.getMessage()).isEqualTo("2"))
+                .assertNext(logEvent -> assertThat(logEvent.getMessage()).isEqualTo("3"))
+                .thenCancel()
+                .verify(Duration.ofSeconds(1));
+    }
+
+    @Test
+    void logStream_of_project() {
+        DirectProcessor<String> messages = DirectProcessor.create();
+
+        LogsService service = new LogsServiceImpl();
+        ((LogsServiceImpl) service).setEventSource(messages);
+        ((LogsServiceImpl) service).setObjectMapper(new ObjectMapper());
+
+        List<LogEvent> cuckooEvents = new ArrayList<>();
+        List<LogEvent> sparrowErrors = new ArrayList<>();
+        Disposable cuckooSubscriber = service.logStream("cuckoo", 0).subscribe(cuckooEvents::add);
+        Disposable sparrowSubscriber = service.logStream("sparrow", 3).subscribe(sparrowErrors::add);
+        messages.onNext("{ \"projectCode\": \"cuckoo\", \"priority\": 1, \"message\": \"Starting Tests...\" }");
+        messages.onNext("{ \"projectCode\": \"sparrow\", \"priority\": 1, \"message\": \"Starting Tests...\" }");
+        messages.onNext("{ \"projectCode\": \"sparrow\", \"priority\": 3, \"message\": \"Tests failed\" }");
+        messages.onNext("{ \"priority\": 3, \"message\": \"Redis reconnected\" }");
+        cuckooSubscriber.dispose();
+        sparrowSubscriber.dispose();
+
+        assertThat(cuckooEvents).extracting(LogEvent::getMessage)
+                .containsExactly("Starting Tests...", "Redis reconnected");
+        assertThat(sparrowErrors).extracting(LogEvent::getMessage)
+                .containsExactly("Tests failed", "Redis reconnected");
+        assertThat(messages.hasDownstreams()).isFalse();
+    }
+
+    @Test
+    void logStream_replays_history_then_live_events() {
+        DirectProcessor<String> messages = DirectProcessor.create();
+
+        LogsServiceImpl service = new LogsServiceImpl();
+        service.setEventSource(messages);
+        service.setObjectMapper(new ObjectMapper());
+        service.startRecording();
+
+        List<LogEvent> seen = new ArrayList<>();
+        Disposable subscriber = service.logStream("cuckoo", 0).subscribe(seen::add);
+        messages.onNext("{ \"projectCode\": \"cuckoo\", \"priority\": 1, \"message\": \"1\" }");
+        subscriber.dispose();
+        messages.onNext("{ \"projectCode\": \"cuckoo\", \"priority\": 1, \"message\": \"2\" }");
+
+        LogFilter filter = new LogFilter();
+        filter.setProjectCode("cuckoo");
+        filter.setAfterId(seen.get(0).getId());
+        List<LogEvent> resumed = new ArrayList<>();
+        subscriber = service.logStream(filter).subscribe(resumed::add);
+        messages.onNext("{ \"projectCode\": \"cuckoo\", \"priority\": 1, \"message\": \"3\" }");
+        subscriber.dispose();
+
+        assertThat(resumed).extracting(LogEvent::getMessage).containsExactly("2", "3");
+        assertThat(messages.hasDownstreams()).isTrue();
+    }
+
+    @Test
+    void logStream_replays_events_of_no_project() {
+        DirectProcessor<String> messages = DirectProcessor.create();
+
+        LogsServiceImpl service = new LogsServiceImpl();
+        service.setEventSource(messages);
+        service.setObjectMapper(new ObjectMapper());
+        service.startRecording();
+
+        messages.onNext("{ \"projectCode\": \"cuckoo\", \"priority\": 1, \"message\": \"1\" }");
+        messages.onNext("{ \"priority\": 3, \"message\": \"Redis reconnected\" }");
+        messages.onNext("{ \"projectCode\": \"sparrow\", \"priority\": 1, \"message\": \"2\" }");
+        messages.onNext("{ \"projectCode\": \"cuckoo\", \"priority\": 1, \"message\": \"3\" }");
+
+        LogFilter filter = new LogFilter();
+        filter.setProjectCode("cuckoo");
+        filter.setSince(0L);
+        List<LogEvent> replayed = new ArrayList<>();
+        service.logStream(filter).subscribe(replayed::add).dispose();
+
+        assertThat(replayed).extracting(LogEvent::getMessage).containsExactly("1", "Redis reconnected", "3");
+    }
+
+    @Test
+    void logStream_keeps_no_channel_for_project_without_events() {
+        DirectProcessor<String> messages = DirectProcessor.create();
+
+        LogsServiceImpl service = new LogsServiceImpl();
+        service.setEventSource(messages);
+        service.setObjectMapper(new ObjectMapper());
+        service.startRecording();
+
+        Disposable subscriber = service.logStream("no-such-project", 0).subscribe();
+        assertThat(service.hasProjectChannel("no-such-project")).isTrue();
+        messages.onNext("{ \"projectCode\": \"cuckoo\", \"priority\": 1, \"message\": \"1\" }");
+        subscriber.dispose();
+
+        assertThat(service.hasProjectChannel("no-such-project")).isFalse();
+        assertThat(service.hasProjectChannel("cuckoo")).isTrue();
+    }
+
+    @Test
+    void logFilter_min_priority() {
+        LogFilter filter = new LogFilter();
+        assertThat(filter.minPriority()).isEqualTo(0);
+
+        filter.setLevel("WARN");
+        assertThat(filter.minPriority()).isEqualTo(2);
+
+        filter.setPriority(3);
+        assertThat(filter.minPriority()).isEqualTo(3);
+    }
 }
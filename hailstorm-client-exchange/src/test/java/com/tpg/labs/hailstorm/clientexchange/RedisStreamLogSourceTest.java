@@ -0,0 +1,193 @@
+package com.tpg.labs.hailstorm.clientexchange;
+
+import io.lettuce.core.Consumer;
+import io.lettuce.core.Limit;
+import io.lettuce.core.Range;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.XReadArgs;
+import io.lettuce.core.api.sync.RedisCommands;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import redis.embedded.RedisServer;
+import reactor.core.Disposable;
+import reactor.test.StepVerifier;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RedisStreamLogSourceTest {
+
+    private static final String STREAM_KEY = "hailstorm-logs";
+    private static final String GROUP = "hailstorm-client-exchange";
+
+    private static RedisServer redisServer;
+    private static RedisClient redisClient;
+
+    private RedisCommands<String, String> commands;
+    private final List<RedisStreamLogSource> sources = new ArrayList<>();
+
+    @BeforeAll
+    static void startRedis() throws IOException {
+        final int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        redisServer = new RedisServer(port);
+        redisServer.start();
+        redisClient = RedisClient.create(RedisURI.create("localhost", port));
+    }
+
+    @AfterAll
+    static void stopRedis() throws IOException {
+        redisClient.shutdown();
+        redisServer.stop();
+    }
+
+    @BeforeEach
+    void setUp() {
+        commands = redisClient.connect().sync();
+        commands.flushall();
+    }
+
+    @AfterEach
+    void tearDown() {
+        sources.forEach(RedisStreamLogSource::destroy);
+        commands.getStatefulConnection().close();
+    }
+
+    @Test
+    void messages_read_in_batches_and_acknowledged() {
+        addEvents(0, 5);
+        List<String> messages = Collections.synchronizedList(new ArrayList<>());
+        Disposable subscriber = newSource("one").messages().subscribe(messages::add);
+
+        // the last batch is acknowledged after its message is taken
+        awaitCondition(() -> messages.size() == 5 && pendingCount() == 0);
+        subscriber.dispose();
+
+        assertThat(messages).containsExactly(event(0), event(1), event(2), event(3), event(4));
+    }
+
+    @Test
+    void messages_resume_with_unacknowledged() {
+        addEvents(0, 2);
+        commands.xgroupCreate(XReadArgs.StreamOffset.from(STREAM_KEY, "0-0"), GROUP);
+        // read, and not acknowledged, by a consumer that went away
+        readWithoutAcknowledging("one");
+        addEvents(2, 3);
+
+        StepVerifier.create(newSource("one").messages())
+                .expectNext(event(0), event(1), event(2))
+                .thenCancel()
+                .verify(Duration.ofSeconds(5));
+    }
+
+    @Test
+    void messages_claimed_from_idle_consumer() throws InterruptedException {
+        addEvents(0, 5);
+        commands.xgroupCreate(XReadArgs.StreamOffset.from(STREAM_KEY, "0-0"), GROUP);
+        // read, and not acknowledged, by a consumer that is not coming back under its name
+        readWithoutAcknowledging("gone");
+        Thread.sleep(20);
+
+        RedisStreamLogSource source = newSource("two");
+        source.setClaimIdle(10);
+        List<String> messages = Collections.synchronizedList(new ArrayList<>());
+        Disposable subscriber = source.messages().subscribe(messages::add);
+
+        awaitCondition(() -> messages.size() == 5 && pendingCount() == 0);
+        subscriber.dispose();
+
+        assertThat(messages).containsExactly(event(0), event(1), event(2), event(3), event(4));
+    }
+
+    @Test
+    void messages_of_busy_consumer_not_claimed() {
+        addEvents(0, 2);
+        commands.xgroupCreate(XReadArgs.StreamOffset.from(STREAM_KEY, "0-0"), GROUP);
+        readWithoutAcknowledging("one");
+        addEvents(2, 3);
+
+        StepVerifier.create(newSource("two").messages())
+                .expectNext(event(2))
+                .thenCancel()
+                .verify(Duration.ofSeconds(5));
+        assertThat(commands.xpending(STREAM_KEY, Consumer.from(GROUP, "one"), Range.create("-", "+"), Limit.from(10)))
+                .hasSize(2);
+    }
+
+    @Test
+    void messages_shared_by_consumers_of_group() {
+        List<String> first = Collections.synchronizedList(new ArrayList<>());
+        List<String> second = Collections.synchronizedList(new ArrayList<>());
+        Disposable firstSubscriber = newSource("one").messages().subscribe(first::add);
+        Disposable secondSubscriber = newSource("two").messages().subscribe(second::add);
+
+        addEvents(0, 20);
+        awaitCondition(() -> first.size() + second.size() >= 20);
+        firstSubscriber.dispose();
+        secondSubscriber.dispose();
+
+        List<String> all = new ArrayList<>(first);
+        all.addAll(second);
+        assertThat(all).hasSize(20);
+        assertThat(new HashSet<>(all)).hasSize(20);
+    }
+
+    private RedisStreamLogSource newSource(String consumer) {
+        RedisStreamLogSource source = new RedisStreamLogSource();
+        source.setRedisClient(redisClient);
+        source.setConsumer(consumer);
+        source.setBatchSize(2);
+        source.setBlock(100);
+        source.afterPropertiesSet();
+        sources.add(source);
+        return source;
+    }
+
+    // the varargs array of a single offset, which can not be created generic
+    @SuppressWarnings("unchecked")
+    private void readWithoutAcknowledging(String consumer) {
+        commands.xreadgroup(Consumer.from(GROUP, consumer), XReadArgs.StreamOffset.lastConsumed(STREAM_KEY));
+    }
+
+    private void addEvents(int from, int to) {
+        for (int i = from; i < to; i++) {
+            commands.xadd(STREAM_KEY, RedisStreamLogSource.EVENT_FIELD, event(i));
+        }
+    }
+
+    private static String event(int i) {
+        return "{ \"priority\": 1, \"message\": \"message " + i + "\", \"timestamp\": 1582264238655 }";
+    }
+
+    private long pendingCount() {
+        return (Long) commands.xpending(STREAM_KEY, GROUP).get(0);
+    }
+
+    private static void awaitCondition(BooleanSupplier condition) {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertThat(System.currentTimeMillis()).isLessThan(deadline);
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
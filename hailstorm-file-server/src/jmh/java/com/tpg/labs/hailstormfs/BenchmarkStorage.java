@@ -0,0 +1,53 @@
+package com.tpg.labs.hailstormfs;
+
+import org.springframework.util.FileSystemUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Storage for the benchmarks, on <code>tmpfs</code> or on <code>disk</code>. The directories are set with the
+ * <code>hailstorm.jmh.tmpfs</code> and <code>hailstorm.jmh.disk</code> system properties, and default to
+ * <code>/dev/shm</code> and the build directory.
+ */
+class BenchmarkStorage {
+
+    static final String TMPFS = "tmpfs";
+    static final String DISK = "disk";
+
+    private BenchmarkStorage() {
+    }
+
+    static Path createBasePath(String storage) throws IOException {
+        String parent = TMPFS.equals(storage)
+                ? System.getProperty("hailstorm.jmh.tmpfs", "/dev/shm")
+                : System.getProperty("hailstorm.jmh.disk", "build/jmh-storage");
+
+        Path basePath = Paths.get(parent, "hailstorm-jmh").toAbsolutePath();
+        FileSystemUtils.deleteRecursively(basePath);
+        Files.createDirectories(basePath);
+        return basePath;
+    }
+
+    static LocalStorageServiceImpl createService(Path basePath) throws Exception {
+        LocalStorageServiceImpl service = new LocalStorageServiceImpl();
+        service.setBaseURI(basePath.toString());
+        service.setWatchStorage(false);
+        service.setListingCacheSize(0);
+        service.afterPropertiesSet();
+        return service;
+    }
+
+    static void delete(LocalStorageServiceImpl service, Path basePath) throws Exception {
+        service.destroy();
+        FileSystemUtils.deleteRecursively(basePath);
+    }
+
+    static FileMetaData createFile(byte[] content, String prefix) {
+        return new FileMetaData("a.jtl", "text/plain", (long) content.length, new ByteArrayInputStream(content))
+                .withPathPrefix(prefix);
+    }
+}
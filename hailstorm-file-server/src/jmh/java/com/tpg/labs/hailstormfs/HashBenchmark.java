@@ -0,0 +1,71 @@
+package com.tpg.labs.hailstormfs;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashing of file content in memory, without storage, by algorithm. The <code>bytes</code> counter is the bytes hashed
+ * per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HashBenchmark {
+
+    @Param({"sha1", "sha256", "sha256-tree", "blake3"})
+    String algorithm;
+
+    @Param({"1024", "1048576", "67108864"})
+    int size;
+
+    @Param({"", "cuckoo"})
+    String prefix;
+
+    private HashAlgorithm hashAlgorithm;
+    private byte[] content;
+
+    @Setup
+    public void createContent() {
+        hashAlgorithm = HashAlgorithm.of(algorithm);
+        content = new byte[size];
+        new Random(7).nextBytes(content);
+    }
+
+    @Benchmark
+    public String calculateHash(Throughput throughput) throws IOException {
+        String hash = FileMetaData.calculateHash(
+                BenchmarkStorage.createFile(content, prefix.isEmpty() ? null : prefix), hashAlgorithm);
+        throughput.bytes += size;
+        return hash;
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Throughput {
+
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+}
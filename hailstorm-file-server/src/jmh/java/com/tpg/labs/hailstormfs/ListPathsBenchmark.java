@@ -0,0 +1,82 @@
+package com.tpg.labs.hailstormfs;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Listing a prefix of <code>entries</code> files, next to another prefix of as many files. The files are added to the
+ * index only, as listings do not read the storage. The listing cache is off.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListPathsBenchmark {
+
+    @Param({BenchmarkStorage.TMPFS, BenchmarkStorage.DISK})
+    String storage;
+
+    @Param({"10", "1000", "100000"})
+    int entries;
+
+    private Path basePath;
+    private LocalStorageServiceImpl service;
+
+    @Setup(Level.Trial)
+    public void createService() throws Exception {
+        basePath = BenchmarkStorage.createBasePath(storage);
+        FileIndex fileIndex = new LogFileIndex(basePath.resolve(LocalStorageServiceImpl.INDEX_FILE));
+        fileIndex.load();
+        for (int i = 0; i < entries; i++) {
+            String fileId = String.format("%040x", i);
+            fileIndex.add(fileId, "a.jtl", "cuckoo", i % 2 == 0 ? ReportFileServiceImpl.REPORTS_TAG : null);
+            fileIndex.add(String.format("f%039x", i), "a.jtl", "sparrow", null);
+        }
+
+        fileIndex.close();
+
+        // loaded again by the service, as on a restart
+        service = new LocalStorageServiceImpl();
+        service.setFileIndex(new LogFileIndex(basePath.resolve(LocalStorageServiceImpl.INDEX_FILE)));
+        service.setBaseURI(basePath.toString());
+        service.setWatchStorage(false);
+        service.setListingCacheSize(0);
+        service.afterPropertiesSet();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteService() throws Exception {
+        BenchmarkStorage.delete(service, basePath);
+    }
+
+    @Benchmark
+    public long listPaths() {
+        return service.listPaths("cuckoo").count();
+    }
+
+    @Benchmark
+    public long listPathsWithTag() {
+        return service.listPaths("cuckoo", ReportFileServiceImpl.REPORTS_TAG).count();
+    }
+
+    @Benchmark
+    public long listPage() {
+        return service.listPaths("cuckoo", null, String.format("%040x", entries / 2), 100).count();
+    }
+}
@@ -0,0 +1,66 @@
+package com.tpg.labs.hailstormfs;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Removing a prefix of <code>files</code> stored files. The files are saved again before each removal, outside the
+ * measurement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class RemoveFilesBenchmark {
+
+    @Param({BenchmarkStorage.TMPFS, BenchmarkStorage.DISK})
+    String storage;
+
+    @Param({"10", "1000"})
+    int files;
+
+    private Path basePath;
+    private LocalStorageServiceImpl service;
+
+    @Setup(Level.Trial)
+    public void createService() throws Exception {
+        basePath = BenchmarkStorage.createBasePath(storage);
+        service = BenchmarkStorage.createService(basePath);
+    }
+
+    @Setup(Level.Iteration)
+    public void saveFiles() throws Exception {
+        byte[] content = new byte[4096];
+        for (int i = 0; i < files; i++) {
+            ByteBuffer.wrap(content).putInt(i);
+            service.saveFile(BenchmarkStorage.createFile(content, "cuckoo"), null);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteService() throws Exception {
+        BenchmarkStorage.delete(service, basePath);
+    }
+
+    @Benchmark
+    public void removeFilesWithPrefix() throws Exception {
+        service.removeFilesWithPrefix("cuckoo");
+    }
+}
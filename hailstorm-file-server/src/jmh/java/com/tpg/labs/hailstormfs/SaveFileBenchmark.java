@@ -0,0 +1,77 @@
+package com.tpg.labs.hailstormfs;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saving files of different content each time, so every save stores and indexes a new file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SaveFileBenchmark {
+
+    @Param({BenchmarkStorage.TMPFS, BenchmarkStorage.DISK})
+    String storage;
+
+    @Param({"4096", "1048576"})
+    int size;
+
+    private Path basePath;
+    private LocalStorageServiceImpl service;
+    private byte[] content;
+    private long counter;
+
+    @Setup(Level.Trial)
+    public void createService() throws Exception {
+        basePath = BenchmarkStorage.createBasePath(storage);
+        service = BenchmarkStorage.createService(basePath);
+        content = new byte[size];
+        new Random(7).nextBytes(content);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteService() throws Exception {
+        BenchmarkStorage.delete(service, basePath);
+    }
+
+    private FileMetaData nextFile(String prefix) {
+        // a counter in the first bytes gives every save a new file id
+        ByteBuffer.wrap(content).putLong(counter++);
+        return BenchmarkStorage.createFile(content, prefix);
+    }
+
+    @Benchmark
+    public String saveFile() throws Exception {
+        return service.saveFile(nextFile(null), null);
+    }
+
+    @Benchmark
+    public String saveFileWithPrefix() throws Exception {
+        return service.saveFile(nextFile("cuckoo"), null);
+    }
+
+    @Benchmark
+    public String saveFileWithPrefixAndTag() throws Exception {
+        return service.saveFile(nextFile("cuckoo"), null, ReportFileServiceImpl.REPORTS_TAG);
+    }
+}
@@ -0,0 +1,393 @@
+package com.tpg.labs.hailstormfs;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Keeps files read from a slower {@link StorageService}, such as {@link S3StorageServiceImpl}, on local disk. A file
+ * is cached when it is first read, and the least recently read files are evicted to keep the cache under its maximum
+ * size. Concurrent reads of a file that is not cached fetch it from the backing storage once.
+ *
+ * Files are not cached on upload. Downloads are served from the cache, so the backing storage is not asked for a
+ * download URL. The cache is cleared on start up, as files may have been deleted while the server was down.
+ */
+public class CachingStorageService implements StorageService, InitializingBean, DisposableBean {
+
+    private static final String STAGING_DIR = ".staging";
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final StorageService storageService;
+    private final Path cachePath;
+    private final long maxSize;
+    private final Map<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ConcurrentMap<String, CompletableFuture<Path>> fetches = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+    private long size;
+    private Path stagingPath;
+
+    /**
+     * @param storageService backing storage
+     * @param cachePath      directory of the cache, cleared on start up
+     * @param maxSize        bytes
+     */
+    public CachingStorageService(StorageService storageService, Path cachePath, long maxSize) {
+        this.storageService = storageService;
+        this.cachePath = cachePath.toAbsolutePath().normalize();
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        FileSystemUtils.deleteRecursively(cachePath);
+        stagingPath = cachePath.resolve(STAGING_DIR);
+        Files.createDirectories(stagingPath);
+        logger.info("Caching files in {}, up to {} bytes", cachePath, maxSize);
+    }
+
+    @Override
+    public void destroy() {
+        fetches.values().forEach(fetch -> fetch.cancel(true));
+    }
+
+    /**
+     * Publishes hit and miss counts, bytes served from the cache instead of the backing storage, and the size and hit
+     * ratio of the cache.
+     *
+     * @param meterRegistry
+     */
+    public void bindTo(MeterRegistry meterRegistry) {
+        FunctionCounter.builder("hailstorm.fs.storage.cache", this, CachingStorageService::getHits)
+                .tag("result", "hit")
+                .register(meterRegistry);
+        FunctionCounter.builder("hailstorm.fs.storage.cache", this, CachingStorageService::getMisses)
+                .tag("result", "miss")
+                .register(meterRegistry);
+        FunctionCounter.builder("hailstorm.fs.storage.cache.saved", this, CachingStorageService::getBytesSaved)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("hailstorm.fs.storage.cache.size", this, CachingStorageService::size)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("hailstorm.fs.storage.cache.hit.ratio", this, CachingStorageService::getHitRatio)
+                .register(meterRegistry);
+    }
+
+    @Override
+    public Resource getFile(String fileId, String fileName) throws FileNotFoundException {
+        final String key = fileId + "/" + fileName;
+        Path cachedFile = getCachedFile(fileId, fileName);
+        Long cachedSize;
+        synchronized (entries) {
+            cachedSize = entries.get(key);
+        }
+
+        if (cachedSize != null && Files.isRegularFile(cachedFile)) {
+            hits.incrementAndGet();
+            bytesSaved.addAndGet(cachedSize);
+            return new CachedFileResource(cachedFile, cachedSize, fileId, fileName);
+        }
+
+        misses.incrementAndGet();
+        CompletableFuture<Path> fetch = new CompletableFuture<>();
+        CompletableFuture<Path> fetchInProgress = fetches.putIfAbsent(key, fetch);
+        if (fetchInProgress == null) {
+            try {
+                fetch.complete(fetchFile(key, fileId, fileName));
+            } catch (IOException | RuntimeException e) {
+                fetch.completeExceptionally(e);
+            } finally {
+                fetches.remove(key, fetch);
+            }
+        } else {
+            fetch = fetchInProgress;
+        }
+
+        try {
+            Path fetchedFile = fetch.get();
+            if (fetchedFile != null) {
+                return new CachedFileResource(fetchedFile, Files.size(fetchedFile), fileId, fileName);
+            }
+        } catch (IOException e) {
+            logger.debug("Evicted {} while it was fetched: {}", key, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof FileNotFoundException) {
+                throw (FileNotFoundException) e.getCause();
+            }
+
+            logger.warn("Could not cache {}: {}", key, e.getCause().getMessage());
+        }
+
+        return storageService.getFile(fileId, fileName);
+    }
+
+    /**
+     * Copies the file from the backing storage to the cache.
+     *
+     * @return the cached file, or null if the file is larger than the cache, or was deleted while it was copied
+     */
+    private Path fetchFile(String key, String fileId, String fileName) throws IOException {
+        final long fetchGeneration = generation.get();
+        Resource file = storageService.getFile(fileId, fileName);
+        long length = file.contentLength();
+        if (length > maxSize) {
+            return null;
+        }
+
+        Path stagedFile = Files.createTempFile(stagingPath, "fetch-", ".part");
+        try {
+            try (InputStream inputStream = file.getInputStream()) {
+                Files.copy(inputStream, stagedFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            List<String> evictedKeys = new ArrayList<>();
+            Path cachedFile = getCachedFile(fileId, fileName);
+            synchronized (entries) {
+                // a file deleted while it was fetched is not kept
+                if (generation.get() != fetchGeneration) {
+                    return null;
+                }
+
+                Files.createDirectories(cachedFile.getParent());
+                moveIntoPlace(stagedFile, cachedFile);
+                Long replacedSize = entries.put(key, length);
+                size += length - (replacedSize == null ? 0 : replacedSize);
+                Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+                while (size > maxSize && eldest.hasNext()) {
+                    Map.Entry<String, Long> entry = eldest.next();
+                    if (!entry.getKey().equals(key)) {
+                        evictedKeys.add(entry.getKey());
+                        size -= entry.getValue();
+                        eldest.remove();
+                    }
+                }
+            }
+
+            for (String evictedKey : evictedKeys) {
+                logger.debug("Evicting {}", evictedKey);
+                Files.deleteIfExists(cachePath.resolve(evictedKey));
+            }
+
+            return cachedFile;
+        } finally {
+            Files.deleteIfExists(stagedFile);
+        }
+    }
+
+    private static void moveIntoPlace(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private Path getCachedFile(String fileId, String fileName) throws FileNotFoundException {
+        Path cachedFile = cachePath.resolve(fileId).resolve(fileName).normalize();
+        if (!cachedFile.getParent().getParent().equals(cachePath) || fileId.equals(STAGING_DIR)) {
+            throw new FileNotFoundException(String.format("Not found %s/%s", fileId, fileName));
+        }
+
+        return cachedFile;
+    }
+
+    /**
+     * Drops the cached files of a file id.
+     */
+    private void evict(String fileId) throws IOException {
+        final String keyPrefix = fileId + "/";
+        synchronized (entries) {
+            generation.incrementAndGet();
+            Iterator<Map.Entry<String, Long>> cachedEntries = entries.entrySet().iterator();
+            while (cachedEntries.hasNext()) {
+                Map.Entry<String, Long> entry = cachedEntries.next();
+                if (entry.getKey().startsWith(keyPrefix)) {
+                    size -= entry.getValue();
+                    cachedEntries.remove();
+                }
+            }
+        }
+
+        FileSystemUtils.deleteRecursively(cachePath.resolve(fileId));
+    }
+
+    @Override
+    public String saveFile(FileMetaData fileMetaData, FileTransferDelegate fileTransferDelegate) throws IOException {
+        return storageService.saveFile(fileMetaData, fileTransferDelegate);
+    }
+
+    @Override
+    public String saveFile(FileMetaData fileMetaData,
+                           FileTransferDelegate fileTransferDelegate,
+                           String tag) throws IOException {
+
+        return storageService.saveFile(fileMetaData, fileTransferDelegate, tag);
+    }
+
+    @Override
+    public void deleteFile(String fileId) throws IOException {
+        storageService.deleteFile(fileId);
+        evict(fileId);
+    }
+
+    @Override
+    public void deleteFile(String fileId, String tag) throws IOException {
+        storageService.deleteFile(fileId, tag);
+        evict(fileId);
+    }
+
+    @Override
+    public Optional<Resource> getEncodedFile(String fileId, String fileName, String encoding) {
+        return storageService.getEncodedFile(fileId, fileName, encoding);
+    }
+
+    @Override
+    public void removeFilesWithPrefix(String prefix) throws IOException {
+        for (String fileId : unindexFilesWithPrefix(prefix)) {
+            try {
+                purgeFile(fileId);
+            } catch (IOException e) {
+                logger.warn("Skipping {}: {}", fileId, e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public List<String> unindexFilesWithPrefix(String prefix) throws IOException {
+        return storageService.unindexFilesWithPrefix(prefix);
+    }
+
+    @Override
+    public void purgeFile(String fileId) throws IOException {
+        storageService.purgeFile(fileId);
+        evict(fileId);
+    }
+
+    @Override
+    public Stream<Path> listPaths(String prefix) {
+        return storageService.listPaths(prefix);
+    }
+
+    @Override
+    public Stream<Path> listPaths(String prefix, String tag) {
+        return storageService.listPaths(prefix, tag);
+    }
+
+    @Override
+    public Stream<Path> listPaths(String prefix, String tag, String afterFileId, int limit) {
+        return storageService.listPaths(prefix, tag, afterFileId, limit);
+    }
+
+    /**
+     * @return bytes of cached files
+     */
+    public long size() {
+        synchronized (entries) {
+            return size;
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return bytes of files read from the cache instead of the backing storage
+     */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    public double getHitRatio() {
+        long reads = hits.get() + misses.get();
+        return reads == 0 ? 0 : (double) hits.get() / reads;
+    }
+
+    /**
+     * A cached file, read from the backing storage instead if it is evicted before it is opened. Files are opened
+     * lazily, when the response is written, so a file can be evicted, by a fetch of another file filling the cache,
+     * after it is returned; a file that is open when it is evicted is read to the end. It is not a file to the
+     * container's zero-copy transfer, which opens the file by name after the response is returned.
+     */
+    private class CachedFileResource extends FileSystemResource {
+
+        private final long length;
+        private final String fileId;
+        private final String fileName;
+
+        CachedFileResource(Path cachedFile, long length, String fileId, String fileName) {
+            super(cachedFile);
+            this.length = length;
+            this.fileId = fileId;
+            this.fileName = fileName;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            try {
+                return super.getInputStream();
+            } catch (FileNotFoundException | NoSuchFileException e) {
+                logger.debug("Evicted {}/{} before it was read", fileId, fileName);
+                return storageService.getFile(fileId, fileName).getInputStream();
+            }
+        }
+
+        @Override
+        public ReadableByteChannel readableChannel() throws IOException {
+            try {
+                return super.readableChannel();
+            } catch (FileNotFoundException | NoSuchFileException e) {
+                logger.debug("Evicted {}/{} before it was read", fileId, fileName);
+                return storageService.getFile(fileId, fileName).readableChannel();
+            }
+        }
+
+        @Override
+        public boolean isFile() {
+            return false;
+        }
+
+        @Override
+        public long contentLength() {
+            return length;
+        }
+    }
+}
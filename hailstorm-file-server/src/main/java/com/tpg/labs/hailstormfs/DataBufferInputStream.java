@@ -0,0 +1,180 @@
+package com.tpg.labs.hailstormfs;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reads a stream of {@link DataBuffer}s as an {@link InputStream}, for the blocking {@link StorageService}. Buffers
+ * are requested one at a time as they are read, so at most <code>prefetch</code> buffers are held in memory, and a
+ * slow reader slows down the sender.
+ *
+ * Subscribe it to the buffers, then read it on a thread that may block.
+ */
+class DataBufferInputStream extends InputStream implements Subscriber<DataBuffer> {
+
+    private static final Object COMPLETE = new Object();
+    private static final Object CLOSED = new Object();
+
+    private final int prefetch;
+    private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+    // guards closing against queueing, so a buffer is not queued after the queue is released
+    private final Lock closeLock = new ReentrantLock();
+    private volatile Subscription subscription;
+    private volatile boolean closed;
+    private volatile Thread reader;
+    private DataBuffer current;
+    private boolean complete;
+    private long bytesRead;
+
+    DataBufferInputStream(int prefetch) {
+        this.prefetch = prefetch;
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+        this.subscription = subscription;
+        if (closed) {
+            subscription.cancel();
+        } else {
+            subscription.request(prefetch);
+        }
+    }
+
+    @Override
+    public void onNext(DataBuffer dataBuffer) {
+        closeLock.lock();
+        try {
+            if (closed) {
+                DataBufferUtils.release(dataBuffer);
+            } else {
+                queue.add(dataBuffer);
+            }
+        } finally {
+            closeLock.unlock();
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        queue.add(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        queue.add(COMPLETE);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] singleByte = new byte[1];
+        int read = read(singleByte, 0, 1);
+        return read == -1 ? -1 : singleByte[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+
+        reader = Thread.currentThread();
+
+        while (current == null || current.readableByteCount() == 0) {
+            if (current != null) {
+                DataBufferUtils.release(current);
+                current = null;
+                subscription.request(1);
+            }
+
+            if (complete) {
+                return -1;
+            }
+
+            Object next = take();
+            if (next == COMPLETE) {
+                complete = true;
+                return -1;
+            }
+
+            if (next == CLOSED) {
+                releaseQueued();
+                throw new IOException("Stream closed");
+            }
+
+            if (next instanceof Throwable) {
+                throw new IOException((Throwable) next);
+            }
+
+            current = (DataBuffer) next;
+        }
+
+        int count = Math.min(length, current.readableByteCount());
+        current.read(bytes, offset, count);
+        bytesRead += count;
+        return count;
+    }
+
+    private Object take() throws InterruptedIOException {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * @return number of bytes read so far
+     */
+    long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Cancels the subscription, if the buffers have not all been read, and releases the buffers not read.
+     */
+    @Override
+    public void close() {
+        closeLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            releaseQueued();
+            queue.add(CLOSED);
+        } finally {
+            closeLock.unlock();
+        }
+
+        if (subscription != null && !complete) {
+            subscription.cancel();
+        }
+
+        // the buffer being read is released by the reader, unless it is the reader closing the stream
+        if (current != null && (reader == null || reader == Thread.currentThread())) {
+            DataBufferUtils.release(current);
+            current = null;
+        }
+    }
+
+    private void releaseQueued() {
+        Object next;
+        while ((next = queue.poll()) != null) {
+            if (next instanceof DataBuffer) {
+                DataBufferUtils.release((DataBuffer) next);
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.tpg.labs.hailstormfs;
+
+import org.springframework.core.io.AbstractResource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Resource for a file stored only in gzip form, decompressed as it is read.
+ *
+ * The length is read from the gzip trailer, which holds the size modulo 2<sup>32</sup>, so files of
+ * {@link #MAX_SIZE} or more are not stored in this form.
+ */
+class DecompressingFileResource extends AbstractResource {
+
+    static final long MAX_SIZE = 1L << 32;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int TRAILER_SIZE = 4;
+
+    private final File compressedFile;
+    private final String fileName;
+
+    DecompressingFileResource(File compressedFile, String fileName) {
+        this.compressedFile = compressedFile;
+        this.fileName = fileName;
+    }
+
+    File getCompressedFile() {
+        return compressedFile;
+    }
+
+    @Override
+    public boolean exists() {
+        return compressedFile.exists();
+    }
+
+    @Override
+    public String getFilename() {
+        return fileName;
+    }
+
+    @Override
+    public long lastModified() {
+        return compressedFile.lastModified();
+    }
+
+    /**
+     * @return the uncompressed size, without reading the content
+     */
+    @Override
+    public long contentLength() throws IOException {
+        try (FileChannel channel = FileChannel.open(compressedFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            long position = channel.size() - TRAILER_SIZE;
+            while (trailer.hasRemaining()) {
+                if (channel.read(trailer, position + trailer.position()) < 0) {
+                    throw new IOException("Truncated gzip file " + compressedFile);
+                }
+            }
+
+            return Integer.toUnsignedLong(trailer.getInt(0));
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return new GZIPInputStream(Files.newInputStream(compressedFile.toPath()), BUFFER_SIZE);
+    }
+
+    @Override
+    public String getDescription() {
+        return "decompressed [" + compressedFile.getAbsolutePath() + "]";
+    }
+}
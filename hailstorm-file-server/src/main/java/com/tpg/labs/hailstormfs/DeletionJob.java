@@ -0,0 +1,98 @@
+package com.tpg.labs.hailstormfs;
+
+import java.util.StringJoiner;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Progress of deleting the files of a prefix in the background.
+ */
+public class DeletionJob {
+
+    public enum State {
+        RUNNING,
+        COMPLETED
+    }
+
+    private final String jobId;
+    private final String prefix;
+    private final int total;
+    private final long startedAt;
+    private final AtomicInteger deleted = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private volatile long finishedAt;
+
+    public DeletionJob(String jobId, String prefix, int total) {
+        this.jobId = jobId;
+        this.prefix = prefix;
+        this.total = total;
+        this.startedAt = System.currentTimeMillis();
+        if (total == 0) {
+            finishedAt = startedAt;
+        }
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public int getDeleted() {
+        return deleted.get();
+    }
+
+    /**
+     * @return number of files that could not be deleted, they are logged and left in storage
+     */
+    public int getFailed() {
+        return failed.get();
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    /**
+     * @return completion time, or 0 while the job is running
+     */
+    public long getFinishedAt() {
+        return finishedAt;
+    }
+
+    public State getState() {
+        return finishedAt == 0 ? State.RUNNING : State.COMPLETED;
+    }
+
+    void fileDeleted() {
+        deleted.incrementAndGet();
+        checkFinished();
+    }
+
+    void fileFailed() {
+        failed.incrementAndGet();
+        checkFinished();
+    }
+
+    private void checkFinished() {
+        if (deleted.get() + failed.get() == total) {
+            finishedAt = System.currentTimeMillis();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", DeletionJob.class.getSimpleName() + "[", "]")
+                .add("jobId='" + jobId + "'")
+                .add("prefix='" + prefix + "'")
+                .add("total=" + total)
+                .add("deleted=" + deleted)
+                .add("failed=" + failed)
+                .toString();
+    }
+}
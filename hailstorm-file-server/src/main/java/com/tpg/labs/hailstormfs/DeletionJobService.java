@@ -0,0 +1,28 @@
+package com.tpg.labs.hailstormfs;
+
+import java.io.IOException;
+import java.util.Optional;
+
+/**
+ * Deletes files in the background, so large deletions do not hold up the request.
+ */
+public interface DeletionJobService {
+
+    /**
+     * Removes the files with the prefix from listings before it returns, and deletes them from storage in the
+     * background.
+     *
+     * @param prefix
+     * @return the job, to track progress
+     * @throws IOException if the files could not be removed from the index
+     */
+    DeletionJob removeFilesWithPrefix(String prefix) throws IOException;
+
+    /**
+     * Looks up a running or recently finished job.
+     *
+     * @param jobId
+     * @return
+     */
+    Optional<DeletionJob> getJob(String jobId);
+}
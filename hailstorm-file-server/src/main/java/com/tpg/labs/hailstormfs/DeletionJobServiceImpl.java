@@ -0,0 +1,118 @@
+package com.tpg.labs.hailstormfs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Deletes the files of a job on a fixed pool of worker threads, one task per file. Finished jobs are kept for a while
+ * so their outcome can be looked up.
+ */
+@Service
+public class DeletionJobServiceImpl implements DeletionJobService, InitializingBean, DisposableBean {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final StorageService storageService;
+    private final ConcurrentMap<String, DeletionJob> jobs = new ConcurrentHashMap<>();
+    private int deletionThreads = 4;
+    private long jobRetentionMillis = TimeUnit.HOURS.toMillis(1);
+    private ExecutorService executorService;
+
+    @Autowired
+    public DeletionJobServiceImpl(StorageService storageService) {
+        this.storageService = storageService;
+    }
+
+    /**
+     * Number of threads deleting files, across all jobs.
+     *
+     * @param deletionThreads
+     */
+    @Value("${deletionThreads:4}")
+    public void setDeletionThreads(int deletionThreads) {
+        this.deletionThreads = deletionThreads;
+    }
+
+    /**
+     * @param jobRetention seconds a finished job can be looked up
+     */
+    @Value("${deletionJobRetention:3600}")
+    public void setJobRetention(long jobRetention) {
+        this.jobRetentionMillis = TimeUnit.SECONDS.toMillis(jobRetention);
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        final AtomicInteger threadCount = new AtomicInteger();
+        final ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "deletion-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+
+        executorService = Executors.newFixedThreadPool(Math.max(1, deletionThreads), threadFactory);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        executorService.shutdown();
+        if (!executorService.awaitTermination(30, TimeUnit.SECONDS)) {
+            logger.warn("Deletion jobs did not finish, files left in storage are not indexed");
+            executorService.shutdownNow();
+        }
+    }
+
+    @Override
+    public DeletionJob removeFilesWithPrefix(String prefix) throws IOException {
+        removeExpiredJobs();
+        List<String> fileIds = storageService.unindexFilesWithPrefix(prefix);
+        DeletionJob job = new DeletionJob(UUID.randomUUID().toString(), prefix, fileIds.size());
+        jobs.put(job.getJobId(), job);
+        logger.info("Started {}", job);
+
+        for (String fileId : fileIds) {
+            executorService.execute(() -> {
+                try {
+                    storageService.purgeFile(fileId);
+                    job.fileDeleted();
+                } catch (IOException | RuntimeException e) {
+                    logger.warn("Failed to delete {}: {}", fileId, e.getMessage());
+                    job.fileFailed();
+                }
+
+                if (job.getState() == DeletionJob.State.COMPLETED) {
+                    logger.info("Completed {}", job);
+                }
+            });
+        }
+
+        return job;
+    }
+
+    @Override
+    public Optional<DeletionJob> getJob(String jobId) {
+        return Optional.ofNullable(jobs.get(jobId));
+    }
+
+    private void removeExpiredJobs() {
+        final long expiredBefore = System.currentTimeMillis() - jobRetentionMillis;
+        jobs.values().removeIf(job -> job.getState() == DeletionJob.State.COMPLETED
+                && job.getFinishedAt() < expiredBefore);
+    }
+}
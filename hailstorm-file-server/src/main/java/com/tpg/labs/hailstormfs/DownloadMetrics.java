@@ -0,0 +1,150 @@
+package com.tpg.labs.hailstormfs;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the bytes of files served, and the downloads being sent, as the <code>out</code> direction of the
+ * <code>hailstorm.fs.storage.bytes</code> and <code>hailstorm.fs.storage.transfers.active</code> metrics
+ * {@link StorageMetrics} counts uploads with.
+ *
+ * A download is active from the time its content is opened, or handed to the server, until it is sent or fails.
+ * Bytes are counted as they are sent.
+ */
+class DownloadMetrics {
+
+    private final Counter bytesSent;
+    private final AtomicInteger activeDownloads = new AtomicInteger();
+
+    /**
+     * @param meterRegistry optional, nothing is published if null
+     */
+    DownloadMetrics(MeterRegistry meterRegistry) {
+        MeterRegistry registry = meterRegistry != null ? meterRegistry : new CompositeMeterRegistry();
+        this.bytesSent = Counter.builder(StorageMetrics.BYTES)
+                .tag(StorageMetrics.DIRECTION, "out")
+                .baseUnit("bytes")
+                .register(registry);
+
+        Gauge.builder(StorageMetrics.ACTIVE_TRANSFERS, activeDownloads, AtomicInteger::get)
+                .tag(StorageMetrics.DIRECTION, "out")
+                .description("Files being transferred")
+                .register(registry);
+    }
+
+    void started() {
+        activeDownloads.incrementAndGet();
+    }
+
+    void ended(long bytes) {
+        activeDownloads.decrementAndGet();
+        bytesSent.increment(bytes);
+    }
+
+    /**
+     * Counts the bytes of a file the container sends after the response is returned, when it is handed over, as it
+     * is not seen sending them.
+     */
+    void countSent(long bytes) {
+        bytesSent.increment(bytes);
+    }
+
+    /**
+     * @return the resource, with its content counted as it is read, and active until its stream is closed; bytes
+     * skipped, for a range, are not counted
+     */
+    Resource meter(Resource resource) {
+        return new MeteredResource(resource);
+    }
+
+    private class MeteredResource extends AbstractResource {
+
+        private final Resource resource;
+
+        private MeteredResource(Resource resource) {
+            this.resource = resource;
+        }
+
+        @Override
+        public boolean exists() {
+            return resource.exists();
+        }
+
+        @Override
+        public String getFilename() {
+            return resource.getFilename();
+        }
+
+        @Override
+        public long contentLength() throws IOException {
+            return resource.contentLength();
+        }
+
+        @Override
+        public long lastModified() throws IOException {
+            return resource.lastModified();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return new MeteredInputStream(resource.getInputStream());
+        }
+
+        @Override
+        public String getDescription() {
+            return resource.getDescription();
+        }
+    }
+
+    private class MeteredInputStream extends FilterInputStream {
+
+        private long count;
+        private boolean closed;
+
+        private MeteredInputStream(InputStream inputStream) {
+            super(inputStream);
+            started();
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (!closed) {
+                    closed = true;
+                    ended(count);
+                }
+            }
+        }
+    }
+}
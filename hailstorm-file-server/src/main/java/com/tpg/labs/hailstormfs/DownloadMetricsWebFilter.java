@@ -0,0 +1,98 @@
+package com.tpg.labs.hailstormfs;
+
+import org.reactivestreams.Publisher;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.ZeroCopyHttpOutputMessage;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.http.server.reactive.ServerHttpResponseDecorator;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Meters the downloads of {@link ReactiveFsController}. Their content is written by the server after the controller
+ * returns, in part with zero-copy transfer, so it is counted as it is written to the response of the requests the
+ * controller marks with {@link #DOWNLOAD_ATTRIBUTE}.
+ */
+class DownloadMetricsWebFilter implements WebFilter {
+
+    static final String DOWNLOAD_ATTRIBUTE = DownloadMetricsWebFilter.class.getName() + ".download";
+
+    private final DownloadMetrics metrics;
+
+    DownloadMetricsWebFilter(DownloadMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+        if (!HttpMethod.GET.equals(exchange.getRequest().getMethod())) {
+            return chain.filter(exchange);
+        }
+
+        ServerHttpResponse response = exchange.getResponse();
+        ServerHttpResponse meteredResponse = response instanceof ZeroCopyHttpOutputMessage
+                ? new ZeroCopyMeteredResponse(response, exchange.getAttributes())
+                : new MeteredResponse(response, exchange.getAttributes());
+
+        return chain.filter(exchange.mutate().response(meteredResponse).build());
+    }
+
+    private Mono<Void> meter(Mono<Void> write, AtomicLong bytes) {
+        return Mono.defer(() -> {
+            metrics.started();
+            return write.doFinally(signal -> metrics.ended(bytes.get()));
+        });
+    }
+
+    private class MeteredResponse extends ServerHttpResponseDecorator {
+
+        private final Map<String, Object> attributes;
+
+        private MeteredResponse(ServerHttpResponse delegate, Map<String, Object> attributes) {
+            super(delegate);
+            this.attributes = attributes;
+        }
+
+        boolean isDownload() {
+            return attributes.containsKey(DOWNLOAD_ATTRIBUTE);
+        }
+
+        @Override
+        public Mono<Void> writeWith(Publisher<? extends DataBuffer> body) {
+            if (!isDownload()) {
+                return super.writeWith(body);
+            }
+
+            AtomicLong bytes = new AtomicLong();
+            return meter(super.writeWith(Flux.from(body)
+                    .doOnNext(buffer -> bytes.addAndGet(buffer.readableByteCount()))), bytes);
+        }
+    }
+
+    private class ZeroCopyMeteredResponse extends MeteredResponse implements ZeroCopyHttpOutputMessage {
+
+        private ZeroCopyMeteredResponse(ServerHttpResponse delegate, Map<String, Object> attributes) {
+            super(delegate, attributes);
+        }
+
+        @Override
+        public Mono<Void> writeWith(Path file, long position, long count) {
+            Mono<Void> write = ((ZeroCopyHttpOutputMessage) getDelegate()).writeWith(file, position, count);
+            if (!isDownload()) {
+                return write;
+            }
+
+            // counted once sent, as the server does not report the bytes sent so far
+            AtomicLong bytes = new AtomicLong();
+            return meter(write.doOnSuccess(done -> bytes.set(count)), bytes);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.tpg.labs.hailstormfs;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.Resource;
+import org.springframework.util.StreamUtils;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Writes stored files to an archive as they are read, without staging the archive. Each file is an entry named
+ * <code>fileId/fileName</code>, so files with the same name do not clash.
+ */
+class FileArchive {
+
+    /**
+     * Zip entries with these extensions are not compressed again, as their content is compressed already.
+     */
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "gz", "zip", "jar", "war", "png", "jpg", "jpeg", "gif", "pdf", "docx", "xlsx", "pptx"));
+
+    enum Format {
+        ZIP("application/zip", "zip"),
+        TAR("application/x-tar", "tar");
+
+        private final String mediaType;
+        private final String extension;
+
+        Format(String mediaType, String extension) {
+            this.mediaType = mediaType;
+            this.extension = extension;
+        }
+
+        String getMediaType() {
+            return mediaType;
+        }
+
+        String getExtension() {
+            return extension;
+        }
+
+        /**
+         * @throws IllegalArgumentException if the format is not known
+         */
+        static Format of(String name) {
+            return Format.valueOf(name.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final StorageService storageService;
+    private final Format format;
+
+    FileArchive(StorageService storageService, Format format) {
+        this.storageService = storageService;
+        this.format = format;
+    }
+
+    /**
+     * Writes the files to the archive. Files removed since they were listed are left out.
+     *
+     * @param files        <code>fileId/fileName</code> of each file
+     * @param outputStream not closed
+     * @return number of files written
+     */
+    int write(Iterator<String> files, OutputStream outputStream) throws IOException {
+        ArchiveOutputStream archive = open(outputStream);
+        int count = 0;
+        while (files.hasNext()) {
+            String path = files.next();
+            Resource file;
+            try {
+                file = getFile(storageService, path);
+            } catch (FileNotFoundException e) {
+                logger.warn("Leaving {} out of archive, it was removed", path);
+                continue;
+            }
+
+            archive.putArchiveEntry(createEntry(archive, path, file));
+            try (InputStream inputStream = file.getInputStream()) {
+                StreamUtils.copy(inputStream, archive);
+            }
+
+            archive.closeArchiveEntry();
+            count++;
+        }
+
+        archive.finish();
+        outputStream.flush();
+        return count;
+    }
+
+    /**
+     * @param path <code>fileId/fileName</code>
+     * @throws FileNotFoundException if the file is not stored, or the path is not valid
+     */
+    static Resource getFile(StorageService storageService, String path) throws FileNotFoundException {
+        int separator = path.indexOf('/');
+        if (separator < 1 || separator == path.length() - 1 || separator != path.lastIndexOf('/')) {
+            throw new FileNotFoundException(path);
+        }
+
+        String fileId = path.substring(0, separator);
+        String fileName = path.substring(separator + 1);
+        if (isRelativeName(fileId) || isRelativeName(fileName)) {
+            throw new FileNotFoundException(path);
+        }
+
+        return storageService.getFile(fileId, fileName);
+    }
+
+    private static boolean isRelativeName(String name) {
+        return name.equals(".") || name.equals("..");
+    }
+
+    private ArchiveOutputStream open(OutputStream outputStream) {
+        if (format == Format.TAR) {
+            TarArchiveOutputStream tar = new TarArchiveOutputStream(outputStream);
+            tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+            return tar;
+        }
+
+        return new ZipArchiveOutputStream(outputStream);
+    }
+
+    private ArchiveEntry createEntry(ArchiveOutputStream archive, String path, Resource file) throws IOException {
+        if (format == Format.TAR) {
+            // the size precedes the content in a tar entry
+            TarArchiveEntry entry = new TarArchiveEntry(path);
+            entry.setSize(file.contentLength());
+            return entry;
+        }
+
+        ((ZipArchiveOutputStream) archive).setLevel(isCompressed(path)
+                ? Deflater.NO_COMPRESSION
+                : Deflater.DEFAULT_COMPRESSION);
+
+        ZipArchiveEntry entry = new ZipArchiveEntry(path);
+        entry.setMethod(ZipArchiveEntry.DEFLATED);
+        if (file.isFile()) {
+            // a known size lets Zip64 extensions be written for files over 4 GiB
+            entry.setSize(file.contentLength());
+        }
+
+        return entry;
+    }
+
+    private static boolean isCompressed(String path) {
+        int dot = path.lastIndexOf('.');
+        return dot != -1 && COMPRESSED_EXTENSIONS.contains(path.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,99 @@
+package com.tpg.labs.hailstormfs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Index of stored files by prefix and tag, used by {@link StorageService} implementations to list files without
+ * walking the storage.
+ */
+public interface FileIndex extends Closeable {
+
+    /**
+     * Loads the index from its backing store.
+     *
+     * @throws IOException
+     */
+    void load() throws IOException;
+
+    /**
+     * Adds a stored file to the index.
+     *
+     * @param fileId
+     * @param fileName
+     * @param prefix   optional
+     * @param tag      optional
+     * @throws IOException
+     */
+    void add(String fileId, String fileName, String prefix, String tag) throws IOException;
+
+    /**
+     * Removes a file id and all its prefix and tag associations.
+     *
+     * @param fileId
+     * @return true if the file id was indexed
+     * @throws IOException
+     */
+    boolean remove(String fileId) throws IOException;
+
+    /**
+     * Removes a file id like {@link #remove(String)}, and keeps it as a pending purge until {@link #purged(String)},
+     * so the stored file can still be deleted after a restart.
+     *
+     * @param fileId
+     * @return true if the file id was indexed
+     * @throws IOException
+     */
+    boolean removeForPurge(String fileId) throws IOException;
+
+    /**
+     * Records that the stored file of a pending purge is deleted.
+     *
+     * @param fileId
+     * @throws IOException
+     */
+    void purged(String fileId) throws IOException;
+
+    /**
+     * @return ids of files removed for purge, and not purged yet
+     */
+    Set<String> pendingPurges();
+
+    /**
+     * Looks up an indexed file.
+     *
+     * @param fileId
+     * @return
+     */
+    Optional<IndexedFile> get(String fileId);
+
+    /**
+     * Files with the given prefix, ordered by file id.
+     *
+     * @param prefix
+     * @return
+     */
+    Stream<IndexedFile> list(String prefix);
+
+    /**
+     * Files with the given prefix and tag, ordered by file id.
+     *
+     * @param prefix
+     * @param tag
+     * @return
+     */
+    Stream<IndexedFile> list(String prefix, String tag);
+
+    /**
+     * Files with the given prefix and tag, ordered by file id, starting after a file id.
+     *
+     * @param prefix
+     * @param tag         optional
+     * @param afterFileId optional, the listing starts from the first file if null
+     * @return
+     */
+    Stream<IndexedFile> list(String prefix, String tag, String afterFileId);
+}
@@ -1,22 +1,23 @@
 package com.tpg.labs.hailstormfs;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
-import org.apache.commons.codec.binary.Hex;
-import org.apache.commons.codec.digest.DigestUtils;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.MessageDigest;
+import java.io.OutputStream;
 import java.util.StringJoiner;
 
 public class FileMetaData {
 
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
     private String id;
     private final String originalName;
     private final String mimeType;
     private final Long size;
     private final InputStream inputStream;
     private String pathPrefix;
+    private String contentHash;
 
     public FileMetaData(String originalName, String mimeType, Long size, InputStream inputStream) {
         this.originalName = originalName;
@@ -68,6 +69,20 @@ public class FileMetaData {
         return this;
     }
 
+    /**
+     * Hash of the content alone, without the path prefix. Available once the file hash has been calculated.
+     *
+     * @return
+     */
+    @JsonIgnore
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
     @Override
     public String toString() {
         return new StringJoiner(", ", FileMetaData.class.getSimpleName() + "[", "]")
@@ -78,15 +93,52 @@ public class FileMetaData {
                 .toString();
     }
 
+    /**
+     * Calculates the SHA-1 file id, and sets the content hash.
+     */
     @JsonIgnore
     public static String calculateHash(FileMetaData fileMetaData) throws IOException {
-        MessageDigest messageDigest = DigestUtils.getSha1Digest();
-        messageDigest = DigestUtils.updateDigest(messageDigest, fileMetaData.getInputStream());
-        if (fileMetaData.getPathPrefix() != null) {
-            messageDigest = DigestUtils.updateDigest(messageDigest, fileMetaData.getPathPrefix());
-        }
+        return calculateHash(fileMetaData, HashAlgorithm.SHA1);
+    }
 
-        return Hex.encodeHexString(messageDigest.digest(), true);
+    @JsonIgnore
+    public static String calculateHash(FileMetaData fileMetaData, HashAlgorithm hashAlgorithm) throws IOException {
+        return transferAndHash(fileMetaData, hashAlgorithm);
+    }
+
+    /**
+     * Copies the input stream to <code>sinks</code>, updating the digest with each block as it is written, so the
+     * content is read only once. The hash is the same as {@link #calculateHash(FileMetaData)}.
+     *
+     * @param fileMetaData
+     * @param sinks
+     * @return
+     * @throws IOException
+     */
+    @JsonIgnore
+    public static String transferAndHash(FileMetaData fileMetaData, OutputStream... sinks) throws IOException {
+        return transferAndHash(fileMetaData, HashAlgorithm.SHA1, sinks);
     }
 
+    /**
+     * Reads the content in large blocks, as the digest is updated once per block.
+     */
+    @JsonIgnore
+    public static String transferAndHash(FileMetaData fileMetaData,
+                                         HashAlgorithm hashAlgorithm,
+                                         OutputStream... sinks) throws IOException {
+
+        HashAlgorithm.Digest digest = hashAlgorithm.newDigest();
+        InputStream inputStream = fileMetaData.getInputStream();
+        byte[] buffer = new byte[TRANSFER_BUFFER_SIZE];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+            for (OutputStream sink : sinks) {
+                sink.write(buffer, 0, read);
+            }
+        }
+
+        return hashAlgorithm.complete(digest, fileMetaData);
+    }
 }
@@ -1,27 +1,90 @@
 package com.tpg.labs.hailstormfs;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.io.InputStreamResource;
 import org.springframework.core.io.Resource;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import javax.servlet.http.HttpServletRequest;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 @Controller
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 public class HailstormFsController {
 
+    static final String SENDFILE_SUPPORT_ATTR = "org.apache.tomcat.sendfile.support";
+    static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+    static final String GZIP_ENCODING = "gzip";
+
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
     private final StorageService storageService;
+    private final UploadSessionService uploadSessionService;
+    private final DeletionJobService deletionJobService;
+    private boolean zeroCopy = true;
+    private long zeroCopyMinSize = 48 * 1024;
+    private DownloadMetrics downloadMetrics = new DownloadMetrics(null);
 
     @Autowired
-    public HailstormFsController(StorageService storageService) {
+    public HailstormFsController(StorageService storageService,
+                                 UploadSessionService uploadSessionService,
+                                 DeletionJobService deletionJobService) {
         this.storageService = storageService;
+        this.uploadSessionService = uploadSessionService;
+        this.deletionJobService = deletionJobService;
+    }
+
+    /**
+     * Hands file downloads to the container's sendfile support, so the bytes go from the file to the socket without
+     * passing through the JVM heap. Used only if the connector supports it.
+     *
+     * @param zeroCopy
+     */
+    @Value("${zeroCopy:true}")
+    public void setZeroCopy(boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
+    }
+
+    /**
+     * Files smaller than this are copied, as setting up sendfile costs more than it saves.
+     *
+     * @param zeroCopyMinSize
+     */
+    @Value("${zeroCopyMinSize:49152}")
+    public void setZeroCopyMinSize(long zeroCopyMinSize) {
+        this.zeroCopyMinSize = zeroCopyMinSize;
+    }
+
+    @Autowired(required = false)
+    public void setMeterRegistry(MeterRegistry meterRegistry) {
+        this.downloadMetrics = new DownloadMetrics(meterRegistry);
     }
 
     @PostMapping("/upload")
@@ -35,6 +98,109 @@ public class HailstormFsController {
         return ResponseEntity.ok().body(fileMetaData.withId(path));
     }
 
+    /**
+     * Stores each <code>file</code> part of the request, in the order they are sent, and responds with the files in
+     * the same order. A part that cannot be stored does not stop the others; it is left without an id, and the
+     * response is <code>207 Multi-Status</code> instead of <code>200 OK</code>, so the client knows the ids of the
+     * files that were stored.
+     */
+    @PostMapping("/files")
+    public ResponseEntity<List<FileMetaData>> uploadFiles(@RequestParam("file") List<MultipartFile> files,
+                                                          @RequestParam(value = "prefix",
+                                                                  required = false) String pathPrefix)
+            throws IOException {
+
+        List<FileMetaData> savedFiles = new ArrayList<>(files.size());
+        boolean allSaved = true;
+        for (MultipartFile file : files) {
+            FileMetaData fileMetaData = FileMetaDataBuilder.build(file, pathPrefix);
+            logger.debug("fileMetaData: {}", fileMetaData);
+            try {
+                fileMetaData.setId(storageService.saveFile(fileMetaData, file::transferTo));
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Failed to save {}: {}", file.getOriginalFilename(), e.getMessage());
+                allSaved = false;
+            }
+
+            savedFiles.add(fileMetaData);
+        }
+
+        return ResponseEntity.status(allSaved ? HttpStatus.OK : HttpStatus.MULTI_STATUS).body(savedFiles);
+    }
+
+    /**
+     * Starts a resumable upload. The chunks are sent to <code>/uploads/{uploadId}/chunks/{index}</code>, in any
+     * order and in parallel, and the file is stored when the upload is committed.
+     */
+    @PostMapping("/uploads")
+    public ResponseEntity<UploadSession> createUpload(@RequestParam("fileName") String fileName,
+                                                      @RequestParam(value = "prefix",
+                                                              required = false) String pathPrefix,
+                                                      @RequestParam(value = "mimeType",
+                                                              required = false) String mimeType,
+                                                      @RequestParam(value = "size",
+                                                              required = false) Long size) throws IOException {
+
+        UploadSession session = uploadSessionService.createSession(fileName, mimeType, pathPrefix, size);
+        return ResponseEntity.created(URI.create("/uploads/" + session.getUploadId())).body(session);
+    }
+
+    /**
+     * Saves a chunk, responding with bad request if it does not match the optional <code>hash</code>, and with
+     * conflict if the upload is being committed.
+     */
+    @PutMapping("/uploads/{uploadId}/chunks/{index}")
+    public ResponseEntity<UploadSession> uploadChunk(@PathVariable("uploadId") String uploadId,
+                                                     @PathVariable("index") int index,
+                                                     @RequestParam(value = "hash", required = false) String hash,
+                                                     InputStream content) throws IOException {
+        try {
+            return ResponseEntity.ok(uploadSessionService.saveChunk(uploadId, index, content, hash));
+        } catch (FileNotFoundException e) {
+            return ResponseEntity.notFound().build();
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
+        }
+    }
+
+    /**
+     * Lists the chunks received, so an interrupted upload can send just the ones that are missing.
+     */
+    @GetMapping("/uploads/{uploadId}")
+    public ResponseEntity<UploadSession> getUpload(@PathVariable("uploadId") String uploadId) throws IOException {
+        try {
+            return ResponseEntity.ok(uploadSessionService.getSession(uploadId));
+        } catch (FileNotFoundException e) {
+            return ResponseEntity.notFound().build();
+        }
+    }
+
+    /**
+     * Stores the file from the chunks, responding with conflict if chunks are missing.
+     */
+    @PostMapping("/uploads/{uploadId}/commit")
+    public ResponseEntity<FileMetaData> commitUpload(@PathVariable("uploadId") String uploadId) throws IOException {
+        try {
+            return ResponseEntity.ok(uploadSessionService.commit(uploadId, storageService::saveFile));
+        } catch (FileNotFoundException e) {
+            return ResponseEntity.notFound().build();
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
+        }
+    }
+
+    @DeleteMapping("/uploads/{uploadId}")
+    public ResponseEntity abortUpload(@PathVariable("uploadId") String uploadId) throws IOException {
+        try {
+            uploadSessionService.abort(uploadId);
+            return ResponseEntity.noContent().build();
+        } catch (FileNotFoundException e) {
+            return ResponseEntity.notFound().build();
+        }
+    }
+
     @DeleteMapping("/{fileId}")
     public ResponseEntity deleteFile(@PathVariable("fileId") String fileId) throws IOException {
         logger.debug("path: {}", fileId);
@@ -42,10 +208,24 @@ public class HailstormFsController {
         return ResponseEntity.ok().build();
     }
 
+    /**
+     * Serves a stored file. The file id is a content hash, so it is used as a strong ETag for conditional requests.
+     * Range requests, including multiple ranges, are answered with partial content unless an
+     * <code>If-Range</code> validator does not match the ETag. The whole file or a single range is sent with zero-copy
+     * transfer if the container supports it. A gzip copy of the file is served as is to clients that accept it.
+     */
     @GetMapping("/{fileId}/{fileName}")
     @ResponseBody
     public ResponseEntity<Resource> serveFile(@PathVariable("fileId") String fileId,
-                                              @PathVariable("fileName") String fileName) {
+                                              @PathVariable("fileName") String fileName,
+                                              @RequestHeader(value = HttpHeaders.IF_RANGE,
+                                                      required = false) String ifRange,
+                                              @RequestHeader(value = HttpHeaders.RANGE,
+                                                      required = false) String range,
+                                              @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING,
+                                                      required = false) String acceptEncoding,
+                                              WebRequest webRequest,
+                                              HttpServletRequest request) throws IOException {
         logger.debug("fileId: {}, fileName: {}", fileId, fileName);
         Resource file = null;
         try {
@@ -54,14 +234,242 @@ public class HailstormFsController {
             return ResponseEntity.notFound().build();
         }
 
+        Resource encodedFile = acceptsEncoding(acceptEncoding, GZIP_ENCODING)
+                ? storageService.getEncodedFile(fileId, fileName, GZIP_ENCODING).orElse(null)
+                : null;
+
+        final String eTag = encodedFile == null ? "\"" + fileId + "\"" : "\"" + fileId + "-" + GZIP_ENCODING + "\"";
+        if (webRequest.checkNotModified(eTag)) {
+            return null;
+        }
+
+        // redirected after the conditional checks, so a client with a current copy is not sent to the storage
+        Optional<URL> downloadUrl = storageService.getDownloadUrl(fileId, fileName);
+        if (downloadUrl.isPresent()) {
+            return ResponseEntity.status(HttpStatus.TEMPORARY_REDIRECT)
+                    .location(URI.create(downloadUrl.get().toString()))
+                    .eTag(eTag)
+                    .build();
+        }
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileName + "\"");
+        headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+        headers.set(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        headers.setETag(eTag);
+        // set for every response, as a zero copy response has no body to take it from, nor has an encoded one
+        headers.setContentType(MediaTypeFactory.getMediaType(fileName).orElse(MediaType.APPLICATION_OCTET_STREAM));
+        if (encodedFile != null) {
+            file = encodedFile;
+            headers.set(HttpHeaders.CONTENT_ENCODING, GZIP_ENCODING);
+        }
+
+        final boolean wholeFile = range == null || (ifRange != null && !ifRange.equals(eTag));
+        if (isZeroCopyEnabled(request, file)) {
+            ResponseEntity<Resource> zeroCopyResponse = sendFile(request, file.getFile(),
+                    wholeFile ? null : range, headers);
+            if (zeroCopyResponse != null) {
+                return zeroCopyResponse;
+            }
+        }
+
+        if (range != null && wholeFile) {
+            // ranges are not applied to an InputStreamResource, the whole file is sent
+            if (file.isFile()) {
+                headers.setContentLength(file.contentLength());
+            }
+
+            return ResponseEntity.ok().headers(headers)
+                    .body(new InputStreamResource(meter(request, file).getInputStream()));
+        }
+
+        return ResponseEntity.ok().headers(headers).body(meter(request, file));
+    }
+
+    /**
+     * @return true if the encoding is listed in the <code>Accept-Encoding</code> header, explicitly or with a
+     * wildcard, and not with a zero quality value
+     */
+    static boolean acceptsEncoding(String acceptEncoding, String encoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+
+        boolean accepted = false;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parameters = coding.trim().split(";");
+            String name = parameters[0].trim();
+            if (!name.equalsIgnoreCase(encoding) && !name.equals("*")) {
+                continue;
+            }
+
+            boolean zeroQuality = false;
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        zeroQuality = Double.parseDouble(parameter.substring(2)) == 0;
+                    } catch (NumberFormatException e) {
+                        zeroQuality = true;
+                    }
+                }
+            }
+
+            if (name.equalsIgnoreCase(encoding)) {
+                return !zeroQuality;
+            }
+
+            accepted = !zeroQuality;
+        }
+
+        return accepted;
+    }
+
+    /**
+     * The content of a response to a HEAD request is read, but not sent, so it is not counted.
+     */
+    private Resource meter(HttpServletRequest request, Resource file) {
+        return HttpMethod.GET.matches(request.getMethod()) ? downloadMetrics.meter(file) : file;
+    }
+
+    private boolean isZeroCopyEnabled(HttpServletRequest request, Resource file) throws IOException {
+        return zeroCopy
+                && HttpMethod.GET.matches(request.getMethod())
+                && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT_ATTR))
+                && file.isFile()
+                && file.contentLength() >= zeroCopyMinSize;
+    }
+
+    /**
+     * Sets the request attributes for the container to send the file, or a single range of it, after the response
+     * headers.
+     *
+     * @return null if the range can not be sent this way
+     */
+    private ResponseEntity<Resource> sendFile(HttpServletRequest request,
+                                              File source,
+                                              String range,
+                                              HttpHeaders headers) throws IOException {
+
+        final long length = source.length();
+        long start = 0;
+        long end = length - 1;
+        HttpStatus status = HttpStatus.OK;
+        if (range != null) {
+            List<HttpRange> httpRanges;
+            try {
+                httpRanges = HttpRange.parseRanges(range);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+
+            if (httpRanges.size() != 1 || length == 0 || httpRanges.get(0).getRangeStart(length) >= length) {
+                return null;
+            }
+
+            start = httpRanges.get(0).getRangeStart(length);
+            end = httpRanges.get(0).getRangeEnd(length);
+            status = HttpStatus.PARTIAL_CONTENT;
+            headers.set(HttpHeaders.CONTENT_RANGE, String.format("bytes %d-%d/%d", start, end, length));
+        }
+
+        headers.setContentLength(end - start + 1);
+        downloadMetrics.countSent(end - start + 1);
+        request.setAttribute(SENDFILE_FILENAME_ATTR, source.getCanonicalPath());
+        request.setAttribute(SENDFILE_START_ATTR, start);
+        request.setAttribute(SENDFILE_END_ATTR, end + 1);
+        return ResponseEntity.status(status).headers(headers).build();
+    }
+
+    /**
+     * Streams an archive of the files listed as <code>file=fileId/fileName</code>, or of all files with a prefix,
+     * and optionally a tag. The archive is written as the files are read, so it is never staged. Responds with not
+     * found if a listed file is not stored.
+     */
+    @GetMapping("/archive")
+    public ResponseEntity<StreamingResponseBody> downloadArchive(
+            @RequestParam(value = "file", required = false) List<String> files,
+            @RequestParam(value = "prefix", required = false) String prefix,
+            @RequestParam(value = "tag", required = false) String tag,
+            @RequestParam(value = "format", defaultValue = "zip") String format) {
+
+        if (files == null && prefix != null) {
+            return archiveResponse(format, prefix, () -> (tag == null
+                    ? storageService.listPaths(prefix)
+                    : storageService.listPaths(prefix, tag))
+                    .map(path -> path.getParent().getFileName() + "/" + path.getFileName()));
+        }
+
+        return archiveFiles(files, format);
+    }
+
+    /**
+     * Streams an archive of the files in the body, a JSON array of <code>fileId/fileName</code>, for lists too long
+     * to send in a query.
+     */
+    @PostMapping("/archive")
+    public ResponseEntity<StreamingResponseBody> downloadArchive(
+            @RequestBody List<String> files,
+            @RequestParam(value = "format", defaultValue = "zip") String format) {
+
+        return archiveFiles(files, format);
+    }
+
+    private ResponseEntity<StreamingResponseBody> archiveFiles(List<String> files, String format) {
+        if (files == null || files.isEmpty()) {
+            return ResponseEntity.badRequest().build();
+        }
+
+        for (String file : files) {
+            try {
+                FileArchive.getFile(storageService, file);
+            } catch (FileNotFoundException e) {
+                return ResponseEntity.notFound().build();
+            }
+        }
+
+        return archiveResponse(format, "files", files::stream);
+    }
+
+    private ResponseEntity<StreamingResponseBody> archiveResponse(String format,
+                                                                  String name,
+                                                                  Supplier<Stream<String>> files) {
+        final FileArchive.Format archiveFormat;
+        try {
+            archiveFormat = FileArchive.Format.of(format);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+
+        FileArchive archive = new FileArchive(storageService, archiveFormat);
+        StreamingResponseBody body = outputStream -> {
+            try (Stream<String> paths = files.get()) {
+                int count = archive.write(paths.iterator(), outputStream);
+                logger.debug("Archived {} files", count);
+            }
+        };
+
         return ResponseEntity.ok()
-                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileName + "\"")
-                .body(file);
+                .header(HttpHeaders.CONTENT_DISPOSITION,
+                        "attachment; filename=\"" + name + "." + archiveFormat.getExtension() + "\"")
+                .contentType(MediaType.parseMediaType(archiveFormat.getMediaType()))
+                .body(body);
     }
 
+    /**
+     * Removes the files from listings at once, and deletes them in the background. The progress of the deletion is at
+     * the <code>Location</code> of the response.
+     */
     @DeleteMapping("/files/{prefix}")
-    public ResponseEntity<String> removeFilesWithPrefix(@PathVariable("prefix") String prefix) throws IOException {
-        storageService.removeFilesWithPrefix(prefix);
-        return ResponseEntity.noContent().build();
+    public ResponseEntity<DeletionJob> removeFilesWithPrefix(@PathVariable("prefix") String prefix) throws IOException {
+        DeletionJob job = deletionJobService.removeFilesWithPrefix(prefix);
+        return ResponseEntity.accepted().location(URI.create("/jobs/" + job.getJobId())).body(job);
+    }
+
+    @GetMapping("/jobs/{jobId}")
+    public ResponseEntity<DeletionJob> getDeletionJob(@PathVariable("jobId") String jobId) {
+        return deletionJobService.getJob(jobId)
+                .map(ResponseEntity::ok)
+                .orElse(ResponseEntity.notFound().build());
     }
 }
@@ -0,0 +1,211 @@
+package com.tpg.labs.hailstormfs;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.Blake3;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Locale;
+
+/**
+ * Digest that file ids are calculated with. SHA-1 ids are plain hex, as in earlier versions. Ids of the other
+ * algorithms start with the algorithm name, such as <code>blake3-</code>, so the algorithm of a stored file is known
+ * from its id, and files stored before the algorithm is changed are still found by their ids.
+ *
+ * With SHA-1, the id of a file with a prefix is the digest of the content followed by the prefix. With the other
+ * algorithms it is the digest of the content hash followed by the prefix, so the content is digested once.
+ */
+public enum HashAlgorithm {
+
+    SHA1("") {
+        @Override
+        Digest newDigest() {
+            return new MessageDigestAdapter(DigestUtils.getSha1Digest());
+        }
+
+        @Override
+        String complete(Digest digest, FileMetaData fileMetaData) {
+            MessageDigest messageDigest = ((MessageDigestAdapter) digest).messageDigest;
+            fileMetaData.setContentHash(Hex.encodeHexString(cloneDigest(messageDigest).digest(), true));
+            if (fileMetaData.getPathPrefix() != null) {
+                DigestUtils.updateDigest(messageDigest, fileMetaData.getPathPrefix());
+            }
+
+            return Hex.encodeHexString(messageDigest.digest(), true);
+        }
+
+        @Override
+        boolean isHashed(FileMetaData fileMetaData) {
+            return false;
+        }
+    },
+
+    SHA256("sha256-") {
+        @Override
+        Digest newDigest() {
+            return new MessageDigestAdapter(DigestUtils.getSha256Digest());
+        }
+    },
+
+    /**
+     * Hashed in pure Java, so slower than SHA-256 where the JVM uses the SHA instructions of the CPU.
+     */
+    BLAKE3("blake3-") {
+        @Override
+        Digest newDigest() {
+            final Blake3 blake3 = Blake3.initHash();
+            return new Digest() {
+                @Override
+                void update(byte[] bytes, int offset, int length) {
+                    blake3.update(bytes, offset, length);
+                }
+
+                @Override
+                byte[] digest() {
+                    return blake3.doFinalize(32);
+                }
+            };
+        }
+    },
+
+    /**
+     * SHA-256 {@link TreeHash} of the content, hashed on the {@link TreeHash#POOL}, so large files hash in a fraction
+     * of the time on many cores.
+     */
+    SHA256_TREE("sha256tree-") {
+        @Override
+        Digest newDigest() {
+            return new TreeHash.TreeDigest(TreeHash.POOL);
+        }
+    };
+
+    private final String idPrefix;
+
+    HashAlgorithm(String idPrefix) {
+        this.idPrefix = idPrefix;
+    }
+
+    /**
+     * @param name such as <code>sha256</code>, <code>SHA-256</code> or <code>sha256-tree</code>
+     * @throws IllegalArgumentException if the algorithm is not known
+     */
+    public static HashAlgorithm of(String name) {
+        String normalizedName = name.replaceAll("[-_]", "").toUpperCase(Locale.ROOT);
+        for (HashAlgorithm hashAlgorithm : values()) {
+            if (hashAlgorithm.name().replace("_", "").equals(normalizedName)) {
+                return hashAlgorithm;
+            }
+        }
+
+        throw new IllegalArgumentException(String.format("Unknown hash algorithm %s", name));
+    }
+
+    /**
+     * @return algorithm a file id or content hash was calculated with
+     */
+    public static HashAlgorithm ofId(String id) {
+        for (HashAlgorithm hashAlgorithm : values()) {
+            if (!hashAlgorithm.idPrefix.isEmpty() && id.startsWith(hashAlgorithm.idPrefix)) {
+                return hashAlgorithm;
+            }
+        }
+
+        return SHA1;
+    }
+
+    abstract Digest newDigest();
+
+    /**
+     * @return id of a digest calculated with this algorithm
+     */
+    String idOf(byte[] digest) {
+        return idPrefix + Hex.encodeHexString(digest, true);
+    }
+
+    /**
+     * Sets the content hash of the file, and calculates the file id from it and the path prefix.
+     *
+     * @param digest of the content
+     * @return file id
+     */
+    String complete(Digest digest, FileMetaData fileMetaData) {
+        byte[] contentDigest = digest.digest();
+        fileMetaData.setContentHash(idOf(contentDigest));
+        return fileIdOf(contentDigest, fileMetaData);
+    }
+
+    /**
+     * @return true if the file has a content hash of this algorithm, so its id can be calculated without reading
+     * it. SHA-1 ids are digests of the content itself, so they are never known in advance.
+     */
+    boolean isHashed(FileMetaData fileMetaData) {
+        return fileMetaData.getContentHash() != null && ofId(fileMetaData.getContentHash()) == this;
+    }
+
+    /**
+     * Calculates the file id from the content hash the file has already, and the path prefix.
+     *
+     * @return file id
+     * @throws IllegalArgumentException if the file is not {@link #isHashed(FileMetaData) hashed} with this algorithm
+     */
+    String fileIdOf(FileMetaData fileMetaData) {
+        if (!isHashed(fileMetaData)) {
+            throw new IllegalArgumentException(String.format("File %s has no %s content hash",
+                    fileMetaData.getOriginalName(), this));
+        }
+
+        try {
+            return fileIdOf(Hex.decodeHex(fileMetaData.getContentHash().substring(idPrefix.length())), fileMetaData);
+        } catch (DecoderException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private String fileIdOf(byte[] contentDigest, FileMetaData fileMetaData) {
+        if (fileMetaData.getPathPrefix() == null) {
+            return idOf(contentDigest);
+        }
+
+        Digest idDigest = newDigest();
+        idDigest.update(contentDigest, 0, contentDigest.length);
+        byte[] prefix = fileMetaData.getPathPrefix().getBytes(StandardCharsets.UTF_8);
+        idDigest.update(prefix, 0, prefix.length);
+        return idOf(idDigest.digest());
+    }
+
+    private static MessageDigest cloneDigest(MessageDigest messageDigest) {
+        try {
+            return (MessageDigest) messageDigest.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    abstract static class Digest {
+
+        abstract void update(byte[] bytes, int offset, int length);
+
+        abstract byte[] digest();
+    }
+
+    private static class MessageDigestAdapter extends Digest {
+
+        private final MessageDigest messageDigest;
+
+        private MessageDigestAdapter(MessageDigest messageDigest) {
+            this.messageDigest = messageDigest;
+        }
+
+        @Override
+        void update(byte[] bytes, int offset, int length) {
+            messageDigest.update(bytes, offset, length);
+        }
+
+        @Override
+        byte[] digest() {
+            return messageDigest.digest();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.tpg.labs.hailstormfs;
+
+import java.util.Collections;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * A file id in the {@link FileIndex}, with the names it was stored with.
+ */
+public class IndexedFile {
+
+    private final String fileId;
+    private final String pathPrefix;
+    private final NavigableSet<String> fileNames = new ConcurrentSkipListSet<>();
+    private final Set<String> tags = new ConcurrentSkipListSet<>();
+
+    public IndexedFile(String fileId, String pathPrefix) {
+        this.fileId = fileId;
+        this.pathPrefix = pathPrefix;
+    }
+
+    public String getFileId() {
+        return fileId;
+    }
+
+    public String getPathPrefix() {
+        return pathPrefix;
+    }
+
+    public Set<String> getFileNames() {
+        return Collections.unmodifiableSet(fileNames);
+    }
+
+    public Set<String> getTags() {
+        return Collections.unmodifiableSet(tags);
+    }
+
+    boolean addFileName(String fileName) {
+        return fileNames.add(fileName);
+    }
+
+    boolean addTag(String tag) {
+        return tags.add(tag);
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", IndexedFile.class.getSimpleName() + "[", "]")
+                .add("fileId='" + fileId + "'")
+                .add("pathPrefix='" + pathPrefix + "'")
+                .add("fileNames=" + fileNames)
+                .add("tags=" + tags)
+                .toString();
+    }
+}
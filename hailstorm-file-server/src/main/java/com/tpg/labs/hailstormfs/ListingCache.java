@@ -0,0 +1,142 @@
+package com.tpg.labs.hailstormfs;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Least recently used cache of path listings by prefix and tag. Entries expire after a time to live, and all the
+ * entries of a prefix are dropped when a file with the prefix is saved or deleted.
+ */
+public class ListingCache {
+
+    private static final char TAG_SEPARATOR = '\u0000';
+
+    private final int maxEntries;
+    private final long timeToLiveMillis;
+    private final Map<String, Entry> entries;
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public ListingCache(int maxEntries, long timeToLiveMillis) {
+        this.maxEntries = maxEntries;
+        this.timeToLiveMillis = timeToLiveMillis;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > ListingCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Publishes hit and miss counts and the cache size.
+     *
+     * @param meterRegistry
+     */
+    public void bindTo(MeterRegistry meterRegistry) {
+        FunctionCounter.builder("hailstorm.fs.listing.cache", this, ListingCache::getHits)
+                .tag("result", "hit")
+                .register(meterRegistry);
+        FunctionCounter.builder("hailstorm.fs.listing.cache", this, ListingCache::getMisses)
+                .tag("result", "miss")
+                .register(meterRegistry);
+        Gauge.builder("hailstorm.fs.listing.cache.size", this, ListingCache::size).register(meterRegistry);
+    }
+
+    /**
+     * @param prefix
+     * @param tag      optional
+     * @param loader   lists the paths on a miss
+     * @return cached listing, or the listing from the <code>loader</code>
+     */
+    public List<Path> get(String prefix, String tag, Supplier<List<Path>> loader) {
+        final String key = tag == null ? prefix + TAG_SEPARATOR : prefix + TAG_SEPARATOR + tag;
+        final long now = System.currentTimeMillis();
+        final long loadGeneration;
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && now - entry.loadedAt < timeToLiveMillis) {
+                hits.incrementAndGet();
+                return entry.paths;
+            }
+
+            loadGeneration = generation.get();
+        }
+
+        misses.incrementAndGet();
+        List<Path> paths = Collections.unmodifiableList(loader.get());
+        synchronized (entries) {
+            // a listing loaded across an invalidation may be stale, so it is not kept
+            if (generation.get() == loadGeneration) {
+                entries.put(key, new Entry(paths, now));
+            }
+        }
+
+        return paths;
+    }
+
+    /**
+     * Drops the listings of a prefix, with and without tags.
+     *
+     * @param prefix
+     */
+    public void invalidate(String prefix) {
+        synchronized (entries) {
+            generation.incrementAndGet();
+            Iterator<String> keys = entries.keySet().iterator();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if (key.length() > prefix.length()
+                        && key.startsWith(prefix)
+                        && key.charAt(prefix.length()) == TAG_SEPARATOR) {
+                    keys.remove();
+                }
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (entries) {
+            generation.incrementAndGet();
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private static class Entry {
+
+        private final List<Path> paths;
+        private final long loadedAt;
+
+        private Entry(List<Path> paths, long loadedAt) {
+            this.paths = paths;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
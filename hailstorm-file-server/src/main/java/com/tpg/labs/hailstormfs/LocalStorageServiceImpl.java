@@ -1,10 +1,14 @@
 package com.tpg.labs.hailstormfs;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.commons.compress.utils.CountingOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.Resource;
 import org.springframework.stereotype.Service;
@@ -14,29 +18,113 @@ import javax.validation.constraints.NotNull;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import static com.tpg.labs.hailstormfs.FileMetaData.calculateHash;
+import static com.tpg.labs.hailstormfs.FileMetaData.transferAndHash;
 
 @Service
-public class LocalStorageServiceImpl implements StorageService, InitializingBean {
+@ConditionalOnProperty(name = "storage", havingValue = "local", matchIfMissing = true)
+public class LocalStorageServiceImpl implements StorageService, InitializingBean, DisposableBean {
 
     static final String INFO_DIR = "information";
+    static final String INDEX_FILE = "index.log";
     static final String STORAGE_DIR = "storage";
-
-    private static final String DEFAULT_BASE_PATH = "/hailstorm";
-    private static final String BASE_PATH_OPTION = "basePath";
+    static final String STAGING_DIR = "staging";
+    static final String BLOBS_DIR = "blobs";
+    static final String BLOB_CONTENT = "content";
+    static final String BLOB_REFS = "refs";
+    static final String GZIP_ENCODING = "gzip";
+    static final String GZIP_SUFFIX = ".gz";
+    static final String QUARANTINE_DIR = "quarantine";
+
+    static final String DEFAULT_BASE_PATH = "/hailstorm";
+    static final String BASE_PATH_OPTION = "basePath";
+    static final String HASH_ALGORITHM_OPTION = "hashAlgorithm";
+    private static final String DEDUPLICATE_OPTION = "deduplicate";
+    private static final String COMPRESSION_OPTION = "compression";
+    private static final String LISTING_CACHE_SIZE_OPTION = "listingCacheSize";
+    private static final String LISTING_CACHE_TTL_OPTION = "listingCacheTtl";
+    private static final String WATCH_STORAGE_OPTION = "watchStorage";
+    private static final String SCRUB_OPTION = "scrub";
+    private static final String SCRUB_THREADS_OPTION = "scrubThreads";
+    private static final int LOCK_STRIPES = 64;
+    private static final int COMPARE_BUFFER_SIZE = 64 * 1024;
+    private static final int DEFAULT_LISTING_CACHE_SIZE = 1000;
+    private static final long DEFAULT_LISTING_CACHE_TTL = 60;
+    private static final int COMPRESSION_MIN_SIZE = 1024;
+    private static final int COMPRESSION_BUFFER_SIZE = 64 * 1024;
+    private static final Set<String> COMPRESSIBLE_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "jtl", "jmx", "csv", "xml", "html", "htm", "json", "txt", "log", "css", "js", "svg"));
+
+    /**
+     * Compression of files on upload.
+     */
+    public enum Compression {
+        /**
+         * Files are stored as uploaded.
+         */
+        NONE,
+
+        /**
+         * A gzip copy is stored next to compressible files, if it is smaller.
+         */
+        SIDECAR,
+
+        /**
+         * Compressible files are stored only in gzip form, and decompressed for clients that do not accept it.
+         */
+        ONLY
+    }
 
     String baseURI = DEFAULT_BASE_PATH;
+    boolean deduplicate = false;
+    Compression compression = Compression.NONE;
+    HashAlgorithm hashAlgorithm = HashAlgorithm.SHA1;
+    int listingCacheSize = DEFAULT_LISTING_CACHE_SIZE;
+    long listingCacheTtl = DEFAULT_LISTING_CACHE_TTL;
+    boolean scrub = false;
+    int scrubThreads = Runtime.getRuntime().availableProcessors();
+    boolean watchStorage = true;
 
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
     private ApplicationArguments applicationArguments;
     private File storagePath;
-    private File infoPath;
+    private FileIndex fileIndex;
+    private File stagingPath;
+    private File blobsPath;
+    // stored files are locked by file id, and then blobs by content hash; locks, not monitors, so a virtual thread
+    // waiting for one does not hold on to its carrier thread
+    private final StripedLock fileLocks = new StripedLock(LOCK_STRIPES);
+    private final StripedLock blobLocks = new StripedLock(LOCK_STRIPES);
+    private ListingCache listingCache;
+    private StorageWatcher storageWatcher;
+    private MeterRegistry meterRegistry;
+    private StorageMetrics metrics = new StorageMetrics(null);
 
     @Autowired
     public void setApplicationArguments(ApplicationArguments applicationArguments) {
@@ -46,20 +134,129 @@ public class LocalStorageServiceImpl implements StorageService, InitializingBean
         this.applicationArguments = applicationArguments;
     }
 
+    @Autowired(required = false)
+    public void setFileIndex(FileIndex fileIndex) {
+        this.fileIndex = fileIndex;
+    }
+
+    @Autowired(required = false)
+    public void setMeterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
     public void setBaseURI(@NotNull String baseURI) {
         this.baseURI = baseURI;
     }
 
+    /**
+     * In deduplicate mode, the content is stored once in <code>blobs/&lt;content hash&gt;</code> and every file id
+     * that has the same content links to it. The blob is removed with the last file id referring to it.
+     *
+     * @param deduplicate
+     */
+    public void setDeduplicate(boolean deduplicate) {
+        this.deduplicate = deduplicate;
+    }
+
+    public void setCompression(@NotNull Compression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Digest of new files. Files stored with another algorithm are still found by their ids.
+     *
+     * @param hashAlgorithm
+     */
+    public void setHashAlgorithm(@NotNull HashAlgorithm hashAlgorithm) {
+        this.hashAlgorithm = hashAlgorithm;
+    }
+
+    /**
+     * Listings of this many prefix and tag combinations are kept in memory. The cache is off if the size is 0.
+     *
+     * @param listingCacheSize
+     */
+    public void setListingCacheSize(int listingCacheSize) {
+        this.listingCacheSize = listingCacheSize;
+    }
+
+    /**
+     * @param listingCacheTtl seconds a listing is kept in the cache
+     */
+    public void setListingCacheTtl(long listingCacheTtl) {
+        this.listingCacheTtl = listingCacheTtl;
+    }
+
+    /**
+     * Watches the storage directory for files removed by other processes, and drops them from the index.
+     *
+     * @param watchStorage
+     */
+    public void setWatchStorage(boolean watchStorage) {
+        this.watchStorage = watchStorage;
+    }
+
+    /**
+     * Checks stored files against their hashes on start up, in the background, and moves corrupt files to
+     * <code>quarantine/</code>.
+     *
+     * @param scrub
+     */
+    public void setScrub(boolean scrub) {
+        this.scrub = scrub;
+    }
+
+    /**
+     * @param scrubThreads number of files checked at a time
+     */
+    public void setScrubThreads(int scrubThreads) {
+        this.scrubThreads = scrubThreads;
+    }
+
     @Override
     public void afterPropertiesSet() throws Exception {
-        if (applicationArguments != null) {
-            List<String> values = applicationArguments.getOptionValues(BASE_PATH_OPTION);
-            String argBasePath = values != null && values.size() == 1 ? values.get(0) : null;
-            if (argBasePath != null) {
-                setBaseURI(argBasePath);
+        String argBasePath = getOptionValue(BASE_PATH_OPTION);
+        if (argBasePath != null) {
+            setBaseURI(argBasePath);
+        }
+
+        if (applicationArguments != null && applicationArguments.containsOption(DEDUPLICATE_OPTION)) {
+            String argDeduplicate = getOptionValue(DEDUPLICATE_OPTION);
+            setDeduplicate(argDeduplicate == null || Boolean.parseBoolean(argDeduplicate));
+        }
+
+        String argCompression = getOptionValue(COMPRESSION_OPTION);
+        if (argCompression != null) {
+            try {
+                setCompression(Compression.valueOf(argCompression.toUpperCase()));
+            } catch (IllegalArgumentException e) {
+                logger.warn("Ignoring unknown compression: {}", argCompression);
+            }
+        }
+
+        String argHashAlgorithm = getOptionValue(HASH_ALGORITHM_OPTION);
+        if (argHashAlgorithm != null) {
+            try {
+                setHashAlgorithm(HashAlgorithm.of(argHashAlgorithm));
+            } catch (IllegalArgumentException e) {
+                logger.warn("Ignoring unknown hash algorithm: {}", argHashAlgorithm);
             }
         }
 
+        setListingCacheSize((int) getLongOptionValue(LISTING_CACHE_SIZE_OPTION, listingCacheSize));
+        setListingCacheTtl(getLongOptionValue(LISTING_CACHE_TTL_OPTION, listingCacheTtl));
+        if (applicationArguments != null && applicationArguments.containsOption(WATCH_STORAGE_OPTION)) {
+            String argWatchStorage = getOptionValue(WATCH_STORAGE_OPTION);
+            setWatchStorage(argWatchStorage == null || Boolean.parseBoolean(argWatchStorage));
+        }
+
+        if (applicationArguments != null && applicationArguments.containsOption(SCRUB_OPTION)) {
+            String argScrub = getOptionValue(SCRUB_OPTION);
+            setScrub(argScrub == null || Boolean.parseBoolean(argScrub));
+        }
+
+        setScrubThreads((int) getLongOptionValue(SCRUB_THREADS_OPTION, scrubThreads));
+
         File basePath = new File(baseURI);
         if (!basePath.exists()) {
             Files.createDirectories(basePath.toPath());
@@ -70,54 +267,441 @@ public class LocalStorageServiceImpl implements StorageService, InitializingBean
             Files.createDirectory(this.storagePath.toPath());
         }
 
-        this.infoPath = Paths.get(baseURI, INFO_DIR).toAbsolutePath().toFile();
-        if (!this.infoPath.exists()) {
-            Files.createDirectory(this.infoPath.toPath());
+        this.stagingPath = Paths.get(baseURI, STAGING_DIR).toAbsolutePath().toFile();
+        if (!this.stagingPath.exists()) {
+            Files.createDirectory(this.stagingPath.toPath());
+        } else {
+            clearStaging();
+        }
+
+        this.blobsPath = Paths.get(baseURI, BLOBS_DIR).toAbsolutePath().toFile();
+        if (deduplicate && !this.blobsPath.exists()) {
+            Files.createDirectory(this.blobsPath.toPath());
+        }
+
+        if (fileIndex == null) {
+            fileIndex = new LogFileIndex(Paths.get(baseURI, INDEX_FILE).toAbsolutePath());
+        }
+
+        metrics = new StorageMetrics(meterRegistry);
+        fileIndex.load();
+        Path infoPath = Paths.get(baseURI, INFO_DIR).toAbsolutePath();
+        if (Files.isDirectory(infoPath)) {
+            migrateDirectoryIndex(infoPath);
+        }
+
+        if (listingCacheSize > 0) {
+            listingCache = new ListingCache(listingCacheSize, TimeUnit.SECONDS.toMillis(listingCacheTtl));
+            if (meterRegistry != null) {
+                listingCache.bindTo(meterRegistry);
+            }
+        }
+
+        if (watchStorage) {
+            storageWatcher = new StorageWatcher(storagePath.toPath(), this::onStoredFileRemoved);
+            storageWatcher.start();
+        }
+
+        if (scrub) {
+            Thread scrubThread = new Thread(() -> {
+                try {
+                    scrubStorage();
+                } catch (IOException e) {
+                    logger.warn("Stopped checking stored files: {}", e.getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "storage-scrub");
+
+            scrubThread.setDaemon(true);
+            scrubThread.start();
+        }
+
+        resumePurges();
+        logger.info("File server with basePath: {}, deduplicate: {}, compression: {}, hashAlgorithm: {}, "
+                + "listingCacheSize: {}", baseURI, deduplicate, compression, hashAlgorithm, listingCacheSize);
+    }
+
+    /**
+     * Deletes, in the background, the files of prefixes removed before the last stop that were not deleted then.
+     */
+    private void resumePurges() {
+        final List<String> fileIds = new ArrayList<>(fileIndex.pendingPurges());
+        if (fileIds.isEmpty()) {
+            return;
         }
 
-        logger.info("File server with basePath: {}", baseURI);
+        Thread purgeThread = new Thread(() -> {
+            logger.info("Deleting {} files removed before the last stop", fileIds.size());
+            for (String fileId : fileIds) {
+                try {
+                    purgeFile(fileId);
+                } catch (IOException | RuntimeException e) {
+                    logger.warn("Skipping {}: {}", fileId, e.getMessage());
+                }
+            }
+        }, "storage-purge");
+
+        purgeThread.setDaemon(true);
+        purgeThread.start();
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (storageWatcher != null) {
+            storageWatcher.close();
+        }
+
+        fileIndex.close();
+    }
+
+    private String getOptionValue(String name) {
+        if (applicationArguments == null) {
+            return null;
+        }
+
+        List<String> values = applicationArguments.getOptionValues(name);
+        return values != null && values.size() == 1 ? values.get(0) : null;
+    }
+
+    private long getLongOptionValue(String name, long defaultValue) {
+        String value = getOptionValue(name);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            logger.warn("Ignoring {}: {}", name, value);
+            return defaultValue;
+        }
     }
 
     @Override
     public String saveFile(FileMetaData fileMetaData, FileTransferDelegate fileTransferDelegate) throws IOException {
-        String fileId = storeFile(fileMetaData, fileTransferDelegate);
-        indexFile(fileId, fileMetaData);
-        return fileId;
+        return metrics.recordStore(() -> storeFile(fileMetaData, fileTransferDelegate, null));
+    }
+
+    /**
+     * Streams the file to a staging file on the storage volume, hashing it on the way, and then moves it to
+     * <code>storage/&lt;hash&gt;/&lt;name&gt;</code> and indexes it. Falls back to the transfer delegate only if the
+     * file meta data has no input stream; a file transferred with a content hash of the hash algorithm is not hashed
+     * again. A gzip copy is written in the same pass, if compression is enabled for the
+     * file. Files of {@link DecompressingFileResource#MAX_SIZE} or more are kept uncompressed, as the length of a
+     * file stored only in gzip form is read from the gzip trailer.
+     *
+     * The staged file is synced to disk before it is renamed into place, so a crash can not leave a partial file
+     * under a file id. Files with the same id are placed one at a time, and a file already in place is kept.
+     */
+    private String storeFile(FileMetaData fileMetaData,
+                             FileTransferDelegate fileTransferDelegate,
+                             String tag) throws IOException {
+        boolean compress = compression != Compression.NONE && isCompressible(fileMetaData);
+        boolean keepIdentity = !compress || compression == Compression.SIDECAR;
+        Path stagedFile = Files.createTempFile(stagingPath.toPath(), "upload-", ".part");
+        Path stagedGzip = compress ? Files.createTempFile(stagingPath.toPath(), "upload-", GZIP_SUFFIX) : null;
+        try {
+            String hash;
+            if (fileMetaData.getInputStream() != null) {
+                long size;
+                try (OutputStream outputStream = keepIdentity ? Files.newOutputStream(stagedFile) : null;
+                     CountingOutputStream gzipStream = compress ? newGzipStream(stagedGzip) : null) {
+
+                    hash = metrics.record(StorageMetrics.TRANSFER,
+                            () -> transferAndHash(fileMetaData, hashAlgorithm, sinks(outputStream, gzipStream)));
+                    size = gzipStream == null ? 0 : gzipStream.getBytesWritten();
+                }
+
+                if (!keepIdentity && size >= DecompressingFileResource.MAX_SIZE) {
+                    decompress(stagedGzip, stagedFile);
+                    keepIdentity = true;
+                    compress = false;
+                }
+            } else {
+                fileTransferDelegate.doTransfer(stagedFile.toFile());
+                if (!keepIdentity && Files.size(stagedFile) >= DecompressingFileResource.MAX_SIZE) {
+                    keepIdentity = true;
+                    compress = false;
+                }
+
+                if (hashAlgorithm.isHashed(fileMetaData)) {
+                    // hashed already, as an upload combined from the hashes of its chunks
+                    hash = hashAlgorithm.fileIdOf(fileMetaData);
+                    if (compress) {
+                        try (OutputStream gzipStream = newGzipStream(stagedGzip)) {
+                            Files.copy(stagedFile, gzipStream);
+                        }
+                    }
+                } else {
+                    try (InputStream inputStream = Files.newInputStream(stagedFile);
+                         OutputStream gzipStream = compress ? newGzipStream(stagedGzip) : null) {
+
+                        FileMetaData stagedMetaData = new FileMetaData(
+                                fileMetaData.getOriginalName(),
+                                fileMetaData.getMimeType(),
+                                fileMetaData.getSize(),
+                                inputStream).withPathPrefix(fileMetaData.getPathPrefix());
+
+                        hash = metrics.record(StorageMetrics.TRANSFER,
+                                () -> transferAndHash(stagedMetaData, hashAlgorithm, sinks(gzipStream)));
+                        fileMetaData.setContentHash(stagedMetaData.getContentHash());
+                    }
+                }
+            }
+
+            Lock fileLock = fileLocks.get(hash);
+            fileLock.lock();
+            try {
+                File dest = new File(storagePath, hash);
+                if (!dest.exists()) {
+                    Files.createDirectories(dest.toPath());
+                    syncDirectory(storagePath.toPath());
+                }
+
+                // sizes are taken before placing, as placing moves the staged files
+                long identitySize = keepIdentity ? Files.size(stagedFile) : 0;
+                long gzipSize = compress ? Files.size(stagedGzip) : 0;
+                Path storedFile = new File(dest, fileMetaData.getOriginalName()).toPath();
+                if (keepIdentity) {
+                    metrics.countStored(identitySize);
+                    placeFile(stagedFile, fileMetaData, hash, storedFile, BLOB_CONTENT);
+                }
+
+                if (compress && (compression == Compression.ONLY || gzipSize < identitySize)) {
+                    metrics.countStored(gzipSize);
+                    placeFile(stagedGzip, fileMetaData, hash,
+                            storedFile.resolveSibling(storedFile.getFileName() + GZIP_SUFFIX),
+                            BLOB_CONTENT + GZIP_SUFFIX);
+                }
+
+                // indexed under the lock, so a purge of the same file id does not delete the file just placed
+                final String fileId = hash;
+                metrics.record(StorageMetrics.INDEX, () -> {
+                    fileIndex.add(fileId, fileMetaData.getOriginalName(), fileMetaData.getPathPrefix(), tag);
+                    return null;
+                });
+            } finally {
+                fileLock.unlock();
+            }
+
+            invalidateListings(fileMetaData.getPathPrefix());
+            return hash;
+        } finally {
+            Files.deleteIfExists(stagedFile);
+            if (stagedGzip != null) {
+                Files.deleteIfExists(stagedGzip);
+            }
+        }
+    }
+
+    /**
+     * @return a stream counting the bytes before compression
+     */
+    private static CountingOutputStream newGzipStream(Path path) throws IOException {
+        return new CountingOutputStream(new GZIPOutputStream(Files.newOutputStream(path), COMPRESSION_BUFFER_SIZE));
+    }
+
+    private static void decompress(Path compressedFile, Path file) throws IOException {
+        try (InputStream inputStream = new GZIPInputStream(Files.newInputStream(compressedFile),
+                COMPRESSION_BUFFER_SIZE)) {
+            Files.copy(inputStream, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static OutputStream[] sinks(OutputStream... outputStreams) {
+        return Arrays.stream(outputStreams).filter(Objects::nonNull).toArray(OutputStream[]::new);
+    }
+
+    private boolean isCompressible(FileMetaData fileMetaData) {
+        if (fileMetaData.getSize() != null && fileMetaData.getSize() < COMPRESSION_MIN_SIZE) {
+            return false;
+        }
+
+        String mimeType = fileMetaData.getMimeType();
+        if (mimeType != null && (mimeType.startsWith("text/") || mimeType.endsWith("xml") || mimeType.endsWith("json"))) {
+            return true;
+        }
+
+        String name = fileMetaData.getOriginalName();
+        int extensionIndex = name == null ? -1 : name.lastIndexOf('.');
+        return extensionIndex >= 0 && COMPRESSIBLE_EXTENSIONS.contains(name.substring(extensionIndex + 1).toLowerCase());
     }
 
-    private String storeFile(FileMetaData fileMetaData, FileTransferDelegate fileTransferDelegate) throws IOException {
-        String hash = calculateHash(fileMetaData);
-        File dest = new File(storagePath, hash);
-        if (!dest.exists()) {
-            Files.createDirectories(dest.toPath());
+    private void placeFile(Path stagedFile,
+                           FileMetaData fileMetaData,
+                           String fileId,
+                           Path storedFile,
+                           String blobName) throws IOException {
+
+        if (deduplicate) {
+            linkToBlob(stagedFile, fileMetaData.getContentHash(), fileId, storedFile, blobName);
+        } else if (!isInPlace(stagedFile, storedFile)) {
+            moveIntoPlace(stagedFile, storedFile);
+        }
+    }
+
+    /**
+     * @return true if the file is stored already with the staged content. The content is compared, not only the
+     * size, so a stored copy that has been damaged is replaced rather than kept.
+     */
+    private static boolean isInPlace(Path stagedFile, Path storedFile) throws IOException {
+        if (!Files.isRegularFile(storedFile) || Files.size(storedFile) != Files.size(stagedFile)) {
+            return false;
         }
 
-        fileTransferDelegate.doTransfer(new File(dest, fileMetaData.getOriginalName()));
-        return hash;
+        try (InputStream staged = Files.newInputStream(stagedFile);
+             InputStream stored = Files.newInputStream(storedFile)) {
+
+            byte[] stagedBytes = new byte[COMPARE_BUFFER_SIZE];
+            byte[] storedBytes = new byte[COMPARE_BUFFER_SIZE];
+            int read;
+            while ((read = readFully(staged, stagedBytes)) > 0) {
+                if (readFully(stored, storedBytes) != read
+                        || !ByteBuffer.wrap(stagedBytes, 0, read).equals(ByteBuffer.wrap(storedBytes, 0, read))) {
+                    return false;
+                }
+            }
+
+            return stored.read() == -1;
+        }
     }
 
-    private void indexFile(String fileId, FileMetaData fileMetaData) throws IOException {
-        Path indexedPath = fileMetaData.getPathPrefix() == null ?
-                Paths.get(infoPath.getAbsolutePath(), fileId) :
-                Paths.get(infoPath.getAbsolutePath(), fileMetaData.getPathPrefix(), fileId);
+    /**
+     * @return number of bytes read, less than the buffer only at the end of the stream
+     */
+    private static int readFully(InputStream inputStream, byte[] buffer) throws IOException {
+        int total = 0;
+        int read;
+        while (total < buffer.length && (read = inputStream.read(buffer, total, buffer.length - total)) != -1) {
+            total += read;
+        }
 
-        createIndex(fileId, fileMetaData, indexedPath);
+        return total;
     }
 
-    private void createIndex(String fileId, FileMetaData fileMetaData, Path indexedPath) throws IOException {
-        if (fileMetaData.getPathPrefix() != null) {
-            if (!Files.exists(indexedPath)) {
-                Files.createDirectories(indexedPath.getParent());
-                Files.createFile(indexedPath);
+    /**
+     * Moves the staged file to the blob store unless the content is already there, adds a reference from the file id
+     * to the blob and links the stored file to the blob.
+     */
+    private void linkToBlob(Path stagedFile,
+                            String contentHash,
+                            String fileId,
+                            Path storedFile,
+                            String blobName) throws IOException {
+
+        Path blobPath = Paths.get(blobsPath.getAbsolutePath(), contentHash);
+        Path blobContent = blobPath.resolve(blobName);
+        Lock blobLock = blobLocks.get(contentHash);
+        blobLock.lock();
+        try {
+            if (!isInPlace(stagedFile, blobContent)) {
+                Files.createDirectories(blobPath);
+                moveIntoPlace(stagedFile, blobContent);
             }
 
-            Path reverseIndex = Paths.get(infoPath.getAbsolutePath(), fileId, fileMetaData.getPathPrefix());
-            if (!Files.exists(reverseIndex)) {
-                Files.createDirectories(reverseIndex.getParent());
-                Files.createFile(reverseIndex);
+            Path reference = blobPath.resolve(BLOB_REFS).resolve(fileId);
+            if (!Files.exists(reference)) {
+                Files.createDirectories(reference.getParent());
+                Files.createFile(reference);
+                syncDirectory(reference.getParent());
+            }
+
+            if (!Files.exists(storedFile, LinkOption.NOFOLLOW_LINKS)) {
+                Files.createSymbolicLink(storedFile, blobContent);
+                syncDirectory(storedFile.getParent());
+            }
+        } finally {
+            blobLock.unlock();
+        }
+    }
+
+    /**
+     * Drops the references of a file id to blobs, and removes a blob once it is no longer referenced.
+     */
+    private void releaseBlobs(String fileId) throws IOException {
+        Path storedPath = Paths.get(storagePath.getAbsolutePath(), fileId);
+        if (!Files.exists(storedPath)) {
+            return;
+        }
+
+        try (Stream<Path> storedFiles = Files.list(storedPath)) {
+            storedFiles.filter(Files::isSymbolicLink).forEach(storedFile -> {
+                try {
+                    Path blobPath = Files.readSymbolicLink(storedFile).getParent();
+                    Path referencesPath = blobPath.resolve(BLOB_REFS);
+                    Lock blobLock = blobLocks.get(blobPath.getFileName().toString());
+                    blobLock.lock();
+                    try {
+                        if (!Files.exists(referencesPath)) {
+                            return;
+                        }
+
+                        Files.deleteIfExists(referencesPath.resolve(fileId));
+                        boolean unreferenced;
+                        try (Stream<Path> references = Files.list(referencesPath)) {
+                            unreferenced = !references.findAny().isPresent();
+                        }
+
+                        if (unreferenced) {
+                            FileSystemUtils.deleteRecursively(blobPath);
+                        }
+                    } finally {
+                        blobLock.unlock();
+                    }
+                } catch (IOException e) {
+                    logger.warn("Skipping {}: {}", storedFile, e.getMessage());
+                }
+            });
+        }
+    }
+
+    private void removeStoredFile(String fileId) throws IOException {
+        releaseBlobs(fileId);
+        FileSystemUtils.deleteRecursively(new File(storagePath, fileId));
+    }
+
+    /**
+     * Syncs the source to disk and renames it to the target, replacing a file left there. The rename is synced too,
+     * so the file is in place after a crash.
+     */
+    private void moveIntoPlace(Path source, Path target) throws IOException {
+        sync(source);
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        syncDirectory(target.getParent());
+    }
+
+    private static void sync(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Syncs the entries of a directory, where the platform supports it.
+     */
+    private void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            logger.debug("Could not sync {}: {}", directory, e.getMessage());
+        }
+    }
+
+    /**
+     * Deletes files left in staging by uploads that did not finish, before the server stopped.
+     */
+    private void clearStaging() throws IOException {
+        try (Stream<Path> stagedFiles = Files.list(stagingPath.toPath())) {
+            for (Path stagedFile : (Iterable<Path>) stagedFiles::iterator) {
+                logger.info("Deleting unfinished upload {}", stagedFile);
+                FileSystemUtils.deleteRecursively(stagedFile);
             }
-        } else {
-            Files.createDirectories(indexedPath);
         }
     }
 
@@ -126,67 +710,80 @@ public class LocalStorageServiceImpl implements StorageService, InitializingBean
                            FileTransferDelegate fileTransferDelegate,
                            String tag) throws IOException {
 
-        String fileId = saveFile(fileMetaData, fileTransferDelegate);
-        indexFileWithTag(fileId, fileMetaData, tag);
-        return fileId;
-    }
-
-    private void indexFileWithTag(String fileId, FileMetaData fileMetaData, String tag) throws IOException {
-        Path indexedPath = fileMetaData.getPathPrefix() == null ?
-                Paths.get(infoPath.getAbsolutePath(), tag, fileId) :
-                Paths.get(infoPath.getAbsolutePath(), fileMetaData.getPathPrefix(), tag, fileId);
-
-        createIndex(fileId, fileMetaData, indexedPath);
+        return metrics.recordStore(() -> storeFile(fileMetaData, fileTransferDelegate, tag));
     }
 
     @Override
     public void deleteFile(String fileId) throws IOException {
-        File file = new File(storagePath, fileId);
-        if (file.exists()) {
-            FileSystemUtils.deleteRecursively(file);
+        Lock fileLock = fileLocks.get(fileId);
+        fileLock.lock();
+        try {
+            File file = new File(storagePath, fileId);
+            if (file.exists()) {
+                removeStoredFile(fileId);
+            }
+
             removeFromIndex(fileId);
+        } finally {
+            fileLock.unlock();
         }
     }
 
     private void removeFromIndex(String fileId) throws IOException {
-        removeFromIndex(fileId, null);
+        Optional<IndexedFile> indexedFile = fileIndex.get(fileId);
+        if (fileIndex.remove(fileId)) {
+            invalidateListings(indexedFile.map(IndexedFile::getPathPrefix).orElse(null));
+        }
     }
 
-    private void removeFromIndex(String fileId, String tag) throws IOException {
-        File file = new File(infoPath, fileId);
-        if (Files.list(file.toPath()).count() > 0L) {
-            Files.list(file.toPath()).forEach(path -> {
-                String prefix = path.toFile().getName();
-                try {
-                    if (tag != null) {
-                        Files.delete(Paths.get(infoPath.getAbsolutePath(), prefix, tag, fileId));
-                    }
-
-                    Files.delete(Paths.get(infoPath.getAbsolutePath(), prefix, fileId));
-                } catch (IOException e) {
-                    logger.warn("Skipping {}: {}", path, e.getMessage());
-                }
-            });
-        } else if (tag != null) {
-            Files.delete(Paths.get(infoPath.getAbsolutePath(), tag, fileId));
+    private void invalidateListings(String prefix) {
+        if (listingCache != null && prefix != null) {
+            listingCache.invalidate(prefix);
         }
+    }
+
+    /**
+     * Checked under the lock of the file, so a file being saved or deleted by the server is not taken for one removed
+     * by another process, and a delete finds the file still indexed and drops its listings before it returns.
+     */
+    private void onStoredFileRemoved(String fileId) {
+        Lock fileLock = fileLocks.get(fileId);
+        fileLock.lock();
+        try {
+            if (Files.exists(storagePath.toPath().resolve(fileId)) || !fileIndex.get(fileId).isPresent()) {
+                return;
+            }
 
-        FileSystemUtils.deleteRecursively(file.toPath());
+            logger.info("Removing {} from index, it was deleted from storage", fileId);
+            removeFromIndex(fileId);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            fileLock.unlock();
+        }
     }
 
     @Override
     public void deleteFile(String fileId, String tag) throws IOException {
-        File file = new File(storagePath, fileId);
-        if (file.exists()) {
-            FileSystemUtils.deleteRecursively(file.toPath());
-            removeFromIndex(fileId, tag);
-        }
+        deleteFile(fileId);
     }
 
+    /**
+     * Times the lookup of the file; the content is read when it is served, and counted by {@link DownloadMetrics}.
+     */
     @Override
     public Resource getFile(String fileId, String fileName) throws FileNotFoundException {
+        return metrics.record(StorageMetrics.GET, () -> findFile(fileId, fileName));
+    }
+
+    private Resource findFile(String fileId, String fileName) throws FileNotFoundException {
         File file = Paths.get(storagePath.getAbsolutePath(), fileId, fileName).toFile();
         if (!file.exists()) {
+            File compressedFile = Paths.get(storagePath.getAbsolutePath(), fileId, fileName + GZIP_SUFFIX).toFile();
+            if (compressedFile.exists()) {
+                return new DecompressingFileResource(compressedFile, fileName);
+            }
+
             throw new FileNotFoundException(String.format("Not found %s/%s", fileId, fileName));
         }
 
@@ -194,72 +791,226 @@ public class LocalStorageServiceImpl implements StorageService, InitializingBean
     }
 
     @Override
-    public void removeFilesWithPrefix(String prefix) throws IOException {
-        Path prefixPath = Paths.get(infoPath.getAbsolutePath(), prefix);
-        if (!Files.exists(prefixPath)) {
-            return;
+    public Optional<Resource> getEncodedFile(String fileId, String fileName, String encoding) {
+        if (!GZIP_ENCODING.equals(encoding)) {
+            return Optional.empty();
         }
 
-        Files.list(prefixPath).forEach(path -> {
-            if (!Files.isDirectory(path)) {
-                String fileId = path.toFile().getName();
-                FileSystemUtils.deleteRecursively(new File(storagePath, fileId));
-                FileSystemUtils.deleteRecursively(new File(infoPath, fileId));
+        File compressedFile = Paths.get(storagePath.getAbsolutePath(), fileId, fileName + GZIP_SUFFIX).toFile();
+        return compressedFile.exists() ? Optional.of(new FileSystemResource(compressedFile)) : Optional.empty();
+    }
+
+    @Override
+    public void removeFilesWithPrefix(String prefix) throws IOException {
+        metrics.record(StorageMetrics.REMOVE_PREFIX, () -> {
+            for (String fileId : unindexFilesWithPrefix(prefix)) {
+                try {
+                    purgeFile(fileId);
+                } catch (IOException e) {
+                    logger.warn("Skipping {}: {}", fileId, e.getMessage());
+                }
             }
-        });
 
-        FileSystemUtils.deleteRecursively(Paths.get(infoPath.getAbsolutePath(), prefix));
+            return null;
+        });
     }
 
     @Override
-    public Stream<Path> listPaths(String prefix) {
-        Path prefixPath = Paths.get(infoPath.getAbsolutePath(), prefix);
-        if (!Files.exists(prefixPath)) {
-            return Stream.empty();
+    public List<String> unindexFilesWithPrefix(String prefix) throws IOException {
+        List<String> fileIds = fileIndex.list(prefix)
+                .map(IndexedFile::getFileId)
+                .collect(Collectors.toList());
+
+        for (String fileId : fileIds) {
+            fileIndex.removeForPurge(fileId);
         }
 
+        invalidateListings(prefix);
+        return fileIds;
+    }
+
+    @Override
+    public void purgeFile(String fileId) throws IOException {
+        Lock fileLock = fileLocks.get(fileId);
+        fileLock.lock();
         try {
-            return Files.list(prefixPath)
-                    .filter(path -> !Files.isDirectory(path))
-                    .flatMap(this::getStoragePaths);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            if (!fileIndex.get(fileId).isPresent() && new File(storagePath, fileId).exists()) {
+                removeStoredFile(fileId);
+            }
+
+            fileIndex.purged(fileId);
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    /**
+     * Checks stored files against their hashes, and moves corrupt files and blobs to <code>quarantine/</code>. Corrupt
+     * files are removed from the index.
+     *
+     * @return the corrupt files and blobs
+     */
+    StorageScrubber.Result scrubStorage() throws IOException, InterruptedException {
+        logger.info("Checking stored files with {} threads", scrubThreads);
+        StorageScrubber.Result result = new StorageScrubber(storagePath.toPath(), blobsPath.toPath(), fileIndex,
+                scrubThreads).scrub();
+
+        Path quarantinePath = Paths.get(baseURI, QUARANTINE_DIR).toAbsolutePath();
+        for (String fileId : result.getCorruptFiles()) {
+            Lock fileLock = fileLocks.get(fileId);
+            fileLock.lock();
+            try {
+                logger.warn("Quarantining corrupt file {}", fileId);
+                removeFromIndex(fileId);
+                quarantine(storagePath.toPath().resolve(fileId), quarantinePath.resolve(STORAGE_DIR));
+            } finally {
+                fileLock.unlock();
+            }
+        }
+
+        for (String contentHash : result.getCorruptBlobs()) {
+            Lock blobLock = blobLocks.get(contentHash);
+            blobLock.lock();
+            try {
+                logger.warn("Quarantining corrupt blob {}", contentHash);
+                quarantine(blobsPath.toPath().resolve(contentHash), quarantinePath.resolve(BLOBS_DIR));
+            } finally {
+                blobLock.unlock();
+            }
+        }
+
+        logger.info("Checked stored files, {} corrupt files and {} corrupt blobs",
+                result.getCorruptFiles().size(), result.getCorruptBlobs().size());
+
+        return result;
+    }
+
+    private void quarantine(Path source, Path quarantineDir) throws IOException {
+        if (!Files.exists(source, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+
+        Files.createDirectories(quarantineDir);
+        Path target = quarantineDir.resolve(source.getFileName());
+        if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+            target = quarantineDir.resolve(source.getFileName() + "-" + System.currentTimeMillis());
+        }
+
+        Files.move(source, target);
+    }
+
+    /**
+     * Listings are collected on a miss of the listing cache, so they can be cached, and timed as they are looked up or
+     * collected. Otherwise they are streamed from the index, and timed, as they are read.
+     */
+    @Override
+    public Stream<Path> listPaths(String prefix) {
+        if (listingCache != null) {
+            return metrics.record(StorageMetrics.LIST,
+                    () -> listingCache.get(prefix, null, () -> collectPaths(fileIndex.list(prefix)))).stream();
         }
+
+        return metrics.recordStream(StorageMetrics.LIST, fileIndex.list(prefix).flatMap(this::getStoragePaths));
     }
 
     @Override
     public Stream<Path> listPaths(String prefix, String tag) {
-        Path prefixPath = Paths.get(infoPath.getAbsolutePath(), prefix);
-        if (!Files.exists(prefixPath)) {
-            return Stream.empty();
+        if (listingCache != null) {
+            return metrics.record(StorageMetrics.LIST,
+                    () -> listingCache.get(prefix, tag, () -> collectPaths(fileIndex.list(prefix, tag)))).stream();
         }
 
-        try {
-            return Files.list(prefixPath)
-                    .filter(path -> Files.isDirectory(path) && path.toFile().getName().equals(tag))
-                    .flatMap(path -> {
-                        try {
-                            return Files.list(path);
-                        } catch (IOException e) {
-                            logger.warn("Skipping {}: {}", path, e.getMessage());
+        return metrics.recordStream(StorageMetrics.LIST, fileIndex.list(prefix, tag).flatMap(this::getStoragePaths));
+    }
+
+    @Override
+    public Stream<Path> listPaths(String prefix, String tag, String afterFileId, int limit) {
+        return metrics.recordStream(StorageMetrics.LIST, fileIndex.list(prefix, tag, afterFileId)
+                .limit(limit)
+                .flatMap(this::getStoragePaths));
+    }
+
+    private List<Path> collectPaths(Stream<IndexedFile> indexedFiles) {
+        return indexedFiles.flatMap(this::getStoragePaths).collect(Collectors.toList());
+    }
+
+    private Stream<Path> getStoragePaths(IndexedFile indexedFile) {
+        return indexedFile.getFileNames()
+                .stream()
+                .map(fileName -> Paths.get(storagePath.getAbsolutePath(), indexedFile.getFileId(), fileName));
+    }
+
+    /**
+     * Imports the directory tree index under <code>information/</code>, from earlier versions, to the file index and
+     * removes it.
+     *
+     * In the directory tree, <code>information/&lt;prefix&gt;/&lt;fileId&gt;</code> and
+     * <code>information/&lt;prefix&gt;/&lt;tag&gt;/&lt;fileId&gt;</code> are empty files. Files without a prefix are
+     * directories at <code>information/&lt;fileId&gt;</code> or <code>information/&lt;tag&gt;/&lt;fileId&gt;</code>,
+     * and <code>information/&lt;fileId&gt;/&lt;prefix&gt;</code> is the reverse index.
+     */
+    private void migrateDirectoryIndex(Path infoPath) throws IOException {
+        logger.info("Migrating {} to file index", infoPath);
+        try (Stream<Path> topLevel = Files.list(infoPath)) {
+            for (Path path : (Iterable<Path>) topLevel::iterator) {
+                String name = path.getFileName().toString();
+                if (!Files.isDirectory(path)) {
+                    continue;
+                }
+
+                if (isStoredFileId(name)) {
+                    try (Stream<Path> reverseIndex = Files.list(path)) {
+                        List<String> prefixes = reverseIndex
+                                .map(prefixPath -> prefixPath.getFileName().toString())
+                                .collect(Collectors.toList());
+
+                        if (prefixes.isEmpty()) {
+                            migrateIndexEntry(name, null, null);
                         }
 
-                        return Stream.empty();
-                    })
-                    .flatMap(this::getStoragePaths);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+                        for (String prefix : prefixes) {
+                            migrateIndexEntry(name, prefix, null);
+                        }
+                    }
+
+                    continue;
+                }
+
+                try (Stream<Path> children = Files.list(path)) {
+                    for (Path child : (Iterable<Path>) children::iterator) {
+                        String childName = child.getFileName().toString();
+                        if (!Files.isDirectory(child)) {
+                            migrateIndexEntry(childName, name, null);
+                        } else if (isStoredFileId(childName)) {
+                            migrateIndexEntry(childName, null, name);
+                        } else {
+                            try (Stream<Path> tagged = Files.list(child)) {
+                                for (Path taggedPath : (Iterable<Path>) tagged::iterator) {
+                                    migrateIndexEntry(taggedPath.getFileName().toString(), name, childName);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
         }
+
+        FileSystemUtils.deleteRecursively(infoPath);
     }
 
-    private Stream<? extends Path> getStoragePaths(Path path) {
-        String fileId = path.toFile().getName();
-        try {
-            return Files.list(Paths.get(storagePath.getAbsolutePath(), fileId));
-        } catch (IOException e) {
-            logger.warn("Skipping {}: {}", path, e.getMessage());
+    private boolean isStoredFileId(String name) {
+        return new File(storagePath, name).isDirectory();
+    }
+
+    private void migrateIndexEntry(String fileId, String prefix, String tag) throws IOException {
+        File[] storedFiles = new File(storagePath, fileId).listFiles();
+        if (storedFiles == null) {
+            logger.warn("Skipping {}: not in storage", fileId);
+            return;
         }
 
-        return Stream.empty();
+        for (File storedFile : storedFiles) {
+            fileIndex.add(fileId, storedFile.getName(), prefix, tag);
+        }
     }
 }
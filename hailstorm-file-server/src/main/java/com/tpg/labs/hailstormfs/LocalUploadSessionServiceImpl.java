@@ -0,0 +1,450 @@
+package com.tpg.labs.hailstormfs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.stereotype.Service;
+import org.springframework.util.FileSystemUtils;
+
+import javax.validation.constraints.NotNull;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Keeps upload sessions in <code>uploads/&lt;uploadId&gt;</code> under the storage base path, so an upload can be
+ * resumed after a restart. Each chunk is written to a temporary file and moved into place once it is complete, so a
+ * dropped connection never leaves a partial chunk behind.
+ *
+ * With the <code>sha256-tree</code> hash algorithm, chunks are hashed as {@link TreeHash} blocks while they are
+ * written, and the block hashes are kept next to each chunk in <code>&lt;index&gt;.leaves</code>. A chunk sent again is
+ * hashed again on its own, and the tree hash of the whole upload is combined from the blocks of all chunks without
+ * reading them, so a commit copies the chunks into storage without hashing them again. With other algorithms, chunks
+ * are hashed only to check a hash sent with them, and the upload is hashed by the storage on commit.
+ */
+@Service
+public class LocalUploadSessionServiceImpl implements UploadSessionService, InitializingBean {
+
+    static final String UPLOADS_DIR = "uploads";
+    static final int MAX_CHUNKS = 10000;
+
+    private static final String SESSION_FILE = "session.properties";
+    private static final String CHUNK_SUFFIX = ".chunk";
+    private static final String LEAVES_SUFFIX = ".leaves";
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+    private static final int LOCK_STRIPES = 64;
+    private static final Pattern CHUNK_NAME = Pattern.compile("(\\d+)\\.chunk");
+    private static final String FILE_NAME_PROPERTY = "fileName";
+    private static final String MIME_TYPE_PROPERTY = "mimeType";
+    private static final String PATH_PREFIX_PROPERTY = "pathPrefix";
+    private static final String SIZE_PROPERTY = "size";
+
+    String baseURI = LocalStorageServiceImpl.DEFAULT_BASE_PATH;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final Set<String> committing = ConcurrentHashMap.newKeySet();
+    private final StripedLock chunkLocks = new StripedLock(LOCK_STRIPES);
+    private ApplicationArguments applicationArguments;
+    private HashAlgorithm hashAlgorithm = HashAlgorithm.SHA1;
+    private Path uploadsPath;
+
+    @Autowired
+    public void setApplicationArguments(ApplicationArguments applicationArguments) {
+        this.applicationArguments = applicationArguments;
+    }
+
+    public void setBaseURI(@NotNull String baseURI) {
+        this.baseURI = baseURI;
+    }
+
+    /**
+     * @param hashAlgorithm of the storage, chunks are hashed as they are written if it is <code>sha256-tree</code>
+     */
+    public void setHashAlgorithm(@NotNull HashAlgorithm hashAlgorithm) {
+        this.hashAlgorithm = hashAlgorithm;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (applicationArguments != null) {
+            List<String> values = applicationArguments.getOptionValues(LocalStorageServiceImpl.BASE_PATH_OPTION);
+            if (values != null && values.size() == 1) {
+                setBaseURI(values.get(0));
+            }
+
+            List<String> hashAlgorithms =
+                    applicationArguments.getOptionValues(LocalStorageServiceImpl.HASH_ALGORITHM_OPTION);
+            if (hashAlgorithms != null && hashAlgorithms.size() == 1) {
+                try {
+                    setHashAlgorithm(HashAlgorithm.of(hashAlgorithms.get(0)));
+                } catch (IllegalArgumentException e) {
+                    logger.warn("Ignoring unknown hash algorithm: {}", hashAlgorithms.get(0));
+                }
+            }
+        }
+
+        uploadsPath = Paths.get(baseURI, UPLOADS_DIR).toAbsolutePath();
+    }
+
+    @Override
+    public UploadSession createSession(String fileName,
+                                       String mimeType,
+                                       String pathPrefix,
+                                       Long size) throws IOException {
+
+        UploadSession session = new UploadSession(UUID.randomUUID().toString(), fileName, mimeType, pathPrefix, size);
+        Path sessionPath = uploadsPath.resolve(session.getUploadId());
+        Files.createDirectories(sessionPath);
+
+        Properties properties = new Properties();
+        properties.setProperty(FILE_NAME_PROPERTY, fileName);
+        if (mimeType != null) {
+            properties.setProperty(MIME_TYPE_PROPERTY, mimeType);
+        }
+
+        if (pathPrefix != null) {
+            properties.setProperty(PATH_PREFIX_PROPERTY, pathPrefix);
+        }
+
+        if (size != null) {
+            properties.setProperty(SIZE_PROPERTY, size.toString());
+        }
+
+        try (Writer writer = Files.newBufferedWriter(sessionPath.resolve(SESSION_FILE), StandardCharsets.UTF_8)) {
+            properties.store(writer, null);
+        }
+
+        logger.debug("Created {}", session);
+        return session;
+    }
+
+    @Override
+    public UploadSession saveChunk(String uploadId,
+                                   int index,
+                                   InputStream content,
+                                   String expectedHash) throws IOException {
+
+        if (index < 0 || index >= MAX_CHUNKS) {
+            throw new IllegalArgumentException(String.format("Chunk index %d is not in [0, %d)", index, MAX_CHUNKS));
+        }
+
+        Path sessionPath = sessionPath(uploadId);
+        Path partFile = Files.createTempFile(sessionPath, index + "-", ".part");
+        try {
+            boolean keepLeaves = hashAlgorithm == HashAlgorithm.SHA256_TREE;
+            TreeHash.TreeDigest digest = keepLeaves || expectedHash != null
+                    ? new TreeHash.TreeDigest(TreeHash.POOL)
+                    : null;
+            try (OutputStream outputStream = Files.newOutputStream(partFile)) {
+                byte[] buffer = new byte[TRANSFER_BUFFER_SIZE];
+                int read;
+                while ((read = content.read(buffer)) != -1) {
+                    if (digest != null) {
+                        digest.update(buffer, 0, read);
+                    }
+
+                    outputStream.write(buffer, 0, read);
+                }
+            }
+
+            List<byte[]> leaves = digest != null ? digest.leaves() : null;
+            if (expectedHash != null && !expectedHash.equalsIgnoreCase(treeHashOf(leaves))) {
+                throw new IllegalArgumentException(String.format("Chunk %d of upload %s does not match %s",
+                        index, uploadId, expectedHash));
+            }
+
+            Path chunkFile = sessionPath.resolve(index + CHUNK_SUFFIX);
+            Path leavesFile = sessionPath.resolve(index + LEAVES_SUFFIX);
+            Lock chunkLock = chunkLocks.get(uploadId + "/" + index);
+            chunkLock.lock();
+            try {
+                // checked under the lock, so a commit waiting for the lock sees no chunk replaced after it
+                if (committing.contains(uploadId)) {
+                    throw new IllegalStateException(String.format("Upload %s is being committed", uploadId));
+                }
+
+                // a chunk without leaves has no hash, so the leaves of a replaced chunk never outlive it
+                Files.deleteIfExists(leavesFile);
+                moveReplacing(partFile, chunkFile);
+                if (keepLeaves) {
+                    Files.write(partFile, TreeHash.toBytes(leaves));
+                    moveReplacing(partFile, leavesFile);
+                }
+            } finally {
+                chunkLock.unlock();
+            }
+        } finally {
+            Files.deleteIfExists(partFile);
+        }
+
+        return readSession(uploadId, sessionPath);
+    }
+
+    @Override
+    public UploadSession getSession(String uploadId) throws IOException {
+        return readSession(uploadId, sessionPath(uploadId));
+    }
+
+    @Override
+    public FileMetaData commit(String uploadId, FileSaver fileSaver) throws IOException {
+        Path sessionPath = sessionPath(uploadId);
+        if (!committing.add(uploadId)) {
+            throw new IllegalStateException(String.format("Upload %s is being committed", uploadId));
+        }
+
+        try {
+            awaitChunksInPlace(uploadId, sessionPath);
+            UploadSession session = readSession(uploadId, sessionPath);
+            List<UploadSession.Chunk> chunks = session.getChunks();
+            if (chunks.isEmpty() || chunks.get(chunks.size() - 1).getIndex() != chunks.size() - 1) {
+                throw new IllegalStateException(String.format("Upload %s is missing chunks", uploadId));
+            }
+
+            if (session.getSize() != null && session.getSize() != session.getReceivedBytes()) {
+                throw new IllegalStateException(String.format("Upload %s has %d of %d bytes",
+                        uploadId, session.getReceivedBytes(), session.getSize()));
+            }
+
+            List<Path> chunkFiles = chunks.stream()
+                    .map(chunk -> sessionPath.resolve(chunk.getIndex() + CHUNK_SUFFIX))
+                    .collect(Collectors.toList());
+
+            FileMetaData fileMetaData;
+            if (session.getContentHash() != null) {
+                fileMetaData = new FileMetaData(session.getFileName(),
+                        session.getMimeType(),
+                        session.getReceivedBytes(),
+                        null).withPathPrefix(session.getPathPrefix());
+
+                fileMetaData.setContentHash(session.getContentHash());
+                fileMetaData.setId(fileSaver.saveFile(fileMetaData, dest -> concatenate(chunkFiles, dest.toPath())));
+            } else {
+                try (InputStream inputStream = new SequenceInputStream(openInOrder(chunkFiles.iterator()))) {
+                    fileMetaData = new FileMetaData(session.getFileName(),
+                            session.getMimeType(),
+                            session.getReceivedBytes(),
+                            inputStream).withPathPrefix(session.getPathPrefix());
+
+                    fileMetaData.setId(fileSaver.saveFile(fileMetaData,
+                            dest -> Files.copy(inputStream, dest.toPath(), StandardCopyOption.REPLACE_EXISTING)));
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+            }
+
+            FileSystemUtils.deleteRecursively(sessionPath);
+            logger.debug("Committed {} as {}", session, fileMetaData.getId());
+            return fileMetaData;
+        } finally {
+            committing.remove(uploadId);
+        }
+    }
+
+    @Override
+    public void abort(String uploadId) throws IOException {
+        FileSystemUtils.deleteRecursively(sessionPath(uploadId));
+    }
+
+    private static void moveReplacing(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Waits for chunks being moved into place when the commit started. Chunks sent once it has started are rejected.
+     */
+    private void awaitChunksInPlace(String uploadId, Path sessionPath) throws IOException {
+        List<Integer> indexes;
+        try (Stream<Path> files = Files.list(sessionPath)) {
+            indexes = files.map(path -> CHUNK_NAME.matcher(path.getFileName().toString()))
+                    .filter(Matcher::matches)
+                    .map(matcher -> Integer.valueOf(matcher.group(1)))
+                    .collect(Collectors.toList());
+        }
+
+        for (Integer index : indexes) {
+            Lock chunkLock = chunkLocks.get(uploadId + "/" + index);
+            chunkLock.lock();
+            chunkLock.unlock();
+        }
+    }
+
+    /**
+     * Copies the chunks to the file in order, within the kernel where it can. The chunks are copied rather than moved,
+     * so they are still there to commit again if storing the file fails.
+     */
+    private static void concatenate(List<Path> chunkFiles, Path file) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            for (Path chunkFile : chunkFiles) {
+                try (FileChannel chunkChannel = FileChannel.open(chunkFile, StandardOpenOption.READ)) {
+                    long size = chunkChannel.size();
+                    long position = 0;
+                    while (position < size) {
+                        position += chunkChannel.transferTo(position, size - position, fileChannel);
+                    }
+                }
+            }
+        }
+    }
+
+    private static String treeHashOf(List<byte[]> leaves) {
+        return HashAlgorithm.SHA256_TREE.idOf(TreeHash.root(leaves));
+    }
+
+    /**
+     * Opens each chunk only when the previous one has been read, so a commit holds one file open at a time.
+     */
+    private static Enumeration<InputStream> openInOrder(Iterator<Path> chunkFiles) {
+        return new Enumeration<InputStream>() {
+            @Override
+            public boolean hasMoreElements() {
+                return chunkFiles.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                try {
+                    return Files.newInputStream(chunkFiles.next());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    private Path sessionPath(String uploadId) throws FileNotFoundException {
+        try {
+            UUID.fromString(uploadId);
+        } catch (IllegalArgumentException e) {
+            throw new FileNotFoundException(String.format("Not found upload %s", uploadId));
+        }
+
+        Path sessionPath = uploadsPath.resolve(uploadId);
+        if (!Files.isRegularFile(sessionPath.resolve(SESSION_FILE))) {
+            throw new FileNotFoundException(String.format("Not found upload %s", uploadId));
+        }
+
+        return sessionPath;
+    }
+
+    private UploadSession readSession(String uploadId, Path sessionPath) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(sessionPath.resolve(SESSION_FILE), StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+
+        String size = properties.getProperty(SIZE_PROPERTY);
+        UploadSession session = new UploadSession(uploadId,
+                properties.getProperty(FILE_NAME_PROPERTY),
+                properties.getProperty(MIME_TYPE_PROPERTY),
+                properties.getProperty(PATH_PREFIX_PROPERTY),
+                size == null ? null : Long.valueOf(size));
+
+        Map<Integer, List<byte[]>> chunkLeaves = new HashMap<>();
+        try (Stream<Path> files = Files.list(sessionPath)) {
+            files.map(path -> toChunk(path, chunkLeaves))
+                    .filter(Objects::nonNull)
+                    .sorted(Comparator.comparingInt(UploadSession.Chunk::getIndex))
+                    .forEach(session::addChunk);
+        }
+
+        session.setContentHash(combinedHashOf(session.getChunks(), chunkLeaves));
+        return session;
+    }
+
+    private UploadSession.Chunk toChunk(Path path, Map<Integer, List<byte[]>> chunkLeaves) {
+        Matcher matcher = CHUNK_NAME.matcher(path.getFileName().toString());
+        if (!matcher.matches()) {
+            return null;
+        }
+
+        int index = Integer.parseInt(matcher.group(1));
+        try {
+            long size = Files.size(path);
+            List<byte[]> leaves = readLeaves(path.resolveSibling(index + LEAVES_SUFFIX), size);
+            if (leaves == null) {
+                return new UploadSession.Chunk(index, size);
+            }
+
+            chunkLeaves.put(index, leaves);
+            return new UploadSession.Chunk(index, size, treeHashOf(leaves));
+        } catch (IOException e) {
+            // replaced or removed while listing
+            return null;
+        }
+    }
+
+    /**
+     * @return leaves of a chunk, or null if they are missing or do not match its size
+     */
+    private static List<byte[]> readLeaves(Path leavesFile, long chunkSize) throws IOException {
+        if (!Files.isRegularFile(leavesFile)) {
+            return null;
+        }
+
+        List<byte[]> leaves = TreeHash.fromBytes(Files.readAllBytes(leavesFile));
+        long blocks = Math.max(1, (chunkSize + TreeHash.BLOCK_SIZE - 1) / TreeHash.BLOCK_SIZE);
+        return leaves.size() == blocks ? leaves : null;
+    }
+
+    /**
+     * The blocks of the chunks are the blocks of the file only if every chunk but the last is a whole number of
+     * blocks.
+     *
+     * @return tree hash of the chunks in order, or null if it cannot be combined from their leaves
+     */
+    private static String combinedHashOf(List<UploadSession.Chunk> chunks, Map<Integer, List<byte[]>> chunkLeaves) {
+        List<byte[]> leaves = new ArrayList<>();
+        for (int i = 0; i < chunks.size(); i++) {
+            UploadSession.Chunk chunk = chunks.get(i);
+            boolean last = i == chunks.size() - 1;
+            if (chunk.getIndex() != i
+                    || !chunkLeaves.containsKey(i)
+                    || (!last && (chunk.getSize() == 0 || chunk.getSize() % TreeHash.BLOCK_SIZE != 0))
+                    || (last && i > 0 && chunk.getSize() == 0)) {
+                return null;
+            }
+
+            leaves.addAll(chunkLeaves.get(i));
+        }
+
+        return leaves.isEmpty() ? null : treeHashOf(leaves);
+    }
+}
@@ -0,0 +1,410 @@
+package com.tpg.labs.hailstormfs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * {@link FileIndex} kept in memory and persisted as an append-only log. The log is replayed on {@link #load()} and
+ * compacted if it has records of removed files. It is also compacted while the index is in use, once the records of
+ * removed files are at least {@link #MIN_DEAD_RECORDS} and as many as the files indexed.
+ *
+ * Each record is synced to disk before the change returns, as the files it indexes are, so a stored file is not left
+ * out of the index, nor a removed one back in it, after a power loss.
+ *
+ * Each line in the log is a record with URL encoded, tab separated fields:
+ * <pre>
+ * A fileId prefix tag fileName
+ * R fileId
+ * P fileId
+ * X fileId
+ * </pre>
+ *
+ * A <code>P</code> record removes a file like <code>R</code>, and keeps it as a pending purge until an <code>X</code>
+ * record for it.
+ */
+public class LogFileIndex implements FileIndex {
+
+    private static final String ADD_RECORD = "A";
+    private static final String REMOVE_RECORD = "R";
+    private static final String PURGE_RECORD = "P";
+    private static final String PURGED_RECORD = "X";
+    private static final String FIELD_SEPARATOR = "\t";
+    private static final char TAG_SEPARATOR = '\u0000';
+
+    static final int MIN_DEAD_RECORDS = 10000;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final Path logPath;
+    private final ConcurrentMap<String, IndexedFile> files = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, NavigableSet<String>> listings = new ConcurrentHashMap<>();
+    private final Set<String> pendingPurges = ConcurrentHashMap.newKeySet();
+    // guards the log channel; virtual threads are pinned to their carrier while waiting on a monitor
+    private final Lock logLock = new ReentrantLock();
+    private final int minDeadRecords;
+    private FileChannel logChannel;
+    // records in the log of files since removed, and of purges since done, estimated as the file names and tags
+    // of the removed files
+    private int deadRecords;
+
+    public LogFileIndex(Path logPath) {
+        this(logPath, MIN_DEAD_RECORDS);
+    }
+
+    LogFileIndex(Path logPath, int minDeadRecords) {
+        this.logPath = logPath;
+        this.minDeadRecords = minDeadRecords;
+    }
+
+    @Override
+    public void load() throws IOException {
+        logLock.lock();
+        try {
+            replayLog();
+        } finally {
+            logLock.unlock();
+        }
+    }
+
+    private void replayLog() throws IOException {
+        files.clear();
+        listings.clear();
+        pendingPurges.clear();
+        boolean compact = false;
+        if (Files.exists(logPath)) {
+            try (BufferedReader reader = Files.newBufferedReader(logPath, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    compact |= !replay(line);
+                }
+            }
+        }
+
+        if (compact) {
+            compact();
+        }
+
+        deadRecords = 0;
+        openLog();
+
+        logger.info("Loaded {} files from {}", files.size(), logPath);
+    }
+
+    /**
+     * @return false if the record is not live any more, or could not be read
+     */
+    private boolean replay(String line) throws UnsupportedEncodingException {
+        String[] fields = line.split(FIELD_SEPARATOR, -1);
+        if (fields.length == 5 && fields[0].equals(ADD_RECORD)) {
+            addToMemory(decode(fields[1]), decode(fields[4]), decode(fields[2]), decode(fields[3]));
+            return true;
+        }
+
+        if (fields.length == 2 && fields[0].equals(REMOVE_RECORD)) {
+            removeFromMemory(decode(fields[1]));
+            return false;
+        }
+
+        if (fields.length == 2 && fields[0].equals(PURGE_RECORD)) {
+            removeFromMemory(decode(fields[1]));
+            pendingPurges.add(decode(fields[1]));
+            return false;
+        }
+
+        if (fields.length == 2 && fields[0].equals(PURGED_RECORD)) {
+            pendingPurges.remove(decode(fields[1]));
+            return false;
+        }
+
+        logger.warn("Skipping unreadable index record: {}", line);
+        return false;
+    }
+
+    private void openLog() throws IOException {
+        logChannel = FileChannel.open(logPath,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Compacts the log once enough of it is dead. Called with the log lock held, after a record is appended, so the
+     * change is in the log whether the compaction succeeds or not.
+     */
+    private void compactIfDead() {
+        if (deadRecords < minDeadRecords || deadRecords < files.size()) {
+            return;
+        }
+
+        deadRecords = 0;
+        try {
+            logChannel.close();
+            try {
+                compact();
+                logger.info("Compacted {} to {} files", logPath, files.size());
+            } finally {
+                openLog();
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to compact {}: {}", logPath, e.getMessage());
+        }
+    }
+
+    private void compact() throws IOException {
+        Path compactedPath = logPath.resolveSibling(logPath.getFileName() + ".compact");
+        try (FileChannel channel = FileChannel.open(compactedPath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            Writer writer = Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), -1);
+            for (IndexedFile indexedFile : files.values()) {
+                for (String fileName : indexedFile.getFileNames()) {
+                    writer.write(addRecord(indexedFile.getFileId(), fileName, indexedFile.getPathPrefix(), null));
+                }
+
+                for (String tag : indexedFile.getTags()) {
+                    writer.write(addRecord(indexedFile.getFileId(),
+                            indexedFile.getFileNames().iterator().next(), indexedFile.getPathPrefix(), tag));
+                }
+            }
+
+            for (String fileId : pendingPurges) {
+                writer.write(fileRecord(PURGE_RECORD, fileId));
+            }
+
+            writer.flush();
+            channel.force(true);
+        }
+
+        try {
+            Files.move(compactedPath, logPath, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(compactedPath, logPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Override
+    public void add(String fileId, String fileName, String prefix, String tag) throws IOException {
+        logLock.lock();
+        try {
+            if (addToMemory(fileId, fileName, prefix, tag)) {
+                append(addRecord(fileId, fileName, prefix, tag));
+            }
+        } finally {
+            logLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(String fileId) throws IOException {
+        logLock.lock();
+        try {
+            IndexedFile indexedFile = files.get(fileId);
+            if (!removeFromMemory(fileId)) {
+                return false;
+            }
+
+            append(fileRecord(REMOVE_RECORD, fileId));
+            deadRecords += records(indexedFile) + 1;
+            compactIfDead();
+            return true;
+        } finally {
+            logLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean removeForPurge(String fileId) throws IOException {
+        logLock.lock();
+        try {
+            IndexedFile indexedFile = files.get(fileId);
+            if (!removeFromMemory(fileId)) {
+                return false;
+            }
+
+            pendingPurges.add(fileId);
+            append(fileRecord(PURGE_RECORD, fileId));
+            deadRecords += records(indexedFile);
+            compactIfDead();
+            return true;
+        } finally {
+            logLock.unlock();
+        }
+    }
+
+    @Override
+    public void purged(String fileId) throws IOException {
+        logLock.lock();
+        try {
+            if (pendingPurges.remove(fileId)) {
+                append(fileRecord(PURGED_RECORD, fileId));
+                // the purge record, and this one
+                deadRecords += 2;
+                compactIfDead();
+            }
+        } finally {
+            logLock.unlock();
+        }
+    }
+
+    @Override
+    public Set<String> pendingPurges() {
+        return Collections.unmodifiableSet(pendingPurges);
+    }
+
+    @Override
+    public Optional<IndexedFile> get(String fileId) {
+        return Optional.ofNullable(files.get(fileId));
+    }
+
+    @Override
+    public Stream<IndexedFile> list(String prefix) {
+        return listing(listingKey(prefix, null), null);
+    }
+
+    @Override
+    public Stream<IndexedFile> list(String prefix, String tag) {
+        return listing(listingKey(prefix, tag), null);
+    }
+
+    @Override
+    public Stream<IndexedFile> list(String prefix, String tag, String afterFileId) {
+        return listing(listingKey(prefix, tag), afterFileId);
+    }
+
+    private Stream<IndexedFile> listing(String key, String afterFileId) {
+        NavigableSet<String> fileIds = listings.getOrDefault(key, Collections.emptyNavigableSet());
+        return (afterFileId == null ? fileIds : fileIds.tailSet(afterFileId, false))
+                .stream()
+                .map(files::get)
+                .filter(Objects::nonNull);
+    }
+
+    @Override
+    public void close() throws IOException {
+        logLock.lock();
+        try {
+            if (logChannel != null) {
+                logChannel.close();
+                logChannel = null;
+            }
+        } finally {
+            logLock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the index changed
+     */
+    private boolean addToMemory(String fileId, String fileName, String prefix, String tag) {
+        IndexedFile indexedFile = files.computeIfAbsent(fileId, (key) -> new IndexedFile(fileId, prefix));
+        boolean changed = indexedFile.addFileName(fileName);
+        if (prefix != null) {
+            changed |= listings.computeIfAbsent(listingKey(prefix, null), (key) -> new ConcurrentSkipListSet<>())
+                    .add(fileId);
+        }
+
+        if (tag != null) {
+            changed |= indexedFile.addTag(tag);
+            if (prefix != null) {
+                changed |= listings.computeIfAbsent(listingKey(prefix, tag), (key) -> new ConcurrentSkipListSet<>())
+                        .add(fileId);
+            }
+        }
+
+        return changed;
+    }
+
+    private boolean removeFromMemory(String fileId) {
+        IndexedFile indexedFile = files.remove(fileId);
+        if (indexedFile == null) {
+            return false;
+        }
+
+        if (indexedFile.getPathPrefix() != null) {
+            removeListing(listingKey(indexedFile.getPathPrefix(), null), fileId);
+            for (String tag : indexedFile.getTags()) {
+                removeListing(listingKey(indexedFile.getPathPrefix(), tag), fileId);
+            }
+        }
+
+        return true;
+    }
+
+    private void removeListing(String key, String fileId) {
+        NavigableSet<String> fileIds = listings.get(key);
+        if (fileIds != null) {
+            fileIds.remove(fileId);
+            if (fileIds.isEmpty()) {
+                listings.remove(key, fileIds);
+            }
+        }
+    }
+
+    private void append(String record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(record.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            logChannel.write(buffer);
+        }
+
+        logChannel.force(false);
+    }
+
+    /**
+     * @return the add records of a file in a compacted log
+     */
+    private static int records(IndexedFile indexedFile) {
+        return indexedFile == null ? 0 : indexedFile.getFileNames().size() + indexedFile.getTags().size();
+    }
+
+    private static String listingKey(String prefix, String tag) {
+        return tag == null ? prefix : prefix + TAG_SEPARATOR + tag;
+    }
+
+    private static String fileRecord(String type, String fileId) throws UnsupportedEncodingException {
+        return type + FIELD_SEPARATOR + encode(fileId) + "\n";
+    }
+
+    private static String addRecord(String fileId, String fileName, String prefix, String tag)
+            throws UnsupportedEncodingException {
+
+        return new StringBuilder(ADD_RECORD)
+                .append(FIELD_SEPARATOR).append(encode(fileId))
+                .append(FIELD_SEPARATOR).append(encode(prefix))
+                .append(FIELD_SEPARATOR).append(encode(tag))
+                .append(FIELD_SEPARATOR).append(encode(fileName))
+                .append('\n')
+                .toString();
+    }
+
+    private static String encode(String value) throws UnsupportedEncodingException {
+        return value == null ? "" : URLEncoder.encode(value, StandardCharsets.UTF_8.name());
+    }
+
+    private static String decode(String value) throws UnsupportedEncodingException {
+        return value.isEmpty() ? null : URLDecoder.decode(value, StandardCharsets.UTF_8.name());
+    }
+}
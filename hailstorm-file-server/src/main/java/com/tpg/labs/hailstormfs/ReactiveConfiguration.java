@@ -0,0 +1,47 @@
+package com.tpg.labs.hailstormfs;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.web.embedded.netty.NettyReactiveWebServerFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.reactive.config.CorsRegistry;
+import org.springframework.web.reactive.config.WebFluxConfigurer;
+import org.springframework.web.server.WebFilter;
+
+/**
+ * Configuration of the reactive stack, used if the server is started with
+ * <code>--spring.main.web-application-type=reactive</code>. Requests are served on the Netty event loop by
+ * {@link ReactiveFsController} and {@link ReactiveReportsController}.
+ */
+@Configuration
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveConfiguration implements WebFluxConfigurer {
+
+    private Logger logger = LoggerFactory.getLogger(ReactiveConfiguration.class);
+
+    /**
+     * Netty is preferred over Tomcat, which is on the class path for the servlet stack.
+     */
+    @Bean
+    public NettyReactiveWebServerFactory nettyReactiveWebServerFactory() {
+        return new NettyReactiveWebServerFactory();
+    }
+
+    @Bean
+    public WebFilter downloadMetricsWebFilter(ObjectProvider<MeterRegistry> meterRegistry) {
+        return new DownloadMetricsWebFilter(new DownloadMetrics(meterRegistry.getIfAvailable()));
+    }
+
+    @Override
+    public void addCorsMappings(CorsRegistry registry) {
+        logger.info("Configuring Global CORS");
+        registry.addMapping("/**")
+                .allowedOrigins("*")
+                .allowedMethods("GET", "HEAD", "PUT", "PATCH", "POST", "DELETE", "OPTIONS")
+                .allowedHeaders("*");
+    }
+}
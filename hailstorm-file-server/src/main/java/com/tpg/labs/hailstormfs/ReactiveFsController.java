@@ -0,0 +1,222 @@
+package com.tpg.labs.hailstormfs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.multipart.Part;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.stereotype.Controller;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.FileNotFoundException;
+import java.net.URI;
+import java.net.URL;
+import java.util.Optional;
+
+import static com.tpg.labs.hailstormfs.ReactiveTransfers.blocking;
+import static com.tpg.labs.hailstormfs.ReactiveTransfers.withInputStream;
+
+/**
+ * {@link HailstormFsController} for the reactive stack. Uploads are read from the connection only as fast as they are
+ * stored, and downloads are sent with zero-copy transfer by the server.
+ */
+@Controller
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveFsController {
+
+    private static final int DOWNLOAD_BUFFER_SIZE = 64 * 1024;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final StorageService storageService;
+    private final UploadSessionService uploadSessionService;
+    private final DeletionJobService deletionJobService;
+
+    @Autowired
+    public ReactiveFsController(StorageService storageService,
+                                UploadSessionService uploadSessionService,
+                                DeletionJobService deletionJobService) {
+        this.storageService = storageService;
+        this.uploadSessionService = uploadSessionService;
+        this.deletionJobService = deletionJobService;
+    }
+
+    @PostMapping(value = "/upload", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public Mono<ResponseEntity<FileMetaData>> uploadFile(@RequestBody Mono<MultiValueMap<String, Part>> parts,
+                                                         @RequestParam(value = "prefix",
+                                                                 required = false) String pathPrefix) {
+
+        return parts.flatMap(multipart -> ReactiveTransfers.saveMultipartFile(multipart, pathPrefix,
+                storageService::saveFile))
+                .doOnNext(fileMetaData -> logger.debug("fileMetaData: {}", fileMetaData))
+                .map(ResponseEntity::ok)
+                .onErrorReturn(IllegalArgumentException.class, ResponseEntity.badRequest().build());
+    }
+
+    @PostMapping("/uploads")
+    public Mono<ResponseEntity<UploadSession>> createUpload(@RequestParam("fileName") String fileName,
+                                                            @RequestParam(value = "prefix",
+                                                                    required = false) String pathPrefix,
+                                                            @RequestParam(value = "mimeType",
+                                                                    required = false) String mimeType,
+                                                            @RequestParam(value = "size",
+                                                                    required = false) Long size) {
+
+        return blocking(() -> uploadSessionService.createSession(fileName, mimeType, pathPrefix, size))
+                .map(session -> ResponseEntity.created(URI.create("/uploads/" + session.getUploadId()))
+                        .body(session));
+    }
+
+    @PutMapping("/uploads/{uploadId}/chunks/{index}")
+    public Mono<ResponseEntity<UploadSession>> uploadChunk(@PathVariable("uploadId") String uploadId,
+                                                           @PathVariable("index") int index,
+                                                           @RequestParam(value = "hash",
+                                                                   required = false) String hash,
+                                                           @RequestBody Flux<DataBuffer> content) {
+
+        return withInputStream(content,
+                inputStream -> uploadSessionService.saveChunk(uploadId, index, inputStream, hash))
+                .map(ResponseEntity::ok)
+                .onErrorReturn(FileNotFoundException.class, ResponseEntity.notFound().build())
+                .onErrorReturn(IllegalArgumentException.class, ResponseEntity.badRequest().build())
+                .onErrorReturn(IllegalStateException.class, ResponseEntity.status(HttpStatus.CONFLICT).build());
+    }
+
+    @GetMapping("/uploads/{uploadId}")
+    public Mono<ResponseEntity<UploadSession>> getUpload(@PathVariable("uploadId") String uploadId) {
+        return blocking(() -> uploadSessionService.getSession(uploadId))
+                .map(ResponseEntity::ok)
+                .onErrorReturn(FileNotFoundException.class, ResponseEntity.notFound().build());
+    }
+
+    @PostMapping("/uploads/{uploadId}/commit")
+    public Mono<ResponseEntity<FileMetaData>> commitUpload(@PathVariable("uploadId") String uploadId) {
+        return blocking(() -> uploadSessionService.commit(uploadId, storageService::saveFile))
+                .map(ResponseEntity::ok)
+                .onErrorReturn(FileNotFoundException.class, ResponseEntity.notFound().build())
+                .onErrorReturn(IllegalStateException.class, ResponseEntity.status(HttpStatus.CONFLICT).build());
+    }
+
+    @DeleteMapping("/uploads/{uploadId}")
+    public Mono<ResponseEntity<Void>> abortUpload(@PathVariable("uploadId") String uploadId) {
+        return blocking(() -> {
+            uploadSessionService.abort(uploadId);
+            return ResponseEntity.noContent().<Void>build();
+        }).onErrorReturn(FileNotFoundException.class, ResponseEntity.notFound().build());
+    }
+
+    @DeleteMapping("/{fileId}")
+    public Mono<ResponseEntity<Void>> deleteFile(@PathVariable("fileId") String fileId) {
+        logger.debug("path: {}", fileId);
+        return blocking(() -> {
+            storageService.deleteFile(fileId);
+            return ResponseEntity.ok().<Void>build();
+        });
+    }
+
+    /**
+     * Serves a stored file, with the same conditional request and content coding support as
+     * {@link HailstormFsController#serveFile}. Ranges are applied by the server to file resources.
+     */
+    @GetMapping("/{fileId}/{fileName}")
+    public Mono<ResponseEntity<?>> serveFile(@PathVariable("fileId") String fileId,
+                                             @PathVariable("fileName") String fileName,
+                                             @RequestHeader(value = HttpHeaders.IF_RANGE,
+                                                     required = false) String ifRange,
+                                             @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING,
+                                                     required = false) String acceptEncoding,
+                                             ServerWebExchange exchange) {
+
+        logger.debug("fileId: {}, fileName: {}", fileId, fileName);
+        final boolean acceptsGzip =
+                HailstormFsController.acceptsEncoding(acceptEncoding, HailstormFsController.GZIP_ENCODING);
+
+        return blocking(() -> storageService.getFile(fileId, fileName))
+                .zipWhen(file -> blocking(() -> acceptsGzip
+                        ? storageService.getEncodedFile(fileId, fileName, HailstormFsController.GZIP_ENCODING)
+                        : Optional.<Resource>empty()))
+                .flatMap(files -> serveResource(fileId, fileName, files.getT1(), files.getT2().orElse(null),
+                        ifRange, exchange))
+                .onErrorResume(FileNotFoundException.class, e -> Mono.just(ResponseEntity.notFound().build()));
+    }
+
+    private Mono<ResponseEntity<?>> serveResource(String fileId,
+                                                  String fileName,
+                                                  Resource file,
+                                                  Resource encodedFile,
+                                                  String ifRange,
+                                                  ServerWebExchange exchange) {
+
+        final String eTag = encodedFile == null
+                ? "\"" + fileId + "\""
+                : "\"" + fileId + "-" + HailstormFsController.GZIP_ENCODING + "\"";
+
+        if (exchange.checkNotModified(eTag)) {
+            return Mono.empty();
+        }
+
+        Optional<URL> downloadUrl = storageService.getDownloadUrl(fileId, fileName);
+        if (downloadUrl.isPresent()) {
+            return Mono.just(ResponseEntity.status(HttpStatus.TEMPORARY_REDIRECT)
+                    .location(URI.create(downloadUrl.get().toString()))
+                    .eTag(eTag)
+                    .build());
+        }
+
+        exchange.getAttributes().put(DownloadMetricsWebFilter.DOWNLOAD_ATTRIBUTE, Boolean.TRUE);
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileName + "\"")
+                .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+                .eTag(eTag);
+
+        Resource body = file;
+        if (encodedFile != null) {
+            body = encodedFile;
+            response.header(HttpHeaders.CONTENT_ENCODING, HailstormFsController.GZIP_ENCODING)
+                    .contentType(MediaTypeFactory.getMediaType(fileName).orElse(MediaType.APPLICATION_OCTET_STREAM));
+        }
+
+        if (ifRange != null && !ifRange.equals(eTag)) {
+            // buffers are written whole, as ranges are applied to resources; they are written to the response
+            // directly, as a body of a ResponseEntity<?> is encoded by its runtime type, a Flux, as JSON
+            ServerHttpResponse serverResponse = exchange.getResponse();
+            serverResponse.getHeaders().putAll(response.build().getHeaders());
+            if (encodedFile == null) {
+                serverResponse.getHeaders().setContentType(
+                        MediaTypeFactory.getMediaType(fileName).orElse(MediaType.APPLICATION_OCTET_STREAM));
+            }
+
+            return serverResponse
+                    .writeWith(DataBufferUtils.read(body, serverResponse.bufferFactory(), DOWNLOAD_BUFFER_SIZE))
+                    .then(Mono.empty());
+        }
+
+        return Mono.just(response.body(body));
+    }
+
+    @DeleteMapping("/files/{prefix}")
+    public Mono<ResponseEntity<DeletionJob>> removeFilesWithPrefix(@PathVariable("prefix") String prefix) {
+        return blocking(() -> deletionJobService.removeFilesWithPrefix(prefix))
+                .map(job -> ResponseEntity.accepted().location(URI.create("/jobs/" + job.getJobId())).body(job));
+    }
+
+    @GetMapping("/jobs/{jobId}")
+    public ResponseEntity<DeletionJob> getDeletionJob(@PathVariable("jobId") String jobId) {
+        return deletionJobService.getJob(jobId)
+                .map(ResponseEntity::ok)
+                .orElse(ResponseEntity.notFound().build());
+    }
+}
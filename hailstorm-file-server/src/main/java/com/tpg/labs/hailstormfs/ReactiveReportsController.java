@@ -0,0 +1,147 @@
+package com.tpg.labs.hailstormfs;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.multipart.Part;
+import org.springframework.stereotype.Controller;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.util.List;
+
+import static com.tpg.labs.hailstormfs.ReactiveTransfers.blocking;
+
+/**
+ * {@link ReportsController} for the reactive stack.
+ */
+@Controller
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveReportsController {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final ReportFileService reportFileService;
+    private final UploadSessionService uploadSessionService;
+    private final ObjectMapper objectMapper;
+
+    @Autowired
+    public ReactiveReportsController(ReportFileService reportFileService,
+                                     UploadSessionService uploadSessionService,
+                                     ObjectMapper objectMapper) {
+        this.reportFileService = reportFileService;
+        this.uploadSessionService = uploadSessionService;
+        this.objectMapper = objectMapper;
+    }
+
+    @PostMapping(value = "/reports", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public Mono<ResponseEntity<FileMetaData>> uploadFile(@RequestBody Mono<MultiValueMap<String, Part>> parts,
+                                                         @RequestParam(value = "prefix",
+                                                                 required = false) String pathPrefix) {
+
+        return parts.flatMap(multipart -> ReactiveTransfers.saveMultipartFile(multipart, pathPrefix,
+                reportFileService::saveFile))
+                .doOnNext(fileMetaData -> logger.debug("fileMetaData: {}", fileMetaData))
+                .map(ResponseEntity::ok)
+                .onErrorReturn(IllegalArgumentException.class, ResponseEntity.badRequest().build());
+    }
+
+    /**
+     * Starts a resumable report upload. The chunks are sent to <code>/uploads/{uploadId}/chunks/{index}</code>.
+     */
+    @PostMapping("/reports/uploads")
+    public Mono<ResponseEntity<UploadSession>> createUpload(@RequestParam("fileName") String fileName,
+                                                            @RequestParam("prefix") String pathPrefix,
+                                                            @RequestParam(value = "mimeType",
+                                                                    required = false) String mimeType,
+                                                            @RequestParam(value = "size",
+                                                                    required = false) Long size) {
+
+        return blocking(() -> uploadSessionService.createSession(fileName, mimeType, pathPrefix, size))
+                .map(session -> ResponseEntity.created(URI.create("/uploads/" + session.getUploadId()))
+                        .body(session));
+    }
+
+    @PostMapping("/reports/uploads/{uploadId}/commit")
+    public Mono<ResponseEntity<FileMetaData>> commitUpload(@PathVariable("uploadId") String uploadId) {
+        return blocking(() -> uploadSessionService.commit(uploadId, reportFileService::saveFile))
+                .map(ResponseEntity::ok)
+                .onErrorReturn(FileNotFoundException.class, ResponseEntity.notFound().build())
+                .onErrorReturn(IllegalStateException.class, ResponseEntity.status(HttpStatus.CONFLICT).build());
+    }
+
+    /**
+     * Lists the reports, with the same paging as {@link ReportsController#getProjectReports}.
+     */
+    @GetMapping("/reports/{prefix}")
+    public Mono<ResponseEntity<List<ReportMetaData>>> getProjectReports(
+            @PathVariable("prefix") String prefix,
+            @RequestParam(value = "cursor", required = false) String cursor,
+            @RequestParam(value = "limit", required = false) Integer limit,
+            ServerWebExchange exchange) {
+
+        if (limit == null && cursor == null) {
+            return blocking(() -> reportFileService.getReportMetaDataList(prefix)).map(ResponseEntity::ok);
+        }
+
+        final int pageSize = limit == null ? ReportsController.MAX_PAGE_SIZE : limit;
+        if (pageSize < 1 || pageSize > ReportsController.MAX_PAGE_SIZE) {
+            return Mono.just(ResponseEntity.badRequest().build());
+        }
+
+        return blocking(() -> reportFileService.getReportMetaDataPage(prefix, cursor, pageSize)).map(reports -> {
+            ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+            if (reports.stream().map(ReportMetaData::getId).distinct().count() == pageSize) {
+                String next = UriComponentsBuilder.fromHttpRequest(exchange.getRequest())
+                        .replaceQueryParam("cursor", reports.get(reports.size() - 1).getId())
+                        .replaceQueryParam("limit", pageSize)
+                        .toUriString();
+
+                response.header(HttpHeaders.LINK, "<" + next + ">; rel=\"next\"");
+            }
+
+            return response.body(reports);
+        });
+    }
+
+    /**
+     * Streams the reports as newline delimited JSON, one report per line, as they are read from the index and
+     * requested by the connection.
+     */
+    @GetMapping(value = "/reports/{prefix}", produces = ReportsController.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<Flux<DataBuffer>> streamProjectReports(@PathVariable("prefix") String prefix,
+                                                                 ServerWebExchange exchange) {
+
+        DataBufferFactory bufferFactory = exchange.getResponse().bufferFactory();
+        Flux<DataBuffer> body = Flux.fromStream(() -> reportFileService.streamReportMetaData(prefix))
+                .map(report -> {
+                    try {
+                        byte[] line = objectMapper.writeValueAsBytes(report);
+                        return bufferFactory.allocateBuffer(line.length + 1).write(line).write((byte) '\n');
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                })
+                .subscribeOn(Schedulers.boundedElastic());
+
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(ReportsController.APPLICATION_NDJSON_VALUE))
+                .body(body);
+    }
+}
@@ -0,0 +1,102 @@
+package com.tpg.labs.hailstormfs;
+
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.multipart.FilePart;
+import org.springframework.http.codec.multipart.FormFieldPart;
+import org.springframework.http.codec.multipart.Part;
+import org.springframework.util.MultiValueMap;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Callable;
+
+/**
+ * Runs the blocking {@link StorageService} calls of the reactive controllers off the event loop.
+ */
+final class ReactiveTransfers {
+
+    /**
+     * Buffers held in memory per transfer, each up to the size the server reads from the connection.
+     */
+    static final int PREFETCH_BUFFERS = 4;
+
+    private ReactiveTransfers() {
+    }
+
+    /**
+     * @return the result of the call on a thread that may block
+     */
+    static <T> Mono<T> blocking(Callable<T> callable) {
+        return Mono.fromCallable(callable).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * Streams the content to a blocking consumer. The subscription is cancelled if the consumer fails, or the result
+     * is not wanted any more.
+     */
+    static <T> Mono<T> withInputStream(Flux<DataBuffer> content, InputStreamFunction<T> function) {
+        return Mono.using(() -> {
+                    DataBufferInputStream inputStream = new DataBufferInputStream(PREFETCH_BUFFERS);
+                    content.subscribe(inputStream);
+                    return inputStream;
+                },
+                inputStream -> blocking(() -> function.apply(inputStream)),
+                DataBufferInputStream::close);
+    }
+
+    /**
+     * Saves an uploaded file part as it is received.
+     *
+     * @return meta data of the saved file
+     */
+    static Mono<FileMetaData> saveFile(FilePart filePart, String pathPrefix, UploadSessionService.FileSaver fileSaver) {
+        MediaType contentType = filePart.headers().getContentType();
+        return withInputStream(filePart.content(), inputStream -> {
+            FileMetaData fileMetaData = new FileMetaData(filePart.filename(),
+                    contentType == null ? null : contentType.toString(),
+                    null,
+                    inputStream).withPathPrefix(pathPrefix);
+
+            String fileId = fileSaver.saveFile(fileMetaData,
+                    dest -> Files.copy(inputStream, dest.toPath(), StandardCopyOption.REPLACE_EXISTING));
+
+            return new FileMetaData(fileMetaData.getOriginalName(),
+                    fileMetaData.getMimeType(),
+                    inputStream.getBytesRead(),
+                    null).withPathPrefix(pathPrefix).withId(fileId);
+        });
+    }
+
+    /**
+     * Saves the file part named <code>file</code> with the prefix from the <code>prefix</code> query parameter, or
+     * form field.
+     *
+     * @return meta data of the saved file
+     */
+    static Mono<FileMetaData> saveMultipartFile(MultiValueMap<String, Part> parts,
+                                                String queryPrefix,
+                                                UploadSessionService.FileSaver fileSaver) {
+        Part filePart = parts.getFirst("file");
+        if (!(filePart instanceof FilePart)) {
+            return Mono.error(new IllegalArgumentException("Missing file part"));
+        }
+
+        String pathPrefix = queryPrefix;
+        Part prefixPart = parts.getFirst("prefix");
+        if (pathPrefix == null && prefixPart instanceof FormFieldPart) {
+            pathPrefix = ((FormFieldPart) prefixPart).value();
+        }
+
+        return saveFile((FilePart) filePart, pathPrefix, fileSaver);
+    }
+
+    @FunctionalInterface
+    interface InputStreamFunction<T> {
+
+        T apply(DataBufferInputStream inputStream) throws Exception;
+    }
+}
@@ -5,6 +5,7 @@ import org.springframework.core.io.Resource;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.List;
+import java.util.stream.Stream;
 
 public interface ReportFileService {
 
@@ -28,6 +29,24 @@ public interface ReportFileService {
      */
     List<ReportMetaData> getReportMetaDataList(String prefix) throws IOException;
 
+    /**
+     * Fetches a page of reports, ordered by file id.
+     *
+     * @param prefix
+     * @param afterId optional, id of the last report in the previous page
+     * @param limit   maximum number of report ids in the page
+     * @return
+     */
+    List<ReportMetaData> getReportMetaDataPage(String prefix, String afterId, int limit);
+
+    /**
+     * Streams the reports, ordered by file id, without collecting them. The stream should be closed after use.
+     *
+     * @param prefix
+     * @return
+     */
+    Stream<ReportMetaData> streamReportMetaData(String prefix);
+
     /**
      * Get the report file from file system.
      *
@@ -13,21 +13,31 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Collections;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 @Service
 public class ReportFileServiceImpl implements ReportFileService {
 
     static final String REPORTS_TAG = "reports";
+    static final int STREAM_PAGE_SIZE = 500;
 
     private final StorageService localStorageService;
+    private int streamPageSize = STREAM_PAGE_SIZE;
 
     @Autowired
     public ReportFileServiceImpl(StorageService localStorageService) {
         this.localStorageService = localStorageService;
     }
 
+    void setStreamPageSize(int streamPageSize) {
+        this.streamPageSize = streamPageSize;
+    }
+
     @Override
     public String saveFile(FileMetaData fileMetaData, FileTransferDelegate fileTransferDelegate) throws IOException {
         return localStorageService.saveFile(fileMetaData, fileTransferDelegate, REPORTS_TAG);
@@ -35,12 +45,54 @@ public class ReportFileServiceImpl implements ReportFileService {
 
     @Override
     public List<ReportMetaData> getReportMetaDataList(String prefix) throws IOException {
-        Stream<ReportMetaData> stream = localStorageService
+        return localStorageService
                 .listPaths(prefix, REPORTS_TAG)
-                .map(path -> new ReportMetaData(
-                        path.getParent().getFileName().toString(), path.getFileName().toString()));
+                .map(ReportFileServiceImpl::toReportMetaData)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public List<ReportMetaData> getReportMetaDataPage(String prefix, String afterId, int limit) {
+        return localStorageService
+                .listPaths(prefix, REPORTS_TAG, afterId, limit)
+                .map(ReportFileServiceImpl::toReportMetaData)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Reads the reports a page at a time, as the stream is consumed, so no more than a page is held in memory.
+     */
+    @Override
+    public Stream<ReportMetaData> streamReportMetaData(String prefix) {
+        Spliterator<List<ReportMetaData>> pages = new Spliterators.AbstractSpliterator<List<ReportMetaData>>(
+                Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+
+            private String afterId;
+            private boolean lastPage;
+
+            @Override
+            public boolean tryAdvance(Consumer<? super List<ReportMetaData>> action) {
+                if (lastPage) {
+                    return false;
+                }
+
+                List<ReportMetaData> page = getReportMetaDataPage(prefix, afterId, streamPageSize);
+                lastPage = page.stream().map(ReportMetaData::getId).distinct().count() < streamPageSize;
+                if (page.isEmpty()) {
+                    return false;
+                }
+
+                afterId = page.get(page.size() - 1).getId();
+                action.accept(page);
+                return true;
+            }
+        };
+
+        return StreamSupport.stream(pages, false).flatMap(List::stream);
+    }
 
-        return stream.collect(Collectors.toList());
+    private static ReportMetaData toReportMetaData(Path path) {
+        return new ReportMetaData(path.getParent().getFileName().toString(), path.getFileName().toString());
     }
 
     @Override
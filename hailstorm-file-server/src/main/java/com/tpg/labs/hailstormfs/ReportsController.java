@@ -1,28 +1,47 @@
 package com.tpg.labs.hailstormfs;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
 import org.springframework.core.io.Resource;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.net.URI;
+import java.util.Iterator;
 import java.util.List;
+import java.util.stream.Stream;
 
 @Controller
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 public class ReportsController {
 
+    static final String APPLICATION_NDJSON_VALUE = "application/x-ndjson";
+    static final int MAX_PAGE_SIZE = 1000;
+
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
     private final ReportFileService reportFileService;
+    private final UploadSessionService uploadSessionService;
+    private final ObjectMapper objectMapper;
 
     @Autowired
-    public ReportsController(ReportFileService reportFileService) {
+    public ReportsController(ReportFileService reportFileService,
+                             UploadSessionService uploadSessionService,
+                             ObjectMapper objectMapper) {
         this.reportFileService = reportFileService;
+        this.uploadSessionService = uploadSessionService;
+        this.objectMapper = objectMapper;
     }
 
     @PostMapping("/reports")
@@ -35,11 +54,81 @@ public class ReportsController {
         return ResponseEntity.ok().body(fileMetaData.withId(path));
     }
 
+    /**
+     * Starts a resumable report upload. The chunks are sent to <code>/uploads/{uploadId}/chunks/{index}</code>.
+     */
+    @PostMapping("/reports/uploads")
+    public ResponseEntity<UploadSession> createUpload(@RequestParam("fileName") String fileName,
+                                                      @RequestParam("prefix") String pathPrefix,
+                                                      @RequestParam(value = "mimeType",
+                                                              required = false) String mimeType,
+                                                      @RequestParam(value = "size",
+                                                              required = false) Long size) throws IOException {
+
+        UploadSession session = uploadSessionService.createSession(fileName, mimeType, pathPrefix, size);
+        return ResponseEntity.created(URI.create("/uploads/" + session.getUploadId())).body(session);
+    }
+
+    @PostMapping("/reports/uploads/{uploadId}/commit")
+    public ResponseEntity<FileMetaData> commitUpload(@PathVariable("uploadId") String uploadId) throws IOException {
+        try {
+            return ResponseEntity.ok(uploadSessionService.commit(uploadId, reportFileService::saveFile));
+        } catch (FileNotFoundException e) {
+            return ResponseEntity.notFound().build();
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
+        }
+    }
+
+    /**
+     * Lists the reports, ordered by id. With a <code>limit</code>, one page of reports is sent, and a
+     * <code>Link</code> header with <code>rel="next"</code> points to the next page if the page is full.
+     */
     @GetMapping("/reports/{prefix}")
     public ResponseEntity<List<ReportMetaData>> getProjectReports(
-            @PathVariable("prefix") String prefix) throws IOException {
+            @PathVariable("prefix") String prefix,
+            @RequestParam(value = "cursor", required = false) String cursor,
+            @RequestParam(value = "limit", required = false) Integer limit) throws IOException {
+
+        if (limit == null && cursor == null) {
+            List<ReportMetaData> reports = reportFileService.getReportMetaDataList(prefix);
+            return ResponseEntity.ok().body(reports);
+        }
+
+        final int pageSize = limit == null ? MAX_PAGE_SIZE : limit;
+        if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+            return ResponseEntity.badRequest().build();
+        }
+
+        List<ReportMetaData> reports = reportFileService.getReportMetaDataPage(prefix, cursor, pageSize);
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+        if (reports.stream().map(ReportMetaData::getId).distinct().count() == pageSize) {
+            String next = ServletUriComponentsBuilder.fromCurrentRequest()
+                    .replaceQueryParam("cursor", reports.get(reports.size() - 1).getId())
+                    .replaceQueryParam("limit", pageSize)
+                    .toUriString();
+
+            response.header(HttpHeaders.LINK, "<" + next + ">; rel=\"next\"");
+        }
+
+        return response.body(reports);
+    }
+
+    /**
+     * Streams the reports as newline delimited JSON, one report per line, as they are read from the index.
+     */
+    @GetMapping(value = "/reports/{prefix}", produces = APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> streamProjectReports(@PathVariable("prefix") String prefix) {
+        StreamingResponseBody body = outputStream -> {
+            try (Stream<ReportMetaData> reports = reportFileService.streamReportMetaData(prefix)) {
+                Iterator<ReportMetaData> iterator = reports.iterator();
+                while (iterator.hasNext()) {
+                    outputStream.write(objectMapper.writeValueAsBytes(iterator.next()));
+                    outputStream.write('\n');
+                }
+            }
+        };
 
-        List<ReportMetaData> reports = reportFileService.getReportMetaDataList(prefix);
-        return ResponseEntity.ok().body(reports);
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType(APPLICATION_NDJSON_VALUE)).body(body);
     }
 }
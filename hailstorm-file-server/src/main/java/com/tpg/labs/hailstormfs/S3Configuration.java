@@ -0,0 +1,41 @@
+package com.tpg.labs.hailstormfs;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Client of the object store used by {@link S3StorageServiceImpl}. Credentials are looked up by the default AWS
+ * provider chain: environment variables, system properties, profile files and instance roles. Set
+ * <code>s3.endpoint</code> for a store other than AWS, such as MinIO.
+ */
+@Configuration
+@ConditionalOnProperty(name = "storage", havingValue = "s3")
+public class S3Configuration {
+
+    @Bean(destroyMethod = "shutdown")
+    @ConditionalOnMissingBean
+    public AmazonS3 amazonS3(@Value("${s3.endpoint:}") String endpoint,
+                             @Value("${s3.region:us-east-1}") String region,
+                             @Value("${s3.pathStyleAccess:false}") boolean pathStyleAccess,
+                             @Value("${s3.maxConnections:50}") int maxConnections) {
+
+        AmazonS3ClientBuilder builder = AmazonS3ClientBuilder.standard()
+                .withPathStyleAccessEnabled(pathStyleAccess)
+                .withClientConfiguration(new ClientConfiguration().withMaxConnections(maxConnections));
+
+        if (endpoint.isEmpty()) {
+            builder.withRegion(region);
+        } else {
+            builder.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, region));
+        }
+
+        return builder.build();
+    }
+}
@@ -0,0 +1,146 @@
+package com.tpg.labs.hailstormfs;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Reads an object in ranges of <code>partSize</code> bytes, fetching up to <code>readAhead</code> ranges in parallel
+ * ahead of the reader, so a large object is read at more than the throughput of a single connection. Ranges are
+ * returned in order.
+ */
+class S3RangeInputStream extends InputStream {
+
+    private final AmazonS3 s3;
+    private final String bucket;
+    private final String key;
+    private final long length;
+    private final int partSize;
+    private final int readAhead;
+    private final ExecutorService executorService;
+    private final Deque<Future<byte[]>> parts = new ArrayDeque<>();
+    private long nextStart;
+    private byte[] part = new byte[0];
+    private int position;
+    private boolean closed;
+
+    S3RangeInputStream(AmazonS3 s3,
+                       String bucket,
+                       String key,
+                       long length,
+                       int partSize,
+                       int readAhead,
+                       ExecutorService executorService) {
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.key = key;
+        this.length = length;
+        this.partSize = partSize;
+        this.readAhead = Math.max(1, readAhead);
+        this.executorService = executorService;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextPart()) {
+            return -1;
+        }
+
+        return part[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        if (!nextPart()) {
+            return -1;
+        }
+
+        int count = Math.min(len, part.length - position);
+        System.arraycopy(part, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return part.length - position;
+    }
+
+    /**
+     * @return false at the end of the object
+     */
+    private boolean nextPart() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+
+        if (position < part.length) {
+            return true;
+        }
+
+        fetchAhead();
+        Future<byte[]> nextPart = parts.poll();
+        if (nextPart == null) {
+            return false;
+        }
+
+        try {
+            part = nextPart.get();
+            position = 0;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(key);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException
+                    ? (IOException) e.getCause()
+                    : new IOException("Could not read " + key, e.getCause());
+        }
+
+        fetchAhead();
+        return true;
+    }
+
+    private void fetchAhead() {
+        while (parts.size() < readAhead && nextStart < length) {
+            final long start = nextStart;
+            final long end = Math.min(start + partSize, length) - 1;
+            parts.add(executorService.submit(() -> readRange(start, end)));
+            nextStart = end + 1;
+        }
+    }
+
+    private byte[] readRange(long start, long end) throws IOException {
+        byte[] range = new byte[(int) (end - start + 1)];
+        try (S3Object object = s3.getObject(new GetObjectRequest(bucket, key).withRange(start, end));
+             DataInputStream inputStream = new DataInputStream(object.getObjectContent())) {
+
+            inputStream.readFully(range);
+        }
+
+        return range;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Future<byte[]> fetchedPart : parts) {
+            fetchedPart.cancel(true);
+        }
+
+        parts.clear();
+    }
+}
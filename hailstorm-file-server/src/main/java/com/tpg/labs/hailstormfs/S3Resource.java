@@ -0,0 +1,105 @@
+package com.tpg.labs.hailstormfs;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import org.springframework.core.io.AbstractResource;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A stored object, read in parallel ranges if it is larger than two parts. The object metadata is fetched when it is
+ * first needed.
+ */
+class S3Resource extends AbstractResource {
+
+    private final AmazonS3 s3;
+    private final String bucket;
+    private final String key;
+    private final String fileName;
+    private final int partSize;
+    private final int readAhead;
+    private final ExecutorService executorService;
+    private volatile ObjectMetadata metadata;
+
+    S3Resource(AmazonS3 s3,
+               String bucket,
+               String key,
+               String fileName,
+               ObjectMetadata metadata,
+               int partSize,
+               int readAhead,
+               ExecutorService executorService) {
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.key = key;
+        this.fileName = fileName;
+        this.metadata = metadata;
+        this.partSize = partSize;
+        this.readAhead = readAhead;
+        this.executorService = executorService;
+    }
+
+    @Override
+    public String getDescription() {
+        return "s3://" + bucket + "/" + key;
+    }
+
+    @Override
+    public String getFilename() {
+        return fileName;
+    }
+
+    @Override
+    public boolean exists() {
+        try {
+            getMetadata();
+            return true;
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public long contentLength() throws IOException {
+        return getMetadata().getContentLength();
+    }
+
+    @Override
+    public long lastModified() throws IOException {
+        return getMetadata().getLastModified().getTime();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        long length = contentLength();
+        if (readAhead > 1 && length > 2L * partSize) {
+            return new S3RangeInputStream(s3, bucket, key, length, partSize, readAhead, executorService);
+        }
+
+        try {
+            return s3.getObject(bucket, key).getObjectContent();
+        } catch (AmazonS3Exception e) {
+            throw S3StorageServiceImpl.toIOException(key, e);
+        }
+    }
+
+    private ObjectMetadata getMetadata() throws FileNotFoundException {
+        if (metadata == null) {
+            try {
+                metadata = s3.getObjectMetadata(bucket, key);
+            } catch (AmazonS3Exception e) {
+                if (e.getStatusCode() == S3StorageServiceImpl.NOT_FOUND) {
+                    throw new FileNotFoundException(getDescription());
+                }
+
+                throw e;
+            }
+        }
+
+        return metadata;
+    }
+}
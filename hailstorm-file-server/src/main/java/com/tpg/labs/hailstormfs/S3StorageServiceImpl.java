@@ -0,0 +1,545 @@
+package com.tpg.labs.hailstormfs;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.HttpMethod;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.ResponseHeaderOverrides;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Service;
+import org.springframework.util.FileSystemUtils;
+
+import javax.validation.constraints.NotNull;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static com.tpg.labs.hailstormfs.FileMetaData.transferAndHash;
+
+/**
+ * Stores files in an S3 compatible object store, as <code>&lt;keyPrefix&gt;storage/&lt;fileId&gt;/&lt;name&gt;</code>
+ * objects, with the same file ids as {@link LocalStorageServiceImpl}. Used if the server is started with
+ * <code>--storage=s3</code>.
+ *
+ * Uploads are staged under the base path to calculate the file id, and then sent in parts in parallel. Large objects
+ * are read in parallel ranges, and clients can be redirected to download files from the store directly. The
+ * {@link FileIndex} is kept under the base path, as with local storage.
+ */
+@Service
+@ConditionalOnProperty(name = "storage", havingValue = "s3")
+public class S3StorageServiceImpl implements StorageService, InitializingBean, DisposableBean {
+
+    static final String STORAGE_KEY = "storage/";
+    static final int NOT_FOUND = 404;
+
+    private static final int LOCK_STRIPES = 64;
+    private static final int DELETE_BATCH_SIZE = 1000;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final StripedLock fileLocks = new StripedLock(LOCK_STRIPES);
+    private AmazonS3 s3;
+    private ApplicationArguments applicationArguments;
+    private FileIndex fileIndex;
+    private String baseURI = LocalStorageServiceImpl.DEFAULT_BASE_PATH;
+    private String bucket;
+    private String keyPrefix = "";
+    private int partSize = 16 * 1024 * 1024;
+    private int transferThreads = 8;
+    private int readAhead = 4;
+    private long presignedUrlTtl = 300;
+    private HashAlgorithm hashAlgorithm = HashAlgorithm.SHA1;
+    private Path stagingPath;
+    private ExecutorService transferExecutorService;
+    private ExecutorService downloadExecutorService;
+    private TransferManager transferManager;
+    private MeterRegistry meterRegistry;
+    private StorageMetrics metrics = new StorageMetrics(null);
+
+    @Autowired
+    public void setS3(AmazonS3 s3) {
+        this.s3 = s3;
+    }
+
+    @Autowired
+    public void setApplicationArguments(ApplicationArguments applicationArguments) {
+        this.applicationArguments = applicationArguments;
+    }
+
+    @Autowired(required = false)
+    public void setFileIndex(FileIndex fileIndex) {
+        this.fileIndex = fileIndex;
+    }
+
+    @Autowired(required = false)
+    public void setMeterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    public void setBaseURI(@NotNull String baseURI) {
+        this.baseURI = baseURI;
+    }
+
+    @Value("${s3.bucket}")
+    public void setBucket(String bucket) {
+        this.bucket = bucket;
+    }
+
+    /**
+     * @param keyPrefix prepended to the key of every object, so the bucket can be shared
+     */
+    @Value("${s3.keyPrefix:}")
+    public void setKeyPrefix(String keyPrefix) {
+        this.keyPrefix = keyPrefix.isEmpty() || keyPrefix.endsWith("/") ? keyPrefix : keyPrefix + "/";
+    }
+
+    /**
+     * Files larger than a part are uploaded in parts, and files larger than two parts are read in ranges of a part.
+     *
+     * @param partSize bytes, at least 5 MiB
+     */
+    @Value("${s3.partSize:16777216}")
+    public void setPartSize(int partSize) {
+        this.partSize = partSize;
+    }
+
+    /**
+     * @param transferThreads number of parts uploaded or ranges read at a time, across all files
+     */
+    @Value("${s3.transferThreads:8}")
+    public void setTransferThreads(int transferThreads) {
+        this.transferThreads = transferThreads;
+    }
+
+    /**
+     * @param readAhead number of ranges of a file read ahead of the client, 1 reads the file in one request
+     */
+    @Value("${s3.readAhead:4}")
+    public void setReadAhead(int readAhead) {
+        this.readAhead = readAhead;
+    }
+
+    /**
+     * Clients downloading a file are redirected to a presigned URL of the object that is valid for this long. The
+     * server sends the file itself if the TTL is 0.
+     *
+     * @param presignedUrlTtl seconds
+     */
+    @Value("${s3.presignedUrlTtl:300}")
+    public void setPresignedUrlTtl(long presignedUrlTtl) {
+        this.presignedUrlTtl = presignedUrlTtl;
+    }
+
+    /**
+     * @param hashAlgorithm digest of new files, such as <code>sha256</code> or <code>blake3</code>; an unknown name
+     *                      is ignored, as with local storage
+     */
+    @Value("${hashAlgorithm:sha1}")
+    public void setHashAlgorithm(String hashAlgorithm) {
+        try {
+            this.hashAlgorithm = HashAlgorithm.of(hashAlgorithm);
+        } catch (IllegalArgumentException e) {
+            logger.warn("Ignoring unknown hash algorithm: {}", hashAlgorithm);
+        }
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (applicationArguments != null) {
+            List<String> values = applicationArguments.getOptionValues(LocalStorageServiceImpl.BASE_PATH_OPTION);
+            if (values != null && values.size() == 1) {
+                setBaseURI(values.get(0));
+            }
+        }
+
+        stagingPath = Paths.get(baseURI, LocalStorageServiceImpl.STAGING_DIR).toAbsolutePath();
+        if (Files.isDirectory(stagingPath)) {
+            FileSystemUtils.deleteRecursively(stagingPath);
+        }
+
+        Files.createDirectories(stagingPath);
+        if (fileIndex == null) {
+            fileIndex = new LogFileIndex(Paths.get(baseURI, LocalStorageServiceImpl.INDEX_FILE).toAbsolutePath());
+        }
+
+        metrics = new StorageMetrics(meterRegistry);
+        fileIndex.load();
+        transferExecutorService = Executors.newFixedThreadPool(Math.max(1, transferThreads),
+                daemonThreadFactory("s3-upload-"));
+        downloadExecutorService = Executors.newFixedThreadPool(Math.max(1, transferThreads),
+                daemonThreadFactory("s3-download-"));
+
+        transferManager = TransferManagerBuilder.standard()
+                .withS3Client(s3)
+                .withMultipartUploadThreshold((long) partSize)
+                .withMinimumUploadPartSize((long) partSize)
+                .withExecutorFactory(() -> transferExecutorService)
+                .withShutDownThreadPools(false)
+                .build();
+
+        resumePurges();
+        logger.info("File server with bucket: {}, keyPrefix: {}, basePath: {}", bucket, keyPrefix, baseURI);
+    }
+
+    /**
+     * Deletes, in the background, the files of prefixes removed before the last stop that were not deleted then.
+     */
+    private void resumePurges() {
+        final List<String> fileIds = new ArrayList<>(fileIndex.pendingPurges());
+        if (fileIds.isEmpty()) {
+            return;
+        }
+
+        Thread purgeThread = new Thread(() -> {
+            logger.info("Deleting {} files removed before the last stop", fileIds.size());
+            for (String fileId : fileIds) {
+                try {
+                    purgeFile(fileId);
+                } catch (IOException | RuntimeException e) {
+                    logger.warn("Skipping {}: {}", fileId, e.getMessage());
+                }
+            }
+        }, "storage-purge");
+
+        purgeThread.setDaemon(true);
+        purgeThread.start();
+    }
+
+    private static ThreadFactory daemonThreadFactory(String namePrefix) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, namePrefix + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        transferManager.shutdownNow(false);
+        transferExecutorService.shutdownNow();
+        downloadExecutorService.shutdownNow();
+        fileIndex.close();
+    }
+
+    @Override
+    public String saveFile(FileMetaData fileMetaData, FileTransferDelegate fileTransferDelegate) throws IOException {
+        return metrics.recordStore(() -> storeFile(fileMetaData, fileTransferDelegate, null));
+    }
+
+    @Override
+    public String saveFile(FileMetaData fileMetaData,
+                           FileTransferDelegate fileTransferDelegate,
+                           String tag) throws IOException {
+
+        return metrics.recordStore(() -> storeFile(fileMetaData, fileTransferDelegate, tag));
+    }
+
+    /**
+     * Stages the file while hashing it, and uploads it under its file id, unless an object of the same size is stored
+     * there already. Files with the same id are uploaded one at a time. A file transferred with a content hash of the
+     * hash algorithm is not hashed again.
+     */
+    private String storeFile(FileMetaData fileMetaData,
+                             FileTransferDelegate fileTransferDelegate,
+                             String tag) throws IOException {
+
+        Path stagedFile = Files.createTempFile(stagingPath, "upload-", ".part");
+        try {
+            String hash;
+            if (fileMetaData.getInputStream() != null) {
+                try (OutputStream outputStream = Files.newOutputStream(stagedFile)) {
+                    hash = metrics.record(StorageMetrics.TRANSFER,
+                            () -> transferAndHash(fileMetaData, hashAlgorithm, outputStream));
+                }
+            } else {
+                fileTransferDelegate.doTransfer(stagedFile.toFile());
+                if (hashAlgorithm.isHashed(fileMetaData)) {
+                    hash = hashAlgorithm.fileIdOf(fileMetaData);
+                } else {
+                    try (InputStream inputStream = Files.newInputStream(stagedFile)) {
+                        FileMetaData stagedMetaData = new FileMetaData(
+                                fileMetaData.getOriginalName(),
+                                fileMetaData.getMimeType(),
+                                fileMetaData.getSize(),
+                                inputStream).withPathPrefix(fileMetaData.getPathPrefix());
+
+                        hash = metrics.record(StorageMetrics.TRANSFER,
+                                () -> transferAndHash(stagedMetaData, hashAlgorithm));
+                    }
+                }
+            }
+
+            final String fileId = hash;
+            String key = getKey(fileId, fileMetaData.getOriginalName());
+            Lock fileLock = fileLocks.get(fileId);
+            fileLock.lock();
+            try {
+                long size = Files.size(stagedFile);
+                metrics.countStored(size);
+                if (!isStored(key, size)) {
+                    upload(key, stagedFile, fileMetaData.getMimeType());
+                }
+
+                metrics.record(StorageMetrics.INDEX, () -> {
+                    fileIndex.add(fileId, fileMetaData.getOriginalName(), fileMetaData.getPathPrefix(), tag);
+                    return null;
+                });
+            } finally {
+                fileLock.unlock();
+            }
+
+            return fileId;
+        } finally {
+            Files.deleteIfExists(stagedFile);
+        }
+    }
+
+    private boolean isStored(String key, long size) throws IOException {
+        try {
+            return s3.getObjectMetadata(bucket, key).getContentLength() == size;
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == NOT_FOUND) {
+                return false;
+            }
+
+            throw toIOException(key, e);
+        }
+    }
+
+    /**
+     * Uploads the file in a single request, or in parallel parts if it is larger than a part.
+     */
+    private void upload(String key, Path file, String mimeType) throws IOException {
+        ObjectMetadata metadata = new ObjectMetadata();
+        if (mimeType != null) {
+            metadata.setContentType(mimeType);
+        }
+
+        try {
+            transferManager.upload(new PutObjectRequest(bucket, key, file.toFile()).withMetadata(metadata))
+                    .waitForCompletion();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(key);
+        } catch (AmazonClientException e) {
+            throw toIOException(key, e);
+        }
+    }
+
+    static IOException toIOException(String key, AmazonClientException e) {
+        if (e instanceof AmazonS3Exception && ((AmazonS3Exception) e).getStatusCode() == NOT_FOUND) {
+            return new FileNotFoundException(key);
+        }
+
+        return new IOException("Failed on " + key + ": " + e.getMessage(), e);
+    }
+
+    private String getKey(String fileId, String fileName) {
+        return getKeyPrefix(fileId) + fileName;
+    }
+
+    private String getKeyPrefix(String fileId) {
+        return keyPrefix + STORAGE_KEY + fileId + "/";
+    }
+
+    @Override
+    public void deleteFile(String fileId) throws IOException {
+        Lock fileLock = fileLocks.get(fileId);
+        fileLock.lock();
+        try {
+            deleteObjects(fileId);
+            fileIndex.remove(fileId);
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    @Override
+    public void deleteFile(String fileId, String tag) throws IOException {
+        deleteFile(fileId);
+    }
+
+    private void deleteObjects(String fileId) throws IOException {
+        ListObjectsV2Request request = new ListObjectsV2Request()
+                .withBucketName(bucket)
+                .withPrefix(getKeyPrefix(fileId))
+                .withMaxKeys(DELETE_BATCH_SIZE);
+        try {
+            ListObjectsV2Result result;
+            do {
+                result = s3.listObjectsV2(request);
+                List<DeleteObjectsRequest.KeyVersion> keys = result.getObjectSummaries()
+                        .stream()
+                        .map(S3ObjectSummary::getKey)
+                        .map(DeleteObjectsRequest.KeyVersion::new)
+                        .collect(Collectors.toList());
+
+                if (!keys.isEmpty()) {
+                    s3.deleteObjects(new DeleteObjectsRequest(bucket).withKeys(keys).withQuiet(true));
+                }
+
+                request.setContinuationToken(result.getNextContinuationToken());
+            } while (result.isTruncated());
+        } catch (AmazonClientException e) {
+            throw toIOException(getKeyPrefix(fileId), e);
+        }
+    }
+
+    /**
+     * Times the lookup of the object, not the download of its content.
+     */
+    @Override
+    public Resource getFile(String fileId, String fileName) throws FileNotFoundException {
+        return metrics.record(StorageMetrics.GET, () -> findFile(fileId, fileName));
+    }
+
+    private Resource findFile(String fileId, String fileName) throws FileNotFoundException {
+        String key = getKey(fileId, fileName);
+        ObjectMetadata metadata = null;
+        if (!isIndexed(fileId, fileName)) {
+            // files removed from the index are served until they are purged, as with local storage
+            try {
+                metadata = s3.getObjectMetadata(bucket, key);
+            } catch (AmazonS3Exception e) {
+                if (e.getStatusCode() == NOT_FOUND) {
+                    throw new FileNotFoundException(String.format("Not found %s/%s", fileId, fileName));
+                }
+
+                throw e;
+            }
+        }
+
+        return new S3Resource(s3, bucket, key, fileName, metadata, partSize, readAhead, downloadExecutorService);
+    }
+
+    private boolean isIndexed(String fileId, String fileName) {
+        return fileIndex.get(fileId).map(indexedFile -> indexedFile.getFileNames().contains(fileName)).orElse(false);
+    }
+
+    @Override
+    public Optional<URL> getDownloadUrl(String fileId, String fileName) {
+        if (presignedUrlTtl <= 0) {
+            return Optional.empty();
+        }
+
+        ResponseHeaderOverrides headers = new ResponseHeaderOverrides()
+                .withContentDisposition("attachment; filename=\"" + fileName + "\"");
+
+        GeneratePresignedUrlRequest request = new GeneratePresignedUrlRequest(bucket, getKey(fileId, fileName))
+                .withMethod(HttpMethod.GET)
+                .withExpiration(new Date(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(presignedUrlTtl)))
+                .withResponseHeaders(headers);
+
+        return Optional.of(s3.generatePresignedUrl(request));
+    }
+
+    @Override
+    public void removeFilesWithPrefix(String prefix) throws IOException {
+        metrics.record(StorageMetrics.REMOVE_PREFIX, () -> {
+            for (String fileId : unindexFilesWithPrefix(prefix)) {
+                try {
+                    purgeFile(fileId);
+                } catch (IOException e) {
+                    logger.warn("Skipping {}: {}", fileId, e.getMessage());
+                }
+            }
+
+            return null;
+        });
+    }
+
+    @Override
+    public List<String> unindexFilesWithPrefix(String prefix) throws IOException {
+        List<String> fileIds = fileIndex.list(prefix)
+                .map(IndexedFile::getFileId)
+                .collect(Collectors.toList());
+
+        for (String fileId : fileIds) {
+            fileIndex.removeForPurge(fileId);
+        }
+
+        return fileIds;
+    }
+
+    @Override
+    public void purgeFile(String fileId) throws IOException {
+        Lock fileLock = fileLocks.get(fileId);
+        fileLock.lock();
+        try {
+            if (!fileIndex.get(fileId).isPresent()) {
+                deleteObjects(fileId);
+            }
+
+            fileIndex.purged(fileId);
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    /**
+     * The listing is streamed from the index, and timed, as it is read.
+     */
+    @Override
+    public Stream<Path> listPaths(String prefix) {
+        return metrics.recordStream(StorageMetrics.LIST, fileIndex.list(prefix)
+                .flatMap(S3StorageServiceImpl::getPaths));
+    }
+
+    @Override
+    public Stream<Path> listPaths(String prefix, String tag) {
+        return metrics.recordStream(StorageMetrics.LIST, fileIndex.list(prefix, tag)
+                .flatMap(S3StorageServiceImpl::getPaths));
+    }
+
+    @Override
+    public Stream<Path> listPaths(String prefix, String tag, String afterFileId, int limit) {
+        return metrics.recordStream(StorageMetrics.LIST, fileIndex.list(prefix, tag, afterFileId)
+                .limit(limit)
+                .flatMap(S3StorageServiceImpl::getPaths));
+    }
+
+    /**
+     * @return <code>fileId/fileName</code> paths, relative as the files are not on the file system
+     */
+    private static Stream<Path> getPaths(IndexedFile indexedFile) {
+        return indexedFile.getFileNames()
+                .stream()
+                .map(fileName -> Paths.get(indexedFile.getFileId(), fileName));
+    }
+}
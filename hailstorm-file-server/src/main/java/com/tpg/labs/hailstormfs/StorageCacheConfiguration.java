@@ -0,0 +1,40 @@
+package com.tpg.labs.hailstormfs;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Paths;
+
+/**
+ * Puts a {@link CachingStorageService} in front of the storage, if the server is started with
+ * <code>--storageCache.maxSize</code>, for instance <code>--storageCache.maxSize=20GB</code>.
+ */
+@Configuration
+@ConditionalOnProperty(name = "storageCache.maxSize")
+public class StorageCacheConfiguration {
+
+    @Bean
+    @Primary
+    public CachingStorageService cachingStorageService(ObjectProvider<S3StorageServiceImpl> s3StorageService,
+                                                       ObjectProvider<LocalStorageServiceImpl> localStorageService,
+                                                       ObjectProvider<MeterRegistry> meterRegistry,
+                                                       @Value("${storageCache.maxSize}") DataSize maxSize,
+                                                       @Value("${storageCache.path:${basePath:"
+                                                               + LocalStorageServiceImpl.DEFAULT_BASE_PATH
+                                                               + "}/cache}") String path) {
+
+        S3StorageServiceImpl s3 = s3StorageService.getIfAvailable();
+        StorageService storageService = s3 != null ? s3 : localStorageService.getObject();
+        CachingStorageService cachingStorageService =
+                new CachingStorageService(storageService, Paths.get(path), maxSize.toBytes());
+
+        meterRegistry.ifAvailable(cachingStorageService::bindTo);
+        return cachingStorageService;
+    }
+}
@@ -0,0 +1,166 @@
+package com.tpg.labs.hailstormfs;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Timers of storage operations, as the <code>hailstorm.fs.storage</code> metric tagged with the operation, with
+ * histograms for percentiles. Also counts bytes stored and the files being stored, as the <code>in</code> direction of
+ * the metrics {@link DownloadMetrics} counts downloads with.
+ */
+class StorageMetrics {
+
+    static final String STORE = "store";
+    static final String TRANSFER = "transfer";
+    static final String INDEX = "index";
+    static final String LIST = "list";
+    /** the lookup of a file, not the reading of its content */
+    static final String GET = "get";
+    static final String REMOVE_PREFIX = "removePrefix";
+
+    static final String BYTES = "hailstorm.fs.storage.bytes";
+    static final String ACTIVE_TRANSFERS = "hailstorm.fs.storage.transfers.active";
+    static final String DIRECTION = "direction";
+
+    private static final String TIMER = "hailstorm.fs.storage";
+
+    private final MeterRegistry meterRegistry;
+    private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>();
+    private final Counter bytesStored;
+    private final AtomicInteger activeStores = new AtomicInteger();
+
+    /**
+     * @param meterRegistry optional, nothing is published if null
+     */
+    StorageMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry != null ? meterRegistry : new CompositeMeterRegistry();
+        this.bytesStored = Counter.builder(BYTES)
+                .tag(DIRECTION, "in")
+                .baseUnit("bytes")
+                .register(this.meterRegistry);
+
+        Gauge.builder(ACTIVE_TRANSFERS, activeStores, AtomicInteger::get)
+                .tag(DIRECTION, "in")
+                .description("Files being transferred")
+                .register(this.meterRegistry);
+    }
+
+    /**
+     * Times the operation, whether it completes or throws.
+     */
+    <T, E extends Exception> T record(String operation, Operation<T, E> callable) throws E {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        try {
+            return callable.call();
+        } finally {
+            sample.stop(timer(operation));
+        }
+    }
+
+    /**
+     * Times a stream from now until it is read to the end or closed, whichever comes first, so a listing streamed as
+     * it is read is timed as it is consumed. A stream left unread, and not closed, is not timed.
+     */
+    <T> Stream<T> recordStream(String operation, Stream<T> stream) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        AtomicBoolean stopped = new AtomicBoolean();
+        Runnable stop = () -> {
+            if (stopped.compareAndSet(false, true)) {
+                sample.stop(timer(operation));
+            }
+        };
+
+        return StreamSupport.stream(new TimedSpliterator<>(stream.spliterator(), stop), stream.isParallel())
+                .onClose(stream::close)
+                .onClose(stop);
+    }
+
+    private Timer timer(String operation) {
+        return timers.computeIfAbsent(operation, name -> Timer.builder(TIMER)
+                .tag("operation", name)
+                .publishPercentileHistogram()
+                .register(meterRegistry));
+    }
+
+    /**
+     * Times the storing of a file and counts it as active until it completes.
+     */
+    <T, E extends Exception> T recordStore(Operation<T, E> callable) throws E {
+        activeStores.incrementAndGet();
+        try {
+            return record(STORE, callable);
+        } finally {
+            activeStores.decrementAndGet();
+        }
+    }
+
+    void countStored(long bytes) {
+        bytesStored.increment(bytes);
+    }
+
+    @FunctionalInterface
+    interface Operation<T, E extends Exception> {
+
+        T call() throws E;
+    }
+
+    /**
+     * Runs an action once the elements of a spliterator are exhausted.
+     */
+    private static class TimedSpliterator<T> implements Spliterator<T> {
+
+        private final Spliterator<T> spliterator;
+        private final Runnable onEnd;
+
+        private TimedSpliterator(Spliterator<T> spliterator, Runnable onEnd) {
+            this.spliterator = spliterator;
+            this.onEnd = onEnd;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            if (spliterator.tryAdvance(action)) {
+                return true;
+            }
+
+            onEnd.run();
+            return false;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super T> action) {
+            spliterator.forEachRemaining(action);
+            onEnd.run();
+        }
+
+        /**
+         * Not split, the end of a part is not the end of the stream.
+         */
+        @Override
+        public Spliterator<T> trySplit() {
+            return null;
+        }
+
+        @Override
+        public long estimateSize() {
+            return spliterator.estimateSize();
+        }
+
+        @Override
+        public int characteristics() {
+            return spliterator.characteristics();
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.tpg.labs.hailstormfs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import static com.tpg.labs.hailstormfs.FileMetaData.calculateHash;
+
+/**
+ * Checks stored content against the hash it is stored under, reading files in parallel. Blobs are checked against
+ * their content hash, and stored files against their file id, which is the hash of the content and the prefix. A file
+ * linked to a corrupt blob is corrupt too.
+ *
+ * Only files in the index are checked, as the prefix of a file id is known from the index.
+ */
+class StorageScrubber {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final Path storagePath;
+    private final Path blobsPath;
+    private final FileIndex fileIndex;
+    private final int threads;
+
+    StorageScrubber(Path storagePath, Path blobsPath, FileIndex fileIndex, int threads) {
+        this.storagePath = storagePath;
+        this.blobsPath = blobsPath;
+        this.fileIndex = fileIndex;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * @return corrupt file ids and blobs
+     */
+    Result scrub() throws IOException, InterruptedException {
+        final AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executorService = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "storage-scrubber-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            Set<String> corruptBlobs = Files.isDirectory(blobsPath)
+                    ? check(executorService, blobsPath, this::isBlobCorrupt)
+                    : Collections.emptySet();
+
+            Set<String> corruptFiles = check(executorService, storagePath,
+                    fileId -> isStoredFileCorrupt(fileId, corruptBlobs));
+
+            return new Result(corruptFiles, corruptBlobs);
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    private Set<String> check(ExecutorService executorService,
+                              Path directory,
+                              HashCheck hashCheck) throws IOException, InterruptedException {
+
+        List<String> names;
+        try (Stream<Path> paths = Files.list(directory)) {
+            names = paths.filter(Files::isDirectory)
+                    .map(path -> path.getFileName().toString())
+                    .collect(Collectors.toList());
+        }
+
+        Set<String> corrupt = ConcurrentHashMap.newKeySet();
+        List<Future<?>> results = new ArrayList<>(names.size());
+        for (String name : names) {
+            results.add(executorService.submit((Callable<Void>) () -> {
+                try {
+                    if (hashCheck.isCorrupt(name)) {
+                        corrupt.add(name);
+                    }
+                } catch (IOException e) {
+                    logger.warn("Could not read {}: {}", directory.resolve(name), e.getMessage());
+                    corrupt.add(name);
+                }
+
+                return null;
+            }));
+        }
+
+        for (Future<?> result : results) {
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                logger.warn("Could not check {}: {}", directory, e.getCause().getMessage());
+            }
+        }
+
+        return corrupt;
+    }
+
+    private boolean isBlobCorrupt(String contentHash) throws IOException {
+        Path blobPath = blobsPath.resolve(contentHash);
+        Path content = blobPath.resolve(LocalStorageServiceImpl.BLOB_CONTENT);
+        Path compressedContent = blobPath.resolve(LocalStorageServiceImpl.BLOB_CONTENT
+                + LocalStorageServiceImpl.GZIP_SUFFIX);
+
+        return (Files.exists(content) && !hashOf(content, false, null, contentHash).equals(contentHash))
+                || (Files.exists(compressedContent)
+                        && !hashOf(compressedContent, true, null, contentHash).equals(contentHash));
+    }
+
+    private boolean isStoredFileCorrupt(String fileId, Set<String> corruptBlobs) throws IOException {
+        Optional<IndexedFile> indexedFile = fileIndex.get(fileId);
+        if (!indexedFile.isPresent()) {
+            return false;
+        }
+
+        Set<String> fileNames = indexedFile.get().getFileNames();
+        String prefix = indexedFile.get().getPathPrefix();
+        List<Path> storedFiles;
+        try (Stream<Path> paths = Files.list(storagePath.resolve(fileId))) {
+            storedFiles = paths.collect(Collectors.toList());
+        }
+
+        for (Path storedFile : storedFiles) {
+            if (Files.isSymbolicLink(storedFile)) {
+                Path blobContent = Files.readSymbolicLink(storedFile);
+                if (!Files.exists(blobContent)
+                        || corruptBlobs.contains(blobContent.getParent().getFileName().toString())) {
+                    return true;
+                }
+
+                continue;
+            }
+
+            String name = storedFile.getFileName().toString();
+            boolean compressed = name.endsWith(LocalStorageServiceImpl.GZIP_SUFFIX) && fileNames.contains(
+                    name.substring(0, name.length() - LocalStorageServiceImpl.GZIP_SUFFIX.length()));
+
+            if (!hashOf(storedFile, compressed, prefix, fileId).equals(fileId)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @param expectedId the hash is calculated with the algorithm of this id
+     */
+    private static String hashOf(Path path, boolean compressed, String prefix, String expectedId) throws IOException {
+        try (InputStream inputStream = compressed
+                ? new GZIPInputStream(Files.newInputStream(path))
+                : Files.newInputStream(path)) {
+
+            return calculateHash(new FileMetaData(path.getFileName().toString(), null, null, inputStream)
+                    .withPathPrefix(prefix), HashAlgorithm.ofId(expectedId));
+        }
+    }
+
+    @FunctionalInterface
+    private interface HashCheck {
+
+        boolean isCorrupt(String name) throws IOException;
+    }
+
+    static class Result {
+
+        private final Set<String> corruptFiles;
+        private final Set<String> corruptBlobs;
+
+        Result(Set<String> corruptFiles, Set<String> corruptBlobs) {
+            this.corruptFiles = corruptFiles;
+            this.corruptBlobs = corruptBlobs;
+        }
+
+        /**
+         * @return ids of stored files that do not match their id
+         */
+        Set<String> getCorruptFiles() {
+            return corruptFiles;
+        }
+
+        /**
+         * @return content hashes of blobs that do not match their hash
+         */
+        Set<String> getCorruptBlobs() {
+            return corruptBlobs;
+        }
+    }
+}
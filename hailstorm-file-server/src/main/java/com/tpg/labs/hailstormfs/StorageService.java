@@ -5,7 +5,10 @@ import org.springframework.core.io.Resource;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.net.URL;
 import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
 import java.util.stream.Stream;
 
 public interface StorageService {
@@ -60,6 +63,31 @@ public interface StorageService {
      */
     Resource getFile(String fileId, String fileName) throws FileNotFoundException;
 
+    /**
+     * Get the file in a content coding it is stored with, such as <code>gzip</code>, to send as is.
+     *
+     * @param fileId
+     * @param fileName
+     * @param encoding
+     * @return empty if the file is not stored in the encoding
+     */
+    default Optional<Resource> getEncodedFile(String fileId, String fileName, String encoding) {
+        return Optional.empty();
+    }
+
+    /**
+     * Get a URL the client can download the file from directly, instead of through the server, such as a presigned
+     * URL of an object store. The URL is not checked, the file should be looked up with
+     * {@link #getFile(String, String)} first.
+     *
+     * @param fileId
+     * @param fileName
+     * @return empty if the file is sent by the server
+     */
+    default Optional<URL> getDownloadUrl(String fileId, String fileName) {
+        return Optional.empty();
+    }
+
     /**
      * Removes all files with given prefix.
      *
@@ -67,6 +95,24 @@ public interface StorageService {
      */
     void removeFilesWithPrefix(String prefix) throws IOException;
 
+    /**
+     * Removes all files with given prefix from the index, so they are not listed any more. The stored files are
+     * left for {@link #purgeFile(String)}.
+     *
+     * @param prefix
+     * @return ids of the files removed from the index
+     */
+    List<String> unindexFilesWithPrefix(String prefix) throws IOException;
+
+    /**
+     * Deletes a stored file that is not in the index. A file that has been saved again since it was removed from the
+     * index is kept.
+     *
+     * @param fileId
+     * @throws IOException
+     */
+    void purgeFile(String fileId) throws IOException;
+
     /**
      * Stream the paths matching a prefix.
      *
@@ -83,4 +129,15 @@ public interface StorageService {
      * @return
      */
     Stream<Path> listPaths(String prefix, String tag);
+
+    /**
+     * Select a page of paths that match the given prefix and tag, ordered by file id.
+     *
+     * @param prefix
+     * @param tag         optional
+     * @param afterFileId optional, file id the page starts after
+     * @param limit       maximum number of file ids in the page
+     * @return
+     */
+    Stream<Path> listPaths(String prefix, String tag, String afterFileId, int limit);
 }
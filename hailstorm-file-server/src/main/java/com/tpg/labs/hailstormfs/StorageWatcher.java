@@ -0,0 +1,75 @@
+package com.tpg.labs.hailstormfs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.function.Consumer;
+
+/**
+ * Watches the storage directory for file id directories removed by something other than the file server, such as a
+ * clean up script, so they can be dropped from the index and listings.
+ */
+public class StorageWatcher implements Closeable {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final Path storagePath;
+    private final Consumer<String> removedFileIdConsumer;
+    private final WatchService watchService;
+    private final Thread watchThread;
+
+    public StorageWatcher(Path storagePath, Consumer<String> removedFileIdConsumer) throws IOException {
+        this.storagePath = storagePath;
+        this.removedFileIdConsumer = removedFileIdConsumer;
+        this.watchService = storagePath.getFileSystem().newWatchService();
+        storagePath.register(watchService,
+                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.OVERFLOW);
+
+        this.watchThread = new Thread(this::watch, "storage-watcher");
+        this.watchThread.setDaemon(true);
+    }
+
+    public void start() {
+        watchThread.start();
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey watchKey = watchService.take();
+                for (WatchEvent<?> event : watchKey.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        logger.warn("Missed changes in {}", storagePath);
+                        continue;
+                    }
+
+                    String fileId = ((Path) event.context()).getFileName().toString();
+                    try {
+                        removedFileIdConsumer.accept(fileId);
+                    } catch (RuntimeException e) {
+                        logger.warn("Failed to handle removal of {}: {}", fileId, e.getMessage());
+                    }
+                }
+
+                if (!watchKey.reset()) {
+                    logger.warn("Stopped watching {}", storagePath);
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            logger.debug("Stopped watching {}", storagePath);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
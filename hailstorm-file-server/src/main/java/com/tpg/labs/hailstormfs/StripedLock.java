@@ -0,0 +1,28 @@
+package com.tpg.labs.hailstormfs;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks shared by keys, so work on the same key is serialized without a lock for every key. Keys that
+ * share a stripe wait for each other too, which is rare with enough stripes.
+ *
+ * A thread should hold one lock of an instance at a time, or two threads each holding a stripe the other is waiting
+ * for would deadlock.
+ */
+class StripedLock {
+
+    private final Lock[] stripes;
+
+    StripedLock(int stripeCount) {
+        stripes = new Lock[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    Lock get(String key) {
+        int hash = key.hashCode();
+        return stripes[((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % stripes.length];
+    }
+}
@@ -0,0 +1,261 @@
+package com.tpg.labs.hailstormfs;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * SHA-256 Merkle tree of content in blocks of {@link #BLOCK_SIZE}, so the blocks of a large file are hashed on all
+ * cores. A leaf is the hash of a zero byte and a block, and a node the hash of a one byte and its two children; a node
+ * without a sibling moves up a level as is. The root of one leaf is the leaf.
+ *
+ * Content that starts on a block boundary can be hashed separately and its leaves combined with the others, so a
+ * resumed upload hashes only the chunks sent again.
+ */
+class TreeHash {
+
+    static final int BLOCK_SIZE = 1024 * 1024;
+    static final int HASH_SIZE = 32;
+
+    /**
+     * Blocks are hashed on a pool of their own, with a thread per core, so hashing large uploads does not hold up the
+     * parallel streams and other tasks of the common pool.
+     */
+    static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+            TreeHash::newWorkerThread, null, false);
+
+    private static final byte LEAF = 0;
+    private static final byte NODE = 1;
+
+    private TreeHash() {
+    }
+
+    private static ForkJoinWorkerThread newWorkerThread(ForkJoinPool pool) {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("tree-hash-" + thread.getPoolIndex());
+        return thread;
+    }
+
+    static byte[] leaf(byte[] block, int offset, int length) {
+        MessageDigest messageDigest = DigestUtils.getSha256Digest();
+        messageDigest.update(LEAF);
+        messageDigest.update(block, offset, length);
+        return messageDigest.digest();
+    }
+
+    /**
+     * @param leaves in block order
+     * @return root of the tree, or the leaf of no content if there are no leaves
+     */
+    static byte[] root(List<byte[]> leaves) {
+        if (leaves.isEmpty()) {
+            return leaf(new byte[0], 0, 0);
+        }
+
+        List<byte[]> level = leaves;
+        while (level.size() > 1) {
+            List<byte[]> parents = new ArrayList<>((level.size() + 1) / 2);
+            for (int i = 0; i < level.size(); i += 2) {
+                if (i + 1 == level.size()) {
+                    parents.add(level.get(i));
+                } else {
+                    MessageDigest messageDigest = DigestUtils.getSha256Digest();
+                    messageDigest.update(NODE);
+                    messageDigest.update(level.get(i));
+                    messageDigest.update(level.get(i + 1));
+                    parents.add(messageDigest.digest());
+                }
+            }
+
+            level = parents;
+        }
+
+        return level.get(0);
+    }
+
+    /**
+     * Reads and hashes the blocks of a file in parallel.
+     *
+     * @return leaves of the file, in block order
+     */
+    static List<byte[]> leavesOf(Path path, ForkJoinPool pool) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            int blocks = (int) Math.max(1, (size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+            byte[][] leaves = new byte[blocks][];
+            try {
+                pool.invoke(new BlockHashAction(channel, size, leaves, 0, blocks));
+            } catch (BlockReadException e) {
+                throw e.getCause();
+            }
+
+            return Arrays.asList(leaves);
+        }
+    }
+
+    /**
+     * Serializes leaves, {@link #HASH_SIZE} bytes each.
+     */
+    static byte[] toBytes(List<byte[]> leaves) {
+        ByteBuffer buffer = ByteBuffer.allocate(leaves.size() * HASH_SIZE);
+        leaves.forEach(buffer::put);
+        return buffer.array();
+    }
+
+    static List<byte[]> fromBytes(byte[] bytes) {
+        List<byte[]> leaves = new ArrayList<>(bytes.length / HASH_SIZE);
+        for (int offset = 0; offset + HASH_SIZE <= bytes.length; offset += HASH_SIZE) {
+            leaves.add(Arrays.copyOfRange(bytes, offset, offset + HASH_SIZE));
+        }
+
+        return leaves;
+    }
+
+    /**
+     * Hashes content as it is streamed. Each full block is handed to the pool while the next one is read, with at
+     * most as many blocks in flight as the pool has threads, so memory stays bounded when reading is faster than
+     * hashing. Content of a single block is hashed on the calling thread.
+     */
+    static class TreeDigest extends HashAlgorithm.Digest {
+
+        private final ForkJoinPool pool;
+        private final List<byte[]> leaves = new ArrayList<>();
+        private final Deque<ForkJoinTask<byte[]>> inFlight = new ArrayDeque<>();
+        private byte[] block = new byte[BLOCK_SIZE];
+        private int blockLength;
+
+        TreeDigest(ForkJoinPool pool) {
+            this.pool = pool;
+        }
+
+        @Override
+        void update(byte[] bytes, int offset, int length) {
+            while (length > 0) {
+                if (blockLength == BLOCK_SIZE) {
+                    submitBlock();
+                }
+
+                int copied = Math.min(length, BLOCK_SIZE - blockLength);
+                System.arraycopy(bytes, offset, block, blockLength, copied);
+                blockLength += copied;
+                offset += copied;
+                length -= copied;
+            }
+        }
+
+        @Override
+        byte[] digest() {
+            return root(leaves());
+        }
+
+        /**
+         * Completes the digest.
+         *
+         * @return leaves of the content, in block order
+         */
+        List<byte[]> leaves() {
+            if (block != null) {
+                if (blockLength > 0 || (leaves.isEmpty() && inFlight.isEmpty())) {
+                    final byte[] lastBlock = block;
+                    final int lastLength = blockLength;
+                    if (inFlight.isEmpty()) {
+                        leaves.add(leaf(lastBlock, 0, lastLength));
+                    } else {
+                        inFlight.add(pool.submit(() -> leaf(lastBlock, 0, lastLength)));
+                    }
+                }
+
+                while (!inFlight.isEmpty()) {
+                    leaves.add(inFlight.remove().join());
+                }
+
+                block = null;
+            }
+
+            return leaves;
+        }
+
+        private void submitBlock() {
+            if (inFlight.size() >= pool.getParallelism()) {
+                leaves.add(inFlight.remove().join());
+            }
+
+            final byte[] fullBlock = block;
+            inFlight.add(pool.submit(() -> leaf(fullBlock, 0, BLOCK_SIZE)));
+            block = new byte[BLOCK_SIZE];
+            blockLength = 0;
+        }
+    }
+
+    private static class BlockHashAction extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long size;
+        private final byte[][] leaves;
+        private final int from;
+        private final int to;
+
+        private BlockHashAction(FileChannel channel, long size, byte[][] leaves, int from, int to) {
+            this.channel = channel;
+            this.size = size;
+            this.leaves = leaves;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new BlockHashAction(channel, size, leaves, from, middle),
+                        new BlockHashAction(channel, size, leaves, middle, to));
+                return;
+            }
+
+            long position = (long) from * BLOCK_SIZE;
+            byte[] block = new byte[(int) Math.min(BLOCK_SIZE, size - position)];
+            ByteBuffer buffer = ByteBuffer.wrap(block);
+            try {
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        throw new IOException("File truncated while hashing");
+                    }
+                }
+            } catch (IOException e) {
+                throw new BlockReadException(e);
+            }
+
+            leaves[from] = leaf(block, 0, block.length);
+        }
+    }
+
+    private static class BlockReadException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private BlockReadException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+}
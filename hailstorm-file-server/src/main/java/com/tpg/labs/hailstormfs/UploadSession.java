@@ -0,0 +1,120 @@
+package com.tpg.labs.hailstormfs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.StringJoiner;
+
+/**
+ * A resumable upload in progress, with the chunks received so far.
+ */
+public class UploadSession {
+
+    private final String uploadId;
+    private final String fileName;
+    private final String mimeType;
+    private final String pathPrefix;
+    private final Long size;
+    private final List<Chunk> chunks = new ArrayList<>();
+    private String contentHash;
+
+    public UploadSession(String uploadId, String fileName, String mimeType, String pathPrefix, Long size) {
+        this.uploadId = uploadId;
+        this.fileName = fileName;
+        this.mimeType = mimeType;
+        this.pathPrefix = pathPrefix;
+        this.size = size;
+    }
+
+    public String getUploadId() {
+        return uploadId;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public String getPathPrefix() {
+        return pathPrefix;
+    }
+
+    /**
+     * @return expected size of the file, if it was given when the upload started
+     */
+    public Long getSize() {
+        return size;
+    }
+
+    /**
+     * @return received chunks, in index order
+     */
+    public List<Chunk> getChunks() {
+        return Collections.unmodifiableList(chunks);
+    }
+
+    public long getReceivedBytes() {
+        return chunks.stream().mapToLong(Chunk::getSize).sum();
+    }
+
+    /**
+     * @return <code>sha256tree</code> hash of the chunks received, which is the content hash of the file stored with
+     * that algorithm, or null if chunks are missing or a chunk other than the last is not a whole number of blocks
+     */
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    void addChunk(Chunk chunk) {
+        chunks.add(chunk);
+    }
+
+    void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", UploadSession.class.getSimpleName() + "[", "]")
+                .add("uploadId='" + uploadId + "'")
+                .add("fileName='" + fileName + "'")
+                .add("pathPrefix='" + pathPrefix + "'")
+                .add("chunks=" + chunks.size())
+                .toString();
+    }
+
+    public static class Chunk {
+
+        private final int index;
+        private final long size;
+        private final String hash;
+
+        public Chunk(int index, long size) {
+            this(index, size, null);
+        }
+
+        public Chunk(int index, long size, String hash) {
+            this.index = index;
+            this.size = size;
+            this.hash = hash;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return <code>sha256tree</code> hash of the chunk, to compare with the chunk on the client before resuming
+         */
+        public String getHash() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.tpg.labs.hailstormfs;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Uploads a large file as numbered chunks that can be sent in parallel and retried, and stores it once all the chunks
+ * are in.
+ */
+public interface UploadSessionService {
+
+    /**
+     * Starts an upload.
+     *
+     * @param fileName
+     * @param mimeType
+     * @param pathPrefix
+     * @param size expected size, or null if not known
+     * @return
+     * @throws IOException
+     */
+    UploadSession createSession(String fileName, String mimeType, String pathPrefix, Long size) throws IOException;
+
+    /**
+     * Saves a chunk, replacing a chunk with the same index received earlier.
+     *
+     * @param uploadId
+     * @param index zero based chunk number
+     * @param content
+     * @return the session with the chunks received so far
+     * @throws FileNotFoundException if there is no such upload
+     * @throws IllegalArgumentException if the index is out of range
+     */
+    default UploadSession saveChunk(String uploadId, int index, InputStream content) throws IOException {
+        return saveChunk(uploadId, index, content, null);
+    }
+
+    /**
+     * Saves a chunk if it matches the expected hash, replacing a chunk with the same index received earlier.
+     *
+     * @param uploadId
+     * @param index zero based chunk number
+     * @param content
+     * @param expectedHash <code>sha256tree</code> hash of the chunk, or null to save it without checking
+     * @return the session with the chunks received so far
+     * @throws FileNotFoundException if there is no such upload
+     * @throws IllegalArgumentException if the index is out of range, or the chunk does not match the hash
+     * @throws IllegalStateException if the upload is being committed
+     */
+    UploadSession saveChunk(String uploadId, int index, InputStream content, String expectedHash) throws IOException;
+
+    /**
+     * @param uploadId
+     * @return the session with the chunks received so far
+     * @throws FileNotFoundException if there is no such upload
+     */
+    UploadSession getSession(String uploadId) throws IOException;
+
+    /**
+     * Streams the chunks, in order, to the <code>fileSaver</code> and removes the upload. An upload with a content
+     * hash is passed with the hash and no input stream, for the transfer delegate to copy without hashing it again.
+     *
+     * @param uploadId
+     * @param fileSaver
+     * @return meta data of the stored file, with the id from the <code>fileSaver</code>
+     * @throws FileNotFoundException if there is no such upload
+     * @throws IllegalStateException if chunks are missing, or the upload is being committed already
+     */
+    FileMetaData commit(String uploadId, FileSaver fileSaver) throws IOException;
+
+    /**
+     * Removes the upload and the chunks received.
+     *
+     * @param uploadId
+     * @throws IOException
+     */
+    void abort(String uploadId) throws IOException;
+
+    @FunctionalInterface
+    interface FileSaver {
+
+        String saveFile(FileMetaData fileMetaData, FileTransferDelegate fileTransferDelegate) throws IOException;
+    }
+}
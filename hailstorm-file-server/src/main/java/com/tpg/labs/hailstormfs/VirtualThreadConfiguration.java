@@ -0,0 +1,39 @@
+package com.tpg.labs.hailstormfs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Handles each request on its own virtual thread instead of the Tomcat worker pool, if the server is started with
+ * <code>--virtualThreads=true</code>. A request blocked on the file system then holds no platform thread, so the
+ * number of requests in progress is not limited by the size of the pool. Needs Java 21 or later.
+ */
+@Configuration
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+@ConditionalOnProperty(name = "virtualThreads", havingValue = "true")
+public class VirtualThreadConfiguration implements DisposableBean {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final ExecutorService executorService = VirtualThreads.newThreadPerTaskExecutor("http-virtual-");
+
+    @Bean
+    public TomcatProtocolHandlerCustomizer<?> virtualThreadProtocolHandlerCustomizer() {
+        return protocolHandler -> {
+            logger.info("Handling requests on virtual threads");
+            protocolHandler.setExecutor(executorService);
+        };
+    }
+
+    @Override
+    public void destroy() {
+        executorService.shutdown();
+    }
+}
@@ -0,0 +1,166 @@
+package com.tpg.labs.hailstormfs;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
+import org.springframework.util.StreamUtils;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class CachingStorageServiceTest {
+
+    private static final Path CACHE_PATH = Paths.get("/tmp/hailstorm/test/cache");
+
+    private final StorageService backingStorage = mock(StorageService.class);
+    private CachingStorageService cachingStorageService;
+
+    @BeforeEach
+    void createServiceInstance() throws Exception {
+        cachingStorageService = new CachingStorageService(backingStorage, CACHE_PATH, 10);
+        cachingStorageService.afterPropertiesSet();
+    }
+
+    @AfterEach
+    void closeServiceInstance() {
+        cachingStorageService.destroy();
+    }
+
+    private void storeFile(String fileId, String content) throws FileNotFoundException {
+        when(backingStorage.getFile(fileId, "a.txt")).thenReturn(new ByteArrayResource(content.getBytes()));
+    }
+
+    private static String readContent(Resource file) throws IOException {
+        try (InputStream inputStream = file.getInputStream()) {
+            return StreamUtils.copyToString(inputStream, StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    void shouldReadThroughAndServeFromCache() throws Exception {
+        storeFile("a1", "self");
+
+        assertEquals("self", readContent(cachingStorageService.getFile("a1", "a.txt")));
+        Resource cachedFile = cachingStorageService.getFile("a1", "a.txt");
+        assertEquals(CACHE_PATH.resolve("a1").resolve("a.txt"), cachedFile.getFile().toPath());
+        assertEquals("self", readContent(cachedFile));
+
+        verify(backingStorage, times(1)).getFile("a1", "a.txt");
+        assertEquals(1L, cachingStorageService.getHits());
+        assertEquals(1L, cachingStorageService.getMisses());
+        assertEquals(4L, cachingStorageService.getBytesSaved());
+        assertEquals(0.5, cachingStorageService.getHitRatio());
+    }
+
+    @Test
+    void shouldEvictLeastRecentlyReadFiles() throws Exception {
+        storeFile("a1", "self");
+        storeFile("b2", "them");
+        storeFile("c3", "else");
+
+        cachingStorageService.getFile("a1", "a.txt");
+        cachingStorageService.getFile("b2", "a.txt");
+        cachingStorageService.getFile("a1", "a.txt");
+        cachingStorageService.getFile("c3", "a.txt");
+
+        assertEquals(8L, cachingStorageService.size());
+        assertTrue(Files.exists(CACHE_PATH.resolve("a1").resolve("a.txt")));
+        assertFalse(Files.exists(CACHE_PATH.resolve("b2").resolve("a.txt")));
+        assertTrue(Files.exists(CACHE_PATH.resolve("c3").resolve("a.txt")));
+    }
+
+    @Test
+    void shouldReadFileEvictedBeforeItIsOpenedFromBackingStorage() throws Exception {
+        storeFile("a1", "self");
+        storeFile("b2", "them");
+        storeFile("c3", "else");
+
+        Resource file = cachingStorageService.getFile("a1", "a.txt");
+        cachingStorageService.getFile("b2", "a.txt");
+        cachingStorageService.getFile("c3", "a.txt");
+        assertFalse(Files.exists(CACHE_PATH.resolve("a1").resolve("a.txt")));
+
+        assertEquals(4L, file.contentLength());
+        assertEquals("self", readContent(file));
+        verify(backingStorage, times(2)).getFile("a1", "a.txt");
+    }
+
+    @Test
+    void shouldNotCacheFileLargerThanCache() throws Exception {
+        storeFile("a1", "Worth lies in self");
+
+        assertEquals("Worth lies in self", readContent(cachingStorageService.getFile("a1", "a.txt")));
+        assertEquals(0L, cachingStorageService.size());
+        assertFalse(Files.exists(CACHE_PATH.resolve("a1")));
+    }
+
+    @Test
+    void shouldFetchConcurrentMissesOnce() throws Exception {
+        final CountDownLatch fetchStarted = new CountDownLatch(1);
+        final CountDownLatch fetchReleased = new CountDownLatch(1);
+        when(backingStorage.getFile("a1", "a.txt")).thenReturn(new ByteArrayResource("self".getBytes()) {
+            @Override
+            public InputStream getInputStream() throws IOException {
+                fetchStarted.countDown();
+                try {
+                    fetchReleased.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+
+                return super.getInputStream();
+            }
+        });
+
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            Future<Resource> first = executorService.submit(() -> cachingStorageService.getFile("a1", "a.txt"));
+            assertTrue(fetchStarted.await(5, TimeUnit.SECONDS));
+            Future<Resource> second = executorService.submit(() -> cachingStorageService.getFile("a1", "a.txt"));
+            Thread.sleep(100);
+            fetchReleased.countDown();
+
+            assertEquals("self", readContent(first.get()));
+            assertEquals("self", readContent(second.get()));
+            verify(backingStorage, times(1)).getFile("a1", "a.txt");
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    void shouldDropCachedFileOnDelete() throws Exception {
+        storeFile("a1", "self");
+        cachingStorageService.getFile("a1", "a.txt");
+
+        cachingStorageService.deleteFile("a1");
+        verify(backingStorage).deleteFile("a1");
+        assertFalse(Files.exists(CACHE_PATH.resolve("a1")));
+        assertEquals(0L, cachingStorageService.size());
+
+        when(backingStorage.getFile("a1", "a.txt")).thenThrow(new FileNotFoundException("a1/a.txt"));
+        assertThrows(FileNotFoundException.class, () -> cachingStorageService.getFile("a1", "a.txt"));
+    }
+
+    @Test
+    void shouldRejectPathsOutsideCache() {
+        assertThrows(FileNotFoundException.class, () -> cachingStorageService.getFile("..", "a.txt"));
+        assertThrows(FileNotFoundException.class, () -> cachingStorageService.getFile("a1", "../../a.txt"));
+        verifyNoInteractions(backingStorage);
+    }
+}
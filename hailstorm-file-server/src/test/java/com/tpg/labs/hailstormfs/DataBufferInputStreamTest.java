@@ -0,0 +1,105 @@
+package com.tpg.labs.hailstormfs;
+
+import io.netty.buffer.UnpooledByteBufAllocator;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+import org.springframework.core.io.buffer.PooledDataBuffer;
+import reactor.core.publisher.Flux;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DataBufferInputStreamTest {
+
+    private final DefaultDataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+
+    private DataBuffer buffer(String content) {
+        return bufferFactory.wrap(content.getBytes());
+    }
+
+    @Test
+    void shouldReadBuffersInOrder() throws IOException {
+        DataBufferInputStream inputStream = new DataBufferInputStream(2);
+        Flux.just(buffer("Worth "), buffer("lies "), buffer("in "), buffer("self")).subscribe(inputStream);
+
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] bytes = new byte[4];
+        int read;
+        while ((read = inputStream.read(bytes)) != -1) {
+            content.write(bytes, 0, read);
+        }
+
+        assertEquals("Worth lies in self", content.toString());
+        assertEquals(18L, inputStream.getBytesRead());
+    }
+
+    @Test
+    void shouldRequestOnlyAsBuffersAreRead() throws IOException {
+        final AtomicLong requested = new AtomicLong();
+        DataBufferInputStream inputStream = new DataBufferInputStream(2);
+        Flux.range(0, 10)
+                .map(i -> buffer("chunk"))
+                .doOnRequest(requested::addAndGet)
+                .subscribe(inputStream);
+
+        assertEquals(2L, requested.get());
+        inputStream.read(new byte[5]);
+        inputStream.read(new byte[5]);
+        assertEquals(3L, requested.get());
+        inputStream.close();
+    }
+
+    @Test
+    void shouldSurfaceErrorAsIOException() {
+        DataBufferInputStream inputStream = new DataBufferInputStream(2);
+        Flux.concat(Flux.just(buffer("Worth")), Flux.<DataBuffer>error(new IllegalStateException("Reset")))
+                .subscribe(inputStream);
+
+        assertThrows(IOException.class, () -> {
+            while (inputStream.read() != -1) {
+                // reads until the error
+            }
+        });
+    }
+
+    @Test
+    void shouldReleaseBuffersQueuedWhileClosing() throws Exception {
+        NettyDataBufferFactory nettyBufferFactory = new NettyDataBufferFactory(UnpooledByteBufAllocator.DEFAULT);
+        for (int i = 0; i < 100; i++) {
+            DataBufferInputStream inputStream = new DataBufferInputStream(2);
+            List<PooledDataBuffer> buffers = new ArrayList<>();
+            for (int j = 0; j < 1000; j++) {
+                buffers.add((PooledDataBuffer) nettyBufferFactory.wrap("Worth".getBytes()));
+            }
+
+            CountDownLatch start = new CountDownLatch(1);
+            Thread sender = new Thread(() -> {
+                awaitQuietly(start);
+                buffers.forEach(inputStream::onNext);
+            });
+
+            sender.start();
+            start.countDown();
+            inputStream.close();
+            sender.join();
+
+            assertTrue(buffers.stream().noneMatch(PooledDataBuffer::isAllocated));
+        }
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
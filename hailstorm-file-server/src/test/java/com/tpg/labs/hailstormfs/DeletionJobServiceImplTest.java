@@ -0,0 +1,106 @@
+package com.tpg.labs.hailstormfs;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class DeletionJobServiceImplTest {
+
+    private static final String TEST_BASE_URI = "/tmp/hailstorm/test/fs";
+
+    private LocalStorageServiceImpl storageService;
+    private DeletionJobServiceImpl service;
+
+    @BeforeEach
+    void createServiceInstances() throws Exception {
+        FileSystemUtils.deleteRecursively(new File(TEST_BASE_URI));
+        storageService = new LocalStorageServiceImpl();
+        storageService.setBaseURI(TEST_BASE_URI);
+        storageService.afterPropertiesSet();
+        service = new DeletionJobServiceImpl(storageService);
+        service.afterPropertiesSet();
+    }
+
+    @AfterEach
+    void destroyServiceInstances() throws Exception {
+        service.destroy();
+        storageService.destroy();
+    }
+
+    private String saveFile(String content, String prefix) throws IOException {
+        FileMetaData fileMetaData = new FileMetaData("a.txt",
+                "text/plain",
+                (long) content.length(),
+                new ByteArrayInputStream(content.getBytes())).withPathPrefix(prefix);
+
+        return storageService.saveFile(fileMetaData, mock(FileTransferDelegate.class));
+    }
+
+    private DeletionJob awaitCompletion(DeletionJob job) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (job.getState() == DeletionJob.State.RUNNING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        return job;
+    }
+
+    @Test
+    void shouldUnlistAtOnceAndDeleteInBackground() throws Exception {
+        List<String> fileIds = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            fileIds.add(saveFile("Worth lies in self " + i, "cuckoo"));
+        }
+
+        final String keptFileId = saveFile("Worth lies in self", "sparrow");
+
+        DeletionJob job = service.removeFilesWithPrefix("cuckoo");
+        assertEquals(20, job.getTotal());
+        assertEquals(0L, storageService.listPaths("cuckoo").count());
+        assertSame(job, service.getJob(job.getJobId()).orElse(null));
+
+        awaitCompletion(job);
+        assertEquals(DeletionJob.State.COMPLETED, job.getState());
+        assertEquals(20, job.getDeleted());
+        assertEquals(0, job.getFailed());
+        for (String fileId : fileIds) {
+            assertFalse(Files.exists(Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.STORAGE_DIR, fileId)));
+        }
+
+        assertTrue(Files.exists(Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.STORAGE_DIR, keptFileId)));
+    }
+
+    @Test
+    void shouldCompleteEmptyJob() throws Exception {
+        DeletionJob job = service.removeFilesWithPrefix("cuckoo");
+        assertEquals(DeletionJob.State.COMPLETED, job.getState());
+    }
+
+    @Test
+    void shouldCountFailedDeletions() throws Exception {
+        StorageService failingStorageService = mock(StorageService.class);
+        when(failingStorageService.unindexFilesWithPrefix("cuckoo")).thenReturn(Arrays.asList("a1", "b2"));
+        doThrow(new IOException("Permission denied")).when(failingStorageService).purgeFile("b2");
+        DeletionJobServiceImpl failingService = new DeletionJobServiceImpl(failingStorageService);
+        failingService.afterPropertiesSet();
+
+        DeletionJob job = awaitCompletion(failingService.removeFilesWithPrefix("cuckoo"));
+        assertEquals(1, job.getDeleted());
+        assertEquals(1, job.getFailed());
+        assertEquals(DeletionJob.State.COMPLETED, job.getState());
+        failingService.destroy();
+    }
+}
@@ -0,0 +1,114 @@
+package com.tpg.labs.hailstormfs;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+class FileArchiveTest {
+
+    private static final String TEST_BASE_URI = "/tmp/hailstorm/test/fs";
+
+    private LocalStorageServiceImpl storageService;
+
+    @BeforeEach
+    void createServiceInstance() throws Exception {
+        FileSystemUtils.deleteRecursively(new File(TEST_BASE_URI));
+        storageService = new LocalStorageServiceImpl();
+        storageService.setBaseURI(TEST_BASE_URI);
+        storageService.afterPropertiesSet();
+    }
+
+    @AfterEach
+    void closeServiceInstance() throws Exception {
+        storageService.destroy();
+    }
+
+    private String saveFile(String fileName, String content) throws IOException {
+        FileMetaData fileMetaData = new FileMetaData(fileName,
+                "text/plain",
+                (long) content.length(),
+                new ByteArrayInputStream(content.getBytes())).withPathPrefix("cuckoo");
+
+        return storageService.saveFile(fileMetaData, mock(FileTransferDelegate.class)) + "/" + fileName;
+    }
+
+    @Test
+    void shouldWriteZipOfFiles() throws Exception {
+        final String first = saveFile("a.jmx", "Worth lies in self");
+        final String second = saveFile("b.jar", "Know thyself");
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        int count = new FileArchive(storageService, FileArchive.Format.ZIP)
+                .write(Arrays.asList(first, second).iterator(), outputStream);
+
+        assertEquals(2, count);
+        Map<String, String> entries = new LinkedHashMap<>();
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(outputStream.toByteArray()))) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                entries.put(entry.getName(), StreamUtils.copyToString(zip, StandardCharsets.UTF_8));
+            }
+        }
+
+        assertEquals(Arrays.asList(first, second), Arrays.asList(entries.keySet().toArray()));
+        assertEquals("Worth lies in self", entries.get(first));
+        assertEquals("Know thyself", entries.get(second));
+    }
+
+    @Test
+    void shouldWriteTarOfFiles() throws Exception {
+        final String path = saveFile("a.jmx", "Worth lies in self");
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        new FileArchive(storageService, FileArchive.Format.TAR)
+                .write(Arrays.asList(path).iterator(), outputStream);
+
+        try (TarArchiveInputStream tar = new TarArchiveInputStream(
+                new ByteArrayInputStream(outputStream.toByteArray()))) {
+
+            TarArchiveEntry entry = tar.getNextTarEntry();
+            assertEquals(path, entry.getName());
+            assertEquals(18L, entry.getSize());
+            assertEquals("Worth lies in self", StreamUtils.copyToString(tar, StandardCharsets.UTF_8));
+            assertNull(tar.getNextTarEntry());
+        }
+    }
+
+    @Test
+    void shouldLeaveOutRemovedFiles() throws Exception {
+        final String path = saveFile("a.jmx", "Worth lies in self");
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        int count = new FileArchive(storageService, FileArchive.Format.ZIP)
+                .write(Arrays.asList("0000/b.jmx", path).iterator(), outputStream);
+
+        assertEquals(1, count);
+    }
+
+    @Test
+    void shouldRejectInvalidPaths() {
+        assertThrows(FileNotFoundException.class, () -> FileArchive.getFile(storageService, "0000"));
+        assertThrows(FileNotFoundException.class, () -> FileArchive.getFile(storageService, "0000/"));
+        assertThrows(FileNotFoundException.class, () -> FileArchive.getFile(storageService, "../../etc/passwd"));
+        assertThrows(FileNotFoundException.class, () -> FileArchive.getFile(storageService, "../index.log"));
+    }
+}
@@ -3,6 +3,7 @@ package com.tpg.labs.hailstormfs;
 import org.junit.jupiter.api.Test;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -20,4 +21,67 @@ class FileMetaDataTest {
 
         assertDoesNotThrow(fileMetaData::toString);
     }
+
+    @Test
+    void shouldHashWhileTransferring() throws Exception {
+        final String content = "Hello World";
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        String hash = FileMetaData.transferAndHash(new FileMetaData(
+                "a.txt",
+                "text/plain",
+                (long) content.length(),
+                new ByteArrayInputStream(content.getBytes())).withPathPrefix("cuckoo"), sink);
+
+        assertEquals(content, sink.toString());
+        assertEquals(FileMetaData.calculateHash(new FileMetaData(
+                "a.txt",
+                "text/plain",
+                (long) content.length(),
+                new ByteArrayInputStream(content.getBytes())).withPathPrefix("cuckoo")), hash);
+    }
+
+    @Test
+    void shouldKeepSha1IdsByDefault() throws Exception {
+        FileMetaData fileMetaData = new FileMetaData("a.txt", "text/plain", 11L,
+                new ByteArrayInputStream("Hello World".getBytes())).withPathPrefix("cuckoo");
+
+        assertEquals(FileMetaData.calculateHash(new FileMetaData("a.txt", "text/plain", 11L,
+                new ByteArrayInputStream("Hello World".getBytes())).withPathPrefix("cuckoo")),
+                FileMetaData.calculateHash(fileMetaData, HashAlgorithm.SHA1));
+        assertEquals("0a4d55a8d778e5022fab701977c5d840bbc486d0", fileMetaData.getContentHash());
+    }
+
+    @Test
+    void shouldPrefixIdsWithAlgorithm() throws Exception {
+        FileMetaData fileMetaData = new FileMetaData("a.txt", "text/plain", 11L,
+                new ByteArrayInputStream("Hello World".getBytes()));
+
+        String fileId = FileMetaData.calculateHash(fileMetaData, HashAlgorithm.SHA256);
+        assertEquals("sha256-a591a6d40bf420404a011733cfb7b190d62c65bf0bcda32b57b277d9ad9f146e", fileId);
+        assertEquals(fileId, fileMetaData.getContentHash());
+        assertEquals(HashAlgorithm.SHA256, HashAlgorithm.ofId(fileId));
+        assertEquals(HashAlgorithm.SHA1, HashAlgorithm.ofId("0a4d55a8d778e5022fab701977c5d840bbc486d0"));
+    }
+
+    @Test
+    void shouldHashPrefixWithContentDigest() throws Exception {
+        FileMetaData fileMetaData = new FileMetaData("a.txt", "text/plain", 11L,
+                new ByteArrayInputStream("Hello World".getBytes())).withPathPrefix("cuckoo");
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+
+        String fileId = FileMetaData.transferAndHash(fileMetaData, HashAlgorithm.BLAKE3, sink);
+        assertEquals("Hello World", sink.toString());
+        assertTrue(fileId.startsWith("blake3-"));
+        assertTrue(fileMetaData.getContentHash().startsWith("blake3-"));
+        assertNotEquals(fileMetaData.getContentHash(), fileId);
+        assertEquals(fileId, FileMetaData.calculateHash(new FileMetaData("a.txt", "text/plain", 11L,
+                new ByteArrayInputStream("Hello World".getBytes())).withPathPrefix("cuckoo"), HashAlgorithm.BLAKE3));
+    }
+
+    @Test
+    void shouldParseAlgorithmNames() {
+        assertEquals(HashAlgorithm.SHA256, HashAlgorithm.of("SHA-256"));
+        assertEquals(HashAlgorithm.BLAKE3, HashAlgorithm.of("blake3"));
+        assertThrows(IllegalArgumentException.class, () -> HashAlgorithm.of("md5"));
+    }
 }
@@ -0,0 +1,178 @@
+package com.tpg.labs.hailstormfs;
+
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * Load benchmark of the servlet stack on the Tomcat worker pool, and on virtual threads if the JVM supports them.
+ *
+ * Each client uploads chunks at a limited rate, as a client on a slow network would, and downloads a stored file,
+ * so requests hold their thread while they wait for the network or the disk. Run with
+ * <code>./gradlew loadBenchmark</code>, settings are read from system properties:
+ * <ul>
+ *     <li><code>clients</code> concurrent clients, 400 by default</li>
+ *     <li><code>requests</code> uploads and downloads per client, 20 by default</li>
+ *     <li><code>chunkSize</code> bytes per upload, 256 KiB by default</li>
+ *     <li><code>sendDelay</code> milliseconds the client waits after each 16 KiB of a chunk, 2 by default</li>
+ *     <li><code>maxThreads</code> size of the Tomcat worker pool, 200 by default</li>
+ * </ul>
+ */
+public class FileServerLoadBenchmark {
+
+    private static final int SEND_BUFFER_SIZE = 16 * 1024;
+
+    private final int clients = Integer.getInteger("clients", 400);
+    private final int requests = Integer.getInteger("requests", 20);
+    private final int chunkSize = Integer.getInteger("chunkSize", 256 * 1024);
+    private final long sendDelay = Long.getLong("sendDelay", 2);
+    private final int maxThreads = Integer.getInteger("maxThreads", 200);
+
+    public static void main(String[] args) throws Exception {
+        FileServerLoadBenchmark benchmark = new FileServerLoadBenchmark();
+        benchmark.run(false);
+        if (VirtualThreads.isSupported()) {
+            benchmark.run(true);
+        } else {
+            System.out.printf("Skipping virtual threads, not supported on Java %s%n",
+                    System.getProperty("java.version"));
+        }
+    }
+
+    private void run(boolean virtualThreads) throws Exception {
+        Path basePath = Files.createTempDirectory("hailstorm-fs-benchmark");
+        ConfigurableApplicationContext context = SpringApplication.run(HailstormFileServerApplication.class,
+                "--server.port=0",
+                "--server.tomcat.max-threads=" + maxThreads,
+                "--basePath=" + basePath,
+                "--virtualThreads=" + virtualThreads,
+                "--logging.level.root=WARN");
+
+        try {
+            int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+            String fileUrl = storeFile(context.getBean(StorageService.class), port);
+            UploadSessionService uploadSessionService = context.getBean(UploadSessionService.class);
+            List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+
+            ExecutorService clientPool = Executors.newFixedThreadPool(clients);
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+                final String uploadId = uploadSessionService.createSession("load.bin", null, "benchmark", null)
+                        .getUploadId();
+                final String uploadUrl = "http://localhost:" + port + "/uploads/" + uploadId + "/chunks/";
+                results.add(clientPool.submit(() -> {
+                    start.await();
+                    for (int index = 0; index < requests; index++) {
+                        final String chunkUrl = uploadUrl + index;
+                        latencies.add(timed(() -> upload(chunkUrl)));
+                        latencies.add(timed(() -> download(fileUrl)));
+                    }
+
+                    return null;
+                }));
+            }
+
+            final long startTime = System.nanoTime();
+            start.countDown();
+            for (Future<?> result : results) {
+                result.get();
+            }
+
+            final long elapsed = System.nanoTime() - startTime;
+            clientPool.shutdown();
+            report(virtualThreads ? "virtual threads" : "platform threads (" + maxThreads + ")", elapsed, latencies);
+        } finally {
+            context.close();
+            FileSystemUtils.deleteRecursively(basePath);
+        }
+    }
+
+    private String storeFile(StorageService storageService, int port) throws IOException {
+        FileMetaData fileMetaData = new FileMetaData("load.bin",
+                "application/octet-stream",
+                (long) chunkSize,
+                new ByteArrayInputStream(new byte[chunkSize])).withPathPrefix("benchmark");
+
+        String fileId = storageService.saveFile(fileMetaData, mock(FileTransferDelegate.class));
+        return "http://localhost:" + port + "/" + fileId + "/load.bin";
+    }
+
+    private void upload(String url) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod("PUT");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(chunkSize);
+        byte[] buffer = new byte[SEND_BUFFER_SIZE];
+        try (OutputStream outputStream = connection.getOutputStream()) {
+            for (int sent = 0; sent < chunkSize; sent += buffer.length) {
+                outputStream.write(buffer, 0, Math.min(buffer.length, chunkSize - sent));
+                outputStream.flush();
+                Thread.sleep(sendDelay);
+            }
+        }
+
+        consume(connection);
+    }
+
+    private void download(String url) throws Exception {
+        consume((HttpURLConnection) new URL(url).openConnection());
+    }
+
+    private void consume(HttpURLConnection connection) throws IOException {
+        if (connection.getResponseCode() >= 300) {
+            throw new IOException("Failed with " + connection.getResponseCode() + ": " + connection.getURL());
+        }
+
+        byte[] buffer = new byte[SEND_BUFFER_SIZE];
+        try (InputStream inputStream = connection.getInputStream()) {
+            while (inputStream.read(buffer) != -1) {
+                // the response is read to the end, so the connection can be reused
+            }
+        }
+    }
+
+    private static long timed(ClientRequest request) throws Exception {
+        final long startTime = System.nanoTime();
+        request.send();
+        return System.nanoTime() - startTime;
+    }
+
+    private void report(String mode, long elapsed, List<Long> latencies) {
+        long[] sorted = latencies.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(sorted);
+        System.out.printf("%-24s %8.1f req/s  p50 %6d ms  p99 %6d ms  max %6d ms%n",
+                mode,
+                sorted.length / (elapsed / 1e9),
+                TimeUnit.NANOSECONDS.toMillis(sorted[sorted.length / 2]),
+                TimeUnit.NANOSECONDS.toMillis(sorted[(int) (sorted.length * 0.99)]),
+                TimeUnit.NANOSECONDS.toMillis(sorted[sorted.length - 1]));
+    }
+
+    @FunctionalInterface
+    private interface ClientRequest {
+
+        void send() throws Exception;
+    }
+}
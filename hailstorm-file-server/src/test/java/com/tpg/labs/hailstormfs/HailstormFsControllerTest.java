@@ -1,17 +1,38 @@
 package com.tpg.labs.hailstormfs;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.stream.Stream;
+import java.util.zip.ZipInputStream;
 
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
 import static org.mockito.Mockito.*;
@@ -27,6 +48,15 @@ class HailstormFsControllerTest {
     @MockBean
     private StorageService storageService;
 
+    @MockBean
+    private UploadSessionService uploadSessionService;
+
+    @MockBean
+    private DeletionJobService deletionJobService;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
     @Test
     public void shouldRespondToOptions() throws Exception {
         this.mvc.perform(options("/upload"))
@@ -51,6 +81,80 @@ class HailstormFsControllerTest {
         verify(storageService).saveFile(any(FileMetaData.class), any(FileTransferDelegate.class));
     }
 
+    @Test
+    public void shouldSaveUploadedFiles() throws Exception {
+        when(storageService.saveFile(any(FileMetaData.class), any(FileTransferDelegate.class)))
+                .thenReturn("ceb007e9182", "a1b2c3d4e5f");
+
+        this.mvc.perform(multipart("/files")
+                .file(new MockMultipartFile("file", "a.jmx", "text/xml", "<jmx></jmx>".getBytes()))
+                .file(new MockMultipartFile("file", "b.csv", "text/csv", "a,b".getBytes()))
+                .param("prefix", "cuckoo"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].id").value("ceb007e9182"))
+                .andExpect(jsonPath("$[0].originalName").value("a.jmx"))
+                .andExpect(jsonPath("$[1].id").value("a1b2c3d4e5f"))
+                .andExpect(jsonPath("$[1].pathPrefix").value("cuckoo"));
+
+        verify(storageService, times(2)).saveFile(any(FileMetaData.class), any(FileTransferDelegate.class));
+    }
+
+    @Test
+    public void shouldReportFilesNotSavedInBatch() throws Exception {
+        when(storageService.saveFile(any(FileMetaData.class), any(FileTransferDelegate.class)))
+                .thenThrow(new IOException("No space left on device"))
+                .thenReturn("a1b2c3d4e5f");
+
+        this.mvc.perform(multipart("/files")
+                .file(new MockMultipartFile("file", "a.jmx", "text/xml", "<jmx></jmx>".getBytes()))
+                .file(new MockMultipartFile("file", "b.csv", "text/csv", "a,b".getBytes())))
+                .andExpect(status().isMultiStatus())
+                .andExpect(jsonPath("$[0].originalName").value("a.jmx"))
+                .andExpect(jsonPath("$[0].id").value(nullValue()))
+                .andExpect(jsonPath("$[1].id").value("a1b2c3d4e5f"));
+    }
+
+    @Test
+    public void shouldStreamArchiveOfPrefix() throws Exception {
+        when(storageService.listPaths("cuckoo"))
+                .thenReturn(Stream.of(Paths.get("/tmp/storage/ceb007e9182/a.jmx")));
+        when(storageService.getFile("ceb007e9182", "a.jmx"))
+                .thenReturn(new ByteArrayResource("<jmx></jmx>".getBytes()));
+
+        MvcResult mvcResult = this.mvc.perform(get("/archive").param("prefix", "cuckoo"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        byte[] archive = this.mvc.perform(asyncDispatch(mvcResult))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CONTENT_TYPE, "application/zip"))
+                .andExpect(header().string(HttpHeaders.CONTENT_DISPOSITION, containsString("cuckoo.zip")))
+                .andReturn().getResponse().getContentAsByteArray();
+
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(archive))) {
+            assertEquals("ceb007e9182/a.jmx", zip.getNextEntry().getName());
+        }
+    }
+
+    @Test
+    public void shouldRespondWith404IfArchivedFileNotFound() throws Exception {
+        when(storageService.getFile(anyString(), anyString())).thenThrow(new FileNotFoundException());
+
+        this.mvc.perform(get("/archive").param("file", "ceb007e9182/a.jmx").param("format", "tar"))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    public void shouldRejectUnknownArchiveFormat() throws Exception {
+        when(storageService.getFile(anyString(), anyString()))
+                .thenReturn(new ByteArrayResource("<jmx></jmx>".getBytes()));
+
+        this.mvc.perform(post("/archive").param("format", "rar")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("[\"ceb007e9182/a.jmx\"]"))
+                .andExpect(status().isBadRequest());
+    }
+
     @Test
     public void shouldDeleteFile() throws Exception {
         final String fileId = "ceb007e9182";
@@ -70,6 +174,248 @@ class HailstormFsControllerTest {
                 .andExpect(content().string(content));
     }
 
+    @Test
+    public void shouldRedirectToDownloadUrl() throws Exception {
+        when(storageService.getFile(anyString(), anyString()))
+                .thenReturn(new ByteArrayResource("Hello world".getBytes()));
+        when(storageService.getDownloadUrl("ceb007e9182", "a.txt"))
+                .thenReturn(Optional.of(new URL("https://bucket.s3.amazonaws.com/storage/ceb007e9182/a.txt")));
+
+        this.mvc.perform(get("/ceb007e9182/a.txt"))
+                .andExpect(status().isTemporaryRedirect())
+                .andExpect(header().string(HttpHeaders.LOCATION,
+                        "https://bucket.s3.amazonaws.com/storage/ceb007e9182/a.txt"));
+    }
+
+    @Test
+    public void shouldRespondNotModifiedBeforeRedirecting() throws Exception {
+        when(storageService.getFile(anyString(), anyString()))
+                .thenReturn(new ByteArrayResource("Hello world".getBytes()));
+        when(storageService.getDownloadUrl("ceb007e9182", "a.txt"))
+                .thenReturn(Optional.of(new URL("https://bucket.s3.amazonaws.com/storage/ceb007e9182/a.txt")));
+
+        this.mvc.perform(get("/ceb007e9182/a.txt").header(HttpHeaders.IF_NONE_MATCH, "\"ceb007e9182\""))
+                .andExpect(status().isNotModified())
+                .andExpect(header().doesNotExist(HttpHeaders.LOCATION));
+    }
+
+    @Test
+    public void shouldServeFileWithETag() throws Exception {
+        when(storageService.getFile(anyString(), anyString()))
+                .thenReturn(new ByteArrayResource("Hello world".getBytes()));
+
+        this.mvc.perform(get("/ceb007e9182/a.txt"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.ETAG, "\"ceb007e9182\""))
+                .andExpect(header().string(HttpHeaders.ACCEPT_RANGES, "bytes"));
+    }
+
+    @Test
+    public void shouldRespondNotModifiedIfETagMatches() throws Exception {
+        when(storageService.getFile(anyString(), anyString()))
+                .thenReturn(new ByteArrayResource("Hello world".getBytes()));
+
+        this.mvc.perform(get("/ceb007e9182/a.txt").header(HttpHeaders.IF_NONE_MATCH, "\"ceb007e9182\""))
+                .andExpect(status().isNotModified())
+                .andExpect(content().string(""));
+    }
+
+    @Test
+    public void shouldServeRange() throws Exception {
+        when(storageService.getFile(anyString(), anyString()))
+                .thenReturn(new ByteArrayResource("Hello world".getBytes()));
+
+        this.mvc.perform(get("/ceb007e9182/a.txt").header(HttpHeaders.RANGE, "bytes=6-"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes 6-10/11"))
+                .andExpect(content().string("world"));
+    }
+
+    @Test
+    public void shouldServeMultipleRanges() throws Exception {
+        when(storageService.getFile(anyString(), anyString()))
+                .thenReturn(new ByteArrayResource("Hello world".getBytes()));
+
+        this.mvc.perform(get("/ceb007e9182/a.txt").header(HttpHeaders.RANGE, "bytes=0-4,6-10"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string(HttpHeaders.CONTENT_TYPE, startsWith("multipart/byteranges")))
+                .andExpect(content().string(containsString("Hello")))
+                .andExpect(content().string(containsString("world")));
+    }
+
+    @Test
+    public void shouldServeWholeFileIfRangeValidatorDoesNotMatch() throws Exception {
+        final String content = "Hello world";
+        when(storageService.getFile(anyString(), anyString()))
+                .thenReturn(new ByteArrayResource(content.getBytes()));
+
+        this.mvc.perform(get("/ceb007e9182/a.txt")
+                .header(HttpHeaders.RANGE, "bytes=6-")
+                .header(HttpHeaders.IF_RANGE, "\"0000\""))
+                .andExpect(status().isOk())
+                .andExpect(content().string(content));
+    }
+
+    @Test
+    public void shouldSendFileWithZeroCopyIfSupported() throws Exception {
+        File file = createLargeFile();
+        when(storageService.getFile(anyString(), anyString())).thenReturn(new FileSystemResource(file));
+
+        this.mvc.perform(get("/ceb007e9182/a.txt").requestAttr(HailstormFsController.SENDFILE_SUPPORT_ATTR, true))
+                .andExpect(status().isOk())
+                .andExpect(header().longValue(HttpHeaders.CONTENT_LENGTH, file.length()))
+                .andExpect(content().contentType(MediaType.TEXT_PLAIN))
+                .andExpect(request().attribute(HailstormFsController.SENDFILE_FILENAME_ATTR, file.getCanonicalPath()))
+                .andExpect(request().attribute(HailstormFsController.SENDFILE_START_ATTR, 0L))
+                .andExpect(request().attribute(HailstormFsController.SENDFILE_END_ATTR, file.length()))
+                .andExpect(content().string(""));
+    }
+
+    @Test
+    public void shouldSendRangeWithZeroCopyIfSupported() throws Exception {
+        File file = createLargeFile();
+        when(storageService.getFile(anyString(), anyString())).thenReturn(new FileSystemResource(file));
+
+        this.mvc.perform(get("/ceb007e9182/a.txt")
+                .requestAttr(HailstormFsController.SENDFILE_SUPPORT_ATTR, true)
+                .header(HttpHeaders.RANGE, "bytes=1024-"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string(HttpHeaders.CONTENT_RANGE,
+                        String.format("bytes 1024-%d/%d", file.length() - 1, file.length())))
+                .andExpect(content().contentType(MediaType.TEXT_PLAIN))
+                .andExpect(request().attribute(HailstormFsController.SENDFILE_START_ATTR, 1024L))
+                .andExpect(request().attribute(HailstormFsController.SENDFILE_END_ATTR, file.length()));
+    }
+
+    @Test
+    public void shouldSendUnknownTypeWithZeroCopyAsOctetStream() throws Exception {
+        File file = createLargeFile();
+        when(storageService.getFile(anyString(), anyString())).thenReturn(new FileSystemResource(file));
+
+        this.mvc.perform(get("/ceb007e9182/a.hailstorm").requestAttr(HailstormFsController.SENDFILE_SUPPORT_ATTR, true))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(MediaType.APPLICATION_OCTET_STREAM))
+                .andExpect(request().attribute(HailstormFsController.SENDFILE_FILENAME_ATTR, file.getCanonicalPath()));
+    }
+
+    @Test
+    public void shouldCountBytesSent() throws Exception {
+        File file = createLargeFile();
+        when(storageService.getFile(anyString(), anyString())).thenReturn(new FileSystemResource(file));
+        final double sent = bytesSent();
+
+        this.mvc.perform(get("/ceb007e9182/a.txt").requestAttr(HailstormFsController.SENDFILE_SUPPORT_ATTR, true))
+                .andExpect(status().isOk());
+        assertEquals(sent + file.length(), bytesSent());
+
+        this.mvc.perform(get("/ceb007e9182/a.txt").header(HttpHeaders.RANGE, "bytes=1024-"))
+                .andExpect(status().isPartialContent());
+        assertEquals(sent + 2 * file.length() - 1024, bytesSent());
+        assertEquals(0.0, meterRegistry.get("hailstorm.fs.storage.transfers.active").tag("direction", "out")
+                .gauge().value());
+    }
+
+    private double bytesSent() {
+        return meterRegistry.get("hailstorm.fs.storage.bytes").tag("direction", "out").counter().count();
+    }
+
+    @Test
+    public void shouldCopyFileIfZeroCopyNotSupported() throws Exception {
+        File file = createLargeFile();
+        when(storageService.getFile(anyString(), anyString())).thenReturn(new FileSystemResource(file));
+
+        this.mvc.perform(get("/ceb007e9182/a.txt"))
+                .andExpect(status().isOk())
+                .andExpect(request().attribute(HailstormFsController.SENDFILE_FILENAME_ATTR, nullValue()))
+                .andExpect(content().bytes(Files.readAllBytes(file.toPath())));
+    }
+
+    @Test
+    public void shouldServeGzipFileIfAccepted() throws Exception {
+        final byte[] compressed = new byte[] {0x1f, (byte) 0x8b, 8, 0};
+        when(storageService.getFile(anyString(), anyString()))
+                .thenReturn(new ByteArrayResource("Hello world".getBytes()));
+        when(storageService.getEncodedFile(anyString(), anyString(), eq("gzip")))
+                .thenReturn(Optional.of(new ByteArrayResource(compressed)));
+
+        this.mvc.perform(get("/ceb007e9182/a.txt").header(HttpHeaders.ACCEPT_ENCODING, "br, gzip;q=0.8"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CONTENT_ENCODING, "gzip"))
+                .andExpect(header().string(HttpHeaders.CONTENT_TYPE, startsWith("text/plain")))
+                .andExpect(header().string(HttpHeaders.ETAG, "\"ceb007e9182-gzip\""))
+                .andExpect(result -> assertTrue(
+                        result.getResponse().getHeaders(HttpHeaders.VARY).contains(HttpHeaders.ACCEPT_ENCODING)))
+                .andExpect(content().bytes(compressed));
+    }
+
+    @Test
+    public void shouldServeIdentityIfGzipNotAccepted() throws Exception {
+        final String content = "Hello world";
+        when(storageService.getFile(anyString(), anyString()))
+                .thenReturn(new ByteArrayResource(content.getBytes()));
+
+        this.mvc.perform(get("/ceb007e9182/a.txt").header(HttpHeaders.ACCEPT_ENCODING, "gzip;q=0, identity"))
+                .andExpect(status().isOk())
+                .andExpect(header().doesNotExist(HttpHeaders.CONTENT_ENCODING))
+                .andExpect(result -> assertTrue(
+                        result.getResponse().getHeaders(HttpHeaders.VARY).contains(HttpHeaders.ACCEPT_ENCODING)))
+                .andExpect(content().string(content));
+
+        verify(storageService, never()).getEncodedFile(anyString(), anyString(), anyString());
+    }
+
+    @Test
+    public void shouldCreateUpload() throws Exception {
+        when(uploadSessionService.createSession("a.jtl", null, "cuckoo", 1024L))
+                .thenReturn(new UploadSession("1b4e28ba", "a.jtl", null, "cuckoo", 1024L));
+
+        this.mvc.perform(post("/uploads").param("fileName", "a.jtl").param("prefix", "cuckoo").param("size", "1024"))
+                .andExpect(status().isCreated())
+                .andExpect(header().string(HttpHeaders.LOCATION, "/uploads/1b4e28ba"))
+                .andExpect(jsonPath("$.uploadId").value("1b4e28ba"));
+    }
+
+    @Test
+    public void shouldUploadChunk() throws Exception {
+        UploadSession session = new UploadSession("1b4e28ba", "a.jtl", null, "cuckoo", null);
+        session.addChunk(new UploadSession.Chunk(3, 5));
+        when(uploadSessionService.saveChunk(eq("1b4e28ba"), eq(3), any(InputStream.class), isNull()))
+                .thenReturn(session);
+
+        this.mvc.perform(put("/uploads/1b4e28ba/chunks/3").content("Hello".getBytes()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.chunks[0].index").value(3))
+                .andExpect(jsonPath("$.receivedBytes").value(5));
+    }
+
+    @Test
+    public void shouldRespondWithConflictIfChunksAreMissing() throws Exception {
+        when(uploadSessionService.commit(eq("1b4e28ba"), any(UploadSessionService.FileSaver.class)))
+                .thenThrow(new IllegalStateException());
+
+        this.mvc.perform(post("/uploads/1b4e28ba/commit"))
+                .andExpect(status().isConflict());
+    }
+
+    @Test
+    public void shouldCommitUpload() throws Exception {
+        when(uploadSessionService.commit(eq("1b4e28ba"), any(UploadSessionService.FileSaver.class)))
+                .thenReturn(new FileMetaData("a.jtl", null, 5L, null).withId("ceb007e9182"));
+
+        this.mvc.perform(post("/uploads/1b4e28ba/commit"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.id").value("ceb007e9182"));
+    }
+
+    private File createLargeFile() throws IOException {
+        File file = File.createTempFile("hailstorm-fs", ".txt");
+        file.deleteOnExit();
+        byte[] content = new byte[64 * 1024];
+        Arrays.fill(content, (byte) 'a');
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
     @Test
     public void shouldRespondWith404IfFileNotFound() throws Exception {
         when(storageService.getFile(anyString(), anyString()))
@@ -81,7 +427,23 @@ class HailstormFsControllerTest {
 
     @Test
     public void shouldPurgeFilesWithPrefix() throws Exception {
+        when(deletionJobService.removeFilesWithPrefix("abc")).thenReturn(new DeletionJob("1b4e28ba", "abc", 2));
+
         this.mvc.perform(delete("/files/abc"))
-                .andExpect(status().is2xxSuccessful());
+                .andExpect(status().isAccepted())
+                .andExpect(header().string(HttpHeaders.LOCATION, "/jobs/1b4e28ba"))
+                .andExpect(jsonPath("$.state").value("RUNNING"));
+    }
+
+    @Test
+    public void shouldGetDeletionJob() throws Exception {
+        when(deletionJobService.getJob("1b4e28ba")).thenReturn(Optional.of(new DeletionJob("1b4e28ba", "abc", 0)));
+
+        this.mvc.perform(get("/jobs/1b4e28ba"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.state").value("COMPLETED"));
+
+        this.mvc.perform(get("/jobs/0000"))
+                .andExpect(status().isNotFound());
     }
 }
@@ -0,0 +1,92 @@
+package com.tpg.labs.hailstormfs;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ListingCacheTest {
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private Supplier<List<Path>> loader(String fileId) {
+        return () -> {
+            loads.incrementAndGet();
+            return Collections.singletonList(Paths.get(fileId, "a.txt"));
+        };
+    }
+
+    @Test
+    void shouldLoadOnceUntilInvalidated() {
+        ListingCache listingCache = new ListingCache(10, 60000);
+        listingCache.get("cuckoo", null, loader("a1"));
+        listingCache.get("cuckoo", null, loader("a1"));
+        listingCache.get("cuckoo", "reports", loader("a1"));
+        assertEquals(2, loads.get());
+        assertEquals(1L, listingCache.getHits());
+        assertEquals(2L, listingCache.getMisses());
+
+        listingCache.get("cuckoo2", null, loader("b2"));
+        listingCache.invalidate("cuckoo");
+        assertEquals(1, listingCache.size(), "other prefixes are kept");
+
+        assertEquals(Paths.get("c3", "a.txt"), listingCache.get("cuckoo", "reports", loader("c3")).get(0));
+    }
+
+    @Test
+    void shouldEvictLeastRecentlyUsed() {
+        ListingCache listingCache = new ListingCache(2, 60000);
+        listingCache.get("a", null, loader("a1"));
+        listingCache.get("b", null, loader("b2"));
+        listingCache.get("a", null, loader("a1"));
+        listingCache.get("c", null, loader("c3"));
+        assertEquals(2, listingCache.size());
+
+        loads.set(0);
+        listingCache.get("a", null, loader("a1"));
+        assertEquals(0, loads.get());
+        listingCache.get("b", null, loader("b2"));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void shouldExpireEntries() {
+        ListingCache listingCache = new ListingCache(10, 0);
+        listingCache.get("cuckoo", null, loader("a1"));
+        listingCache.get("cuckoo", null, loader("a1"));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void shouldNotKeepListingLoadedDuringInvalidation() {
+        ListingCache listingCache = new ListingCache(10, 60000);
+        listingCache.get("cuckoo", null, () -> {
+            listingCache.invalidate("cuckoo");
+            return Collections.emptyList();
+        });
+
+        assertEquals(0, listingCache.size());
+    }
+
+    @Test
+    void shouldPublishMetrics() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        ListingCache listingCache = new ListingCache(10, 60000);
+        listingCache.bindTo(meterRegistry);
+        listingCache.get("cuckoo", null, loader("a1"));
+        listingCache.get("cuckoo", null, loader("a1"));
+
+        assertEquals(1.0, meterRegistry.get("hailstorm.fs.listing.cache").tag("result", "hit")
+                .functionCounter().count());
+        assertEquals(1.0, meterRegistry.get("hailstorm.fs.listing.cache").tag("result", "miss")
+                .functionCounter().count());
+        assertEquals(1.0, meterRegistry.get("hailstorm.fs.listing.cache.size").gauge().value());
+    }
+}
@@ -1,5 +1,7 @@
 package com.tpg.labs.hailstormfs;
 
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.ApplicationArguments;
@@ -12,7 +14,13 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
@@ -57,23 +65,16 @@ class LocalStorageServiceImplTest {
 
         String savedFileId = service.saveFile(fileMetaData, delegate);
         assertNotNull(savedFileId);
-        verify(delegate).doTransfer(any(File.class));
-        final Path prefixInfoPath = Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.INFO_DIR, prefix);
-        assertTrue(Files.exists(prefixInfoPath));
-        Optional<Path> fileIdPathOpt = Files.list(prefixInfoPath).findFirst();
-        assertTrue(fileIdPathOpt.isPresent());
-        Path fileId = fileIdPathOpt.get();
-        File storedFile = Paths.get(
-                TEST_BASE_URI,
-                LocalStorageServiceImpl.STORAGE_DIR,
-                fileId.toFile().getName()
-        ).toFile();
+        verify(delegate, never()).doTransfer(any(File.class));
+        File storedFile = Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.STORAGE_DIR, savedFileId).toFile();
         assertTrue(storedFile.exists());
-        assertTrue(Paths.get(
-                TEST_BASE_URI,
-                LocalStorageServiceImpl.INFO_DIR,
-                fileId.toFile().getName()
-        ).toFile().exists());
+        assertEquals(Collections.singletonList(savedFileId), listFileIds(service.listPaths(prefix)));
+        assertTrue(Files.exists(Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.INDEX_FILE)));
+        assertFalse(Files.exists(Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.INFO_DIR)));
+    }
+
+    private List<String> listFileIds(Stream<Path> paths) {
+        return paths.map(path -> path.getParent().toFile().getName()).collect(Collectors.toList());
     }
 
     @Test
@@ -85,37 +86,11 @@ class LocalStorageServiceImplTest {
 
         String savedFileId = service.saveFile(fileMetaData, delegate, tag);
         assertNotNull(savedFileId);
-        verify(delegate).doTransfer(any(File.class));
-
-        final Path prefixInfoPath = Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.INFO_DIR, prefix);
-        assertTrue(Files.exists(prefixInfoPath));
-        Optional<Path> prefixFileIdPathOpt = Files
-                .list(prefixInfoPath)
-                .filter(path -> !Files.isDirectory(path))
-                .findFirst();
-        assertTrue(prefixFileIdPathOpt.isPresent());
-
-        Path fileId = prefixFileIdPathOpt.get();
-        File storedFile = Paths.get(
-                TEST_BASE_URI,
-                LocalStorageServiceImpl.STORAGE_DIR,
-                fileId.toFile().getName()
-        ).toFile();
+        verify(delegate, never()).doTransfer(any(File.class));
+        File storedFile = Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.STORAGE_DIR, savedFileId).toFile();
         assertTrue(storedFile.exists());
-        assertTrue(Paths.get(
-                TEST_BASE_URI,
-                LocalStorageServiceImpl.INFO_DIR,
-                fileId.toFile().getName()
-        ).toFile().exists());
-
-        final Path prefixTagInfoPath = Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.INFO_DIR, prefix, tag);
-        assertTrue(Files.exists(prefixTagInfoPath));
-
-        Optional<Path> prefixTagFileIdPathOpt = Files.list(prefixTagInfoPath).findFirst();
-        assertTrue(prefixTagFileIdPathOpt.isPresent());
-
-        Path prefixTagFileId = prefixTagFileIdPathOpt.get();
-        assertEquals(fileId.toFile().getName(), prefixTagFileId.toFile().getName());
+        assertEquals(Collections.singletonList(savedFileId), listFileIds(service.listPaths(prefix)));
+        assertEquals(Collections.singletonList(savedFileId), listFileIds(service.listPaths(prefix, tag)));
     }
 
     @Test
@@ -125,24 +100,10 @@ class LocalStorageServiceImplTest {
 
         String savedFileId = service.saveFile(fileMetaData, delegate);
         assertNotNull(savedFileId);
-        verify(delegate).doTransfer(any(File.class));
-
-        final Path prefixInfoPath = Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.INFO_DIR);
-        Optional<Path> fileIdPathOpt = Files.list(prefixInfoPath).findFirst();
-        assertTrue(fileIdPathOpt.isPresent());
-        Path fileId = fileIdPathOpt.get();
-        File storedFile = Paths.get(
-                TEST_BASE_URI,
-                LocalStorageServiceImpl.STORAGE_DIR,
-                fileId.toFile().getName()
-        ).toFile();
+        verify(delegate, never()).doTransfer(any(File.class));
+        File storedFile = Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.STORAGE_DIR, savedFileId).toFile();
         assertTrue(storedFile.exists());
-
-        assertTrue(Paths.get(
-                TEST_BASE_URI,
-                LocalStorageServiceImpl.INFO_DIR,
-                fileId.toFile().getName()
-        ).toFile().exists());
+        assertNotNull(service.getFile(savedFileId, fileMetaData.getOriginalName()));
     }
 
     @Test
@@ -153,33 +114,10 @@ class LocalStorageServiceImplTest {
 
         String savedFileId = service.saveFile(fileMetaData, delegate, tag);
         assertNotNull(savedFileId);
-        verify(delegate).doTransfer(any(File.class));
-
-        final Path prefixInfoPath = Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.INFO_DIR);
-        Optional<Path> prefixFileIdPathOpt = Files.list(prefixInfoPath).findFirst();
-        assertTrue(prefixFileIdPathOpt.isPresent());
-
-        Path fileId = prefixFileIdPathOpt.get();
-        File storedFile = Paths.get(
-                TEST_BASE_URI,
-                LocalStorageServiceImpl.STORAGE_DIR,
-                fileId.toFile().getName()
-        ).toFile();
+        verify(delegate, never()).doTransfer(any(File.class));
+        File storedFile = Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.STORAGE_DIR, savedFileId).toFile();
         assertTrue(storedFile.exists());
-        assertTrue(Paths.get(
-                TEST_BASE_URI,
-                LocalStorageServiceImpl.INFO_DIR,
-                fileId.toFile().getName()
-        ).toFile().exists());
-
-        final Path prefixTagInfoPath = Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.INFO_DIR, tag);
-        assertTrue(Files.exists(prefixTagInfoPath));
-
-        Optional<Path> prefixTagFileIdPathOpt = Files.list(prefixTagInfoPath).findFirst();
-        assertTrue(prefixTagFileIdPathOpt.isPresent());
-
-        Path prefixTagFileId = prefixTagFileIdPathOpt.get();
-        assertEquals(fileId.toFile().getName(), prefixTagFileId.toFile().getName());
+        assertNotNull(service.getFile(savedFileId, fileMetaData.getOriginalName()));
     }
 
     @Test
@@ -194,6 +132,34 @@ class LocalStorageServiceImplTest {
         assertDoesNotThrow(() -> service.saveFile(fileMetaData, delegate));
     }
 
+    @Test
+    void shouldStreamContentToStorageInSinglePass() throws Exception {
+        final String content = "<jtl></jtl>";
+        FileMetaData fileMetaData = createFileMetadata(content, "cuckoo");
+
+        String savedFileId = service.saveFile(fileMetaData, mock(FileTransferDelegate.class));
+        assertEquals(FileMetaData.calculateHash(createFileMetadata(content, "cuckoo")), savedFileId);
+        Path storedFile = Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.STORAGE_DIR, savedFileId, "a.txt");
+        assertEquals(content, new String(Files.readAllBytes(storedFile)));
+        assertEquals(0L, Files.list(Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.STAGING_DIR)).count());
+    }
+
+    @Test
+    void shouldUseTransferDelegateWithoutInputStream() throws Exception {
+        final String content = "Worth lies in self";
+        FileMetaData fileMetaData = createFileMetadata(content.length(), null, "cuckoo");
+
+        String savedFileId = service.saveFile(fileMetaData, (dest) -> {
+            Writer writer = new FileWriter(dest);
+            writer.write(content);
+            writer.close();
+        });
+
+        assertEquals(FileMetaData.calculateHash(createFileMetadata(content, "cuckoo")), savedFileId);
+        Path storedFile = Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.STORAGE_DIR, savedFileId, "a.txt");
+        assertEquals(content, new String(Files.readAllBytes(storedFile)));
+    }
+
     @Test
     void shouldDeleteFileWithPrefix() throws Exception {
         final String prefix = "cuckoo";
@@ -202,8 +168,7 @@ class LocalStorageServiceImplTest {
         service.deleteFile(fileId);
         assertFalse(Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.STORAGE_DIR, fileId).toFile().exists());
         assertDoesNotThrow(() -> service.deleteFile(fileId), "should not fail on deleting a deleted file");
-        assertFalse(Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.INFO_DIR, prefix, fileId).toFile().exists());
-        assertFalse(Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.INFO_DIR, fileId).toFile().exists());
+        assertEquals(0L, service.listPaths(prefix).count());
     }
 
     private String createPrefixedFile(String prefix) throws IOException {
@@ -224,8 +189,8 @@ class LocalStorageServiceImplTest {
         service.deleteFile(fileId, tag);
         assertFalse(Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.STORAGE_DIR, fileId).toFile().exists());
         assertDoesNotThrow(() -> service.deleteFile(fileId), "should not fail on deleting a deleted file");
-        assertFalse(Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.INFO_DIR, prefix, tag, fileId).toFile().exists());
-        assertFalse(Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.INFO_DIR, fileId).toFile().exists());
+        assertEquals(0L, service.listPaths(prefix).count());
+        assertEquals(0L, service.listPaths(prefix, tag).count());
     }
 
     private String createTaggedAndPrefixedFile(String prefix, String tag) throws IOException {
@@ -244,7 +209,6 @@ class LocalStorageServiceImplTest {
         service.deleteFile(fileId);
         assertFalse(Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.STORAGE_DIR, fileId).toFile().exists());
         assertDoesNotThrow(() -> service.deleteFile(fileId), "should not fail on deleting a deleted file");
-        assertFalse(Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.INFO_DIR, fileId).toFile().exists());
     }
 
     @Test
@@ -255,8 +219,6 @@ class LocalStorageServiceImplTest {
         service.deleteFile(fileId, tag);
         assertFalse(Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.STORAGE_DIR, fileId).toFile().exists());
         assertDoesNotThrow(() -> service.deleteFile(fileId), "should not fail on deleting a deleted file");
-        assertFalse(Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.INFO_DIR, tag, fileId).toFile().exists());
-        assertFalse(Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.INFO_DIR, fileId).toFile().exists());
     }
 
     @Test
@@ -312,12 +274,357 @@ class LocalStorageServiceImplTest {
         final String fileId = createTaggedAndPrefixedFile(prefix, tag);
         service.removeFilesWithPrefix(prefix);
         assertFalse(Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.STORAGE_DIR, fileId).toFile().exists());
-        assertFalse(Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.INFO_DIR, prefix, fileId).toFile().exists());
-        assertFalse(Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.INFO_DIR, prefix, tag, fileId).toFile().exists());
-        assertFalse(Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.INFO_DIR, fileId).toFile().exists());
+        assertEquals(0L, service.listPaths(prefix).count());
+        assertEquals(0L, service.listPaths(prefix, tag).count());
         assertDoesNotThrow(() -> service.removeFilesWithPrefix(prefix), "is idempotent");
     }
 
+    @Test
+    void shouldStoreSameContentOnceWhenDeduplicating() throws Exception {
+        LocalStorageServiceImpl dedupService = new LocalStorageServiceImpl();
+        dedupService.setBaseURI(TEST_BASE_URI);
+        dedupService.setDeduplicate(true);
+        dedupService.afterPropertiesSet();
+
+        final String content = "Worth lies in self";
+        FileTransferDelegate delegate = mock(FileTransferDelegate.class);
+        String cuckooFileId = dedupService.saveFile(createFileMetadata(content, "cuckoo"), delegate);
+        String sparrowFileId = dedupService.saveFile(createFileMetadata(content, "sparrow"), delegate);
+        assertNotEquals(cuckooFileId, sparrowFileId);
+
+        final Path blobsPath = Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.BLOBS_DIR);
+        assertEquals(1L, Files.list(blobsPath).count());
+        assertEquals(content, new String(Files.readAllBytes(dedupService.getFile(cuckooFileId, "a.txt")
+                .getFile().toPath())));
+
+        dedupService.deleteFile(cuckooFileId);
+        assertEquals(1L, Files.list(blobsPath).count(), "blob is still referenced");
+        assertEquals(content, new String(Files.readAllBytes(dedupService.getFile(sparrowFileId, "a.txt")
+                .getFile().toPath())));
+
+        dedupService.removeFilesWithPrefix("sparrow");
+        assertEquals(0L, Files.list(blobsPath).count());
+        assertThrows(FileNotFoundException.class, () -> dedupService.getFile(sparrowFileId, "a.txt"));
+    }
+
+    private String createCompressibleContent() {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            content.append("<sample t=\"").append(i).append("\" s=\"true\"/>\n");
+        }
+
+        return content.toString();
+    }
+
+    private String readContent(InputStream inputStream) throws IOException {
+        try (InputStream closingStream = inputStream) {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int count;
+            while ((count = closingStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, count);
+            }
+
+            return outputStream.toString();
+        }
+    }
+
+    @Test
+    void shouldStoreGzipSidecarForCompressibleFile() throws Exception {
+        ((LocalStorageServiceImpl) service).setCompression(LocalStorageServiceImpl.Compression.SIDECAR);
+        final String content = createCompressibleContent();
+        String fileId = service.saveFile(createFileMetadata(content, "cuckoo"), mock(FileTransferDelegate.class));
+
+        Resource file = service.getFile(fileId, "a.txt");
+        assertTrue(file.isFile());
+        assertEquals(content, new String(Files.readAllBytes(file.getFile().toPath())));
+
+        Resource encodedFile = service.getEncodedFile(fileId, "a.txt", "gzip").orElseThrow(AssertionError::new);
+        assertTrue(encodedFile.contentLength() < content.length());
+        assertEquals(content, readContent(new GZIPInputStream(encodedFile.getInputStream())));
+        assertFalse(service.getEncodedFile(fileId, "a.txt", "br").isPresent());
+    }
+
+    @Test
+    void shouldNotCompressSmallFile() throws Exception {
+        ((LocalStorageServiceImpl) service).setCompression(LocalStorageServiceImpl.Compression.SIDECAR);
+        String fileId = service.saveFile(createFileMetadata("<jtl></jtl>", "cuckoo"), mock(FileTransferDelegate.class));
+        assertFalse(service.getEncodedFile(fileId, "a.txt", "gzip").isPresent());
+    }
+
+    @Test
+    void shouldStoreOnlyGzipAndDecompressOnRead() throws Exception {
+        ((LocalStorageServiceImpl) service).setCompression(LocalStorageServiceImpl.Compression.ONLY);
+        final String content = createCompressibleContent();
+        String fileId = service.saveFile(createFileMetadata(content, "cuckoo"), mock(FileTransferDelegate.class));
+
+        assertFalse(Files.exists(Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.STORAGE_DIR, fileId, "a.txt")));
+        assertTrue(service.getEncodedFile(fileId, "a.txt", "gzip").isPresent());
+
+        Resource file = service.getFile(fileId, "a.txt");
+        assertFalse(file.isFile());
+        assertEquals(content.length(), file.contentLength());
+        assertEquals(content, readContent(file.getInputStream()));
+
+        service.deleteFile(fileId);
+        assertThrows(FileNotFoundException.class, () -> service.getFile(fileId, "a.txt"));
+    }
+
+    @Test
+    void shouldMigrateDirectoryIndex() throws Exception {
+        final String prefix = "cuckoo";
+        final String tag = "reports";
+        final String fileId = createTaggedAndPrefixedFile(prefix, tag);
+        ((LocalStorageServiceImpl) service).destroy();
+        Files.delete(Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.INDEX_FILE));
+
+        final Path infoPath = Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.INFO_DIR);
+        Files.createDirectories(infoPath.resolve(prefix).resolve(tag));
+        Files.createFile(infoPath.resolve(prefix).resolve(fileId));
+        Files.createFile(infoPath.resolve(prefix).resolve(tag).resolve(fileId));
+        Files.createDirectories(infoPath.resolve(fileId));
+        Files.createFile(infoPath.resolve(fileId).resolve(prefix));
+
+        createServiceInstance();
+        assertFalse(Files.exists(infoPath));
+        assertEquals(Collections.singletonList(fileId), listFileIds(service.listPaths(prefix)));
+        assertEquals(Collections.singletonList(fileId), listFileIds(service.listPaths(prefix, tag)));
+    }
+
+    @Test
+    void shouldUpdateCachedListingOnSaveAndDelete() throws Exception {
+        final String prefix = "cuckoo";
+        FileTransferDelegate delegate = mock(FileTransferDelegate.class);
+        final String fileId = service.saveFile(createFileMetadata("Worth lies in self", prefix), delegate);
+        assertEquals(Collections.singletonList(fileId), listFileIds(service.listPaths(prefix)));
+
+        final String otherFileId = service.saveFile(createFileMetadata("Worth lies in others", prefix), delegate);
+        assertEquals(2L, service.listPaths(prefix).count());
+
+        service.deleteFile(fileId);
+        assertEquals(Collections.singletonList(otherFileId), listFileIds(service.listPaths(prefix)));
+    }
+
+    @Test
+    void shouldDropFileRemovedFromStorageByOtherProcess() throws Exception {
+        final String prefix = "cuckoo";
+        final String fileId = createPrefixedFile(prefix);
+        assertEquals(1L, service.listPaths(prefix).count());
+
+        FileSystemUtils.deleteRecursively(Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.STORAGE_DIR, fileId));
+        final long deadline = System.currentTimeMillis() + 15000;
+        while (service.listPaths(prefix).count() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+
+        assertEquals(0L, service.listPaths(prefix).count());
+    }
+
+    @Test
+    void shouldNotPurgeFileSavedAgainAfterUnindexing() throws Exception {
+        final String prefix = "cuckoo";
+        final String fileId = createPrefixedFile(prefix);
+        assertEquals(Collections.singletonList(fileId), service.unindexFilesWithPrefix(prefix));
+        assertEquals(0L, service.listPaths(prefix).count());
+
+        assertEquals(fileId, createPrefixedFile(prefix));
+        service.purgeFile(fileId);
+        assertTrue(service.getFile(fileId, "a.txt").exists());
+
+        service.unindexFilesWithPrefix(prefix);
+        service.purgeFile(fileId);
+        assertThrows(FileNotFoundException.class, () -> service.getFile(fileId, "a.txt"));
+    }
+
+    @Test
+    void shouldResumePurgeOnRestart() throws Exception {
+        final String prefix = "cuckoo";
+        final String fileId = createPrefixedFile(prefix);
+        service.unindexFilesWithPrefix(prefix);
+        ((LocalStorageServiceImpl) service).destroy();
+
+        createServiceInstance();
+        final long deadline = System.currentTimeMillis() + 15000;
+        while (Files.exists(Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.STORAGE_DIR, fileId))
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+
+        assertThrows(FileNotFoundException.class, () -> service.getFile(fileId, "a.txt"));
+    }
+
+    @Test
+    void shouldReplaceDamagedCopyOfSameSizeOnSave() throws Exception {
+        final String fileId = createPrefixedFile("cuckoo");
+        final Path storedFile = Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.STORAGE_DIR, fileId, "a.txt");
+        Files.write(storedFile, "Worth lies in sel!".getBytes());
+
+        assertEquals(fileId, createPrefixedFile("cuckoo"));
+        assertEquals("Worth lies in self", new String(Files.readAllBytes(storedFile)));
+    }
+
+    @Test
+    void shouldQuarantineCorruptFile() throws Exception {
+        final String prefix = "cuckoo";
+        final String fileId = createPrefixedFile(prefix);
+        final String otherFileId = service.saveFile(createFileMetadata("Worth lies in others", prefix),
+                mock(FileTransferDelegate.class));
+
+        final Path storedFile = Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.STORAGE_DIR, fileId, "a.txt");
+        Files.write(storedFile, "Worth lies in shelf".getBytes());
+
+        StorageScrubber.Result result = ((LocalStorageServiceImpl) service).scrubStorage();
+        assertEquals(Collections.singleton(fileId), result.getCorruptFiles());
+        assertTrue(result.getCorruptBlobs().isEmpty());
+        assertFalse(Files.exists(storedFile));
+        assertTrue(Files.exists(Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.QUARANTINE_DIR,
+                LocalStorageServiceImpl.STORAGE_DIR, fileId, "a.txt")));
+        assertEquals(Collections.singletonList(otherFileId), listFileIds(service.listPaths(prefix)));
+    }
+
+    @Test
+    void shouldQuarantineCorruptBlob() throws Exception {
+        LocalStorageServiceImpl dedupService = new LocalStorageServiceImpl();
+        dedupService.setBaseURI(TEST_BASE_URI);
+        dedupService.setDeduplicate(true);
+        dedupService.afterPropertiesSet();
+
+        final String content = "Worth lies in self";
+        FileTransferDelegate delegate = mock(FileTransferDelegate.class);
+        String cuckooFileId = dedupService.saveFile(createFileMetadata(content, "cuckoo"), delegate);
+        String sparrowFileId = dedupService.saveFile(createFileMetadata(content, "sparrow"), delegate);
+        String contentHash = dedupService.getFile(cuckooFileId, "a.txt").getFile().toPath()
+                .toRealPath().getParent().getFileName().toString();
+
+        Files.write(Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.BLOBS_DIR, contentHash,
+                LocalStorageServiceImpl.BLOB_CONTENT), "Worth lies in shelf".getBytes());
+
+        StorageScrubber.Result result = dedupService.scrubStorage();
+        assertEquals(Collections.singleton(contentHash), result.getCorruptBlobs());
+        assertEquals(new HashSet<>(Arrays.asList(cuckooFileId, sparrowFileId)), result.getCorruptFiles());
+        assertTrue(Files.isDirectory(Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.QUARANTINE_DIR,
+                LocalStorageServiceImpl.BLOBS_DIR, contentHash)));
+        assertEquals(0L, dedupService.listPaths("cuckoo").count());
+        assertThrows(FileNotFoundException.class, () -> dedupService.getFile(sparrowFileId, "a.txt"));
+    }
+
+    @Test
+    void shouldKeepFileSavedConcurrently() throws Exception {
+        final String content = "Worth lies in self";
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> fileIds = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                fileIds.add(executorService.submit(() -> service.saveFile(createFileMetadata(content, "cuckoo"),
+                        mock(FileTransferDelegate.class))));
+            }
+
+            Set<String> distinctIds = new HashSet<>();
+            for (Future<String> fileId : fileIds) {
+                distinctIds.add(fileId.get());
+            }
+
+            assertEquals(1, distinctIds.size());
+            assertEquals(content, readContent(service.getFile(distinctIds.iterator().next(), "a.txt")
+                    .getInputStream()));
+            assertEquals(0L, Files.list(Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.STAGING_DIR)).count());
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    @Test
+    void shouldClearStagingOnRestart() throws Exception {
+        ((LocalStorageServiceImpl) service).destroy();
+        final Path stagedFile = Paths.get(TEST_BASE_URI, LocalStorageServiceImpl.STAGING_DIR, "upload.tmp");
+        Files.write(stagedFile, "Worth lies".getBytes());
+
+        createServiceInstance();
+        assertFalse(Files.exists(stagedFile));
+    }
+
+    @Test
+    void shouldRecordStorageMetrics() throws Exception {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        LocalStorageServiceImpl meteredService = new LocalStorageServiceImpl();
+        meteredService.setBaseURI(TEST_BASE_URI);
+        meteredService.setMeterRegistry(meterRegistry);
+        meteredService.afterPropertiesSet();
+
+        final String content = "Worth lies in self";
+        String fileId = meteredService.saveFile(createFileMetadata(content, "cuckoo"),
+                mock(FileTransferDelegate.class));
+        meteredService.listPaths("cuckoo").count();
+        meteredService.getFile(fileId, "a.txt");
+        assertThrows(FileNotFoundException.class, () -> meteredService.getFile(fileId, "b.txt"));
+        meteredService.removeFilesWithPrefix("cuckoo");
+
+        for (String operation : Arrays.asList("store", "transfer", "index", "list", "removePrefix")) {
+            assertEquals(1L, meterRegistry.get("hailstorm.fs.storage").tag("operation", operation).timer().count(),
+                    operation);
+        }
+
+        assertEquals(2L, meterRegistry.get("hailstorm.fs.storage").tag("operation", "get").timer().count());
+        assertEquals(content.length(), meterRegistry.get("hailstorm.fs.storage.bytes").counter().count());
+        assertEquals(0.0, meterRegistry.get("hailstorm.fs.storage.transfers.active").gauge().value());
+    }
+
+    @Test
+    void shouldTimeStreamedListingAsItIsRead() throws Exception {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        LocalStorageServiceImpl meteredService = new LocalStorageServiceImpl();
+        meteredService.setBaseURI(TEST_BASE_URI);
+        meteredService.setMeterRegistry(meterRegistry);
+        meteredService.setListingCacheSize(0);
+        meteredService.afterPropertiesSet();
+        meteredService.saveFile(createFileMetadata("Worth lies in self", "cuckoo"), mock(FileTransferDelegate.class));
+
+        Stream<Path> paths = meteredService.listPaths("cuckoo");
+        assertTrue(meterRegistry.find("hailstorm.fs.storage").tag("operation", "list").timers().isEmpty());
+        Thread.sleep(20);
+        assertEquals(1L, paths.count());
+
+        Timer timer = meterRegistry.get("hailstorm.fs.storage").tag("operation", "list").timer();
+        assertEquals(1L, timer.count());
+        assertTrue(timer.totalTime(TimeUnit.MILLISECONDS) >= 20);
+        paths.close();
+        assertEquals(1L, timer.count());
+        meteredService.destroy();
+    }
+
+    @Test
+    void shouldFindSha1FilesAfterChangingHashAlgorithm() throws Exception {
+        final String prefix = "cuckoo";
+        final String sha1FileId = service.saveFile(createFileMetadata("<jtl></jtl>", prefix),
+                mock(FileTransferDelegate.class));
+        ((LocalStorageServiceImpl) service).destroy();
+
+        createServiceInstance();
+        ((LocalStorageServiceImpl) service).setHashAlgorithm(HashAlgorithm.BLAKE3);
+        final String fileId = service.saveFile(createFileMetadata("<jmx></jmx>", prefix),
+                mock(FileTransferDelegate.class));
+
+        assertTrue(fileId.startsWith("blake3-"));
+        assertNotNull(service.getFile(sha1FileId, "a.txt"));
+        assertEquals(new HashSet<>(Arrays.asList(sha1FileId, fileId)),
+                new HashSet<>(listFileIds(service.listPaths(prefix))));
+        StorageScrubber.Result result = ((LocalStorageServiceImpl) service).scrubStorage();
+        assertTrue(result.getCorruptFiles().isEmpty());
+    }
+
+    @Test
+    void shouldReloadIndexOnRestart() throws Exception {
+        final String prefix = "cuckoo";
+        final String fileId = createPrefixedFile(prefix);
+        final String deletedFileId = createPrefixedFile("sparrow");
+        service.deleteFile(deletedFileId);
+        ((LocalStorageServiceImpl) service).destroy();
+
+        createServiceInstance();
+        assertEquals(Collections.singletonList(fileId), listFileIds(service.listPaths(prefix)));
+        assertEquals(0L, service.listPaths("sparrow").count());
+    }
+
     @Test
     void shouldSetBaseUrlFromArguments() throws Exception {
         StorageService service = new LocalStorageServiceImpl();
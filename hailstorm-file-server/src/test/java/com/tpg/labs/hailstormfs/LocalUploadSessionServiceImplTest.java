@@ -0,0 +1,223 @@
+package com.tpg.labs.hailstormfs;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+class LocalUploadSessionServiceImplTest {
+
+    private static final String TEST_BASE_URI = "/tmp/hailstorm/test/fs";
+
+    private LocalStorageServiceImpl storageService;
+    private LocalUploadSessionServiceImpl service;
+
+    @BeforeEach
+    void createServiceInstances() throws Exception {
+        FileSystemUtils.deleteRecursively(new File(TEST_BASE_URI));
+        storageService = new LocalStorageServiceImpl();
+        storageService.setBaseURI(TEST_BASE_URI);
+        storageService.afterPropertiesSet();
+        service = createUploadSessionService();
+    }
+
+    @AfterEach
+    void closeStorageService() throws Exception {
+        storageService.destroy();
+    }
+
+    private LocalUploadSessionServiceImpl createUploadSessionService() throws Exception {
+        LocalUploadSessionServiceImpl uploadSessionService = new LocalUploadSessionServiceImpl();
+        uploadSessionService.setBaseURI(TEST_BASE_URI);
+        uploadSessionService.afterPropertiesSet();
+        return uploadSessionService;
+    }
+
+    private UploadSession saveChunk(String uploadId, int index, String content) throws Exception {
+        return service.saveChunk(uploadId, index, new ByteArrayInputStream(content.getBytes()));
+    }
+
+    @Test
+    void shouldStoreChunksReceivedOutOfOrder() throws Exception {
+        final String uploadId = service.createSession("a.jtl", "text/plain", "cuckoo", 11L).getUploadId();
+        saveChunk(uploadId, 2, "rld");
+        saveChunk(uploadId, 0, "Hell");
+        saveChunk(uploadId, 1, "o wo");
+
+        FileMetaData fileMetaData = service.commit(uploadId, storageService::saveFile);
+
+        String expectedFileId = storageService.saveFile(new FileMetaData("a.jtl",
+                "text/plain",
+                11L,
+                new ByteArrayInputStream("Hello world".getBytes())).withPathPrefix("cuckoo"),
+                mock(FileTransferDelegate.class));
+
+        assertEquals(expectedFileId, fileMetaData.getId());
+        assertEquals(11L, (long) fileMetaData.getSize());
+        assertEquals("Hello world", new String(Files.readAllBytes(storageService.getFile(fileMetaData.getId(), "a.jtl")
+                .getFile().toPath())));
+
+        assertFalse(Files.exists(Paths.get(TEST_BASE_URI, LocalUploadSessionServiceImpl.UPLOADS_DIR, uploadId)));
+        assertThrows(FileNotFoundException.class, () -> service.getSession(uploadId));
+    }
+
+    @Test
+    void shouldListReceivedChunksAfterRestart() throws Exception {
+        final String uploadId = service.createSession("a.jtl", null, "cuckoo", null).getUploadId();
+        saveChunk(uploadId, 0, "Hell");
+        saveChunk(uploadId, 3, "!");
+
+        service = createUploadSessionService();
+        UploadSession session = service.getSession(uploadId);
+        assertEquals("a.jtl", session.getFileName());
+        assertEquals("cuckoo", session.getPathPrefix());
+        assertNull(session.getSize());
+        assertEquals(Arrays.asList(0, 3), session.getChunks().stream()
+                .map(UploadSession.Chunk::getIndex)
+                .collect(Collectors.toList()));
+        assertEquals(5L, session.getReceivedBytes());
+    }
+
+    @Test
+    void shouldReplaceRetriedChunk() throws Exception {
+        final String uploadId = service.createSession("a.txt", null, null, null).getUploadId();
+        saveChunk(uploadId, 0, "Hel");
+        UploadSession session = saveChunk(uploadId, 0, "Hello");
+
+        assertEquals(1, session.getChunks().size());
+        assertEquals(5L, session.getReceivedBytes());
+    }
+
+    @Test
+    void shouldCombineHashOfBlockAlignedChunks() throws Exception {
+        service.setHashAlgorithm(HashAlgorithm.SHA256_TREE);
+        final byte[] content = new byte[TreeHash.BLOCK_SIZE * 2 + 100];
+        new Random(7).nextBytes(content);
+        final String uploadId = service.createSession("a.jtl", null, "cuckoo", null).getUploadId();
+        service.saveChunk(uploadId, 0, new ByteArrayInputStream(content, 0, TreeHash.BLOCK_SIZE * 2));
+        UploadSession session = service.saveChunk(uploadId, 1,
+                new ByteArrayInputStream(content, TreeHash.BLOCK_SIZE * 2, 100));
+
+        FileMetaData fileMetaData = new FileMetaData("a.jtl", null, (long) content.length,
+                new ByteArrayInputStream(content));
+        assertEquals(FileMetaData.calculateHash(fileMetaData, HashAlgorithm.SHA256_TREE), session.getContentHash());
+        assertEquals(session.getChunks().get(1).getHash(),
+                FileMetaData.calculateHash(new FileMetaData("a.jtl", null, 100L,
+                        new ByteArrayInputStream(content, TreeHash.BLOCK_SIZE * 2, 100)), HashAlgorithm.SHA256_TREE));
+    }
+
+    @Test
+    void shouldNotCombineHashOfUnalignedChunks() throws Exception {
+        service.setHashAlgorithm(HashAlgorithm.SHA256_TREE);
+        final String uploadId = service.createSession("a.txt", null, null, null).getUploadId();
+        saveChunk(uploadId, 0, "Hell");
+        UploadSession session = saveChunk(uploadId, 1, "o world");
+
+        assertNull(session.getContentHash());
+        assertNotNull(session.getChunks().get(0).getHash());
+    }
+
+    @Test
+    void shouldRejectChunkNotMatchingHash() throws Exception {
+        service.setHashAlgorithm(HashAlgorithm.SHA256_TREE);
+        final String uploadId = service.createSession("a.txt", null, null, null).getUploadId();
+        final String hash = saveChunk(uploadId, 0, "Hello").getChunks().get(0).getHash();
+
+        assertThrows(IllegalArgumentException.class,
+                () -> service.saveChunk(uploadId, 1, new ByteArrayInputStream("world".getBytes()), hash));
+        assertEquals(1, service.getSession(uploadId).getChunks().size());
+        service.saveChunk(uploadId, 1, new ByteArrayInputStream("Hello".getBytes()), hash);
+        assertEquals(2, service.getSession(uploadId).getChunks().size());
+    }
+
+    @Test
+    void shouldHashChunksOnlyToCheckThemWithOtherAlgorithms() throws Exception {
+        final String uploadId = service.createSession("a.txt", null, null, null).getUploadId();
+        UploadSession session = saveChunk(uploadId, 0, "Hello");
+        assertNull(session.getChunks().get(0).getHash());
+        assertNull(session.getContentHash());
+
+        final String hash = FileMetaData.calculateHash(new FileMetaData("a.txt", null, 5L,
+                new ByteArrayInputStream("Hello".getBytes())), HashAlgorithm.SHA256_TREE);
+        assertThrows(IllegalArgumentException.class,
+                () -> service.saveChunk(uploadId, 1, new ByteArrayInputStream("world".getBytes()), hash));
+        service.saveChunk(uploadId, 1, new ByteArrayInputStream("Hello".getBytes()), hash);
+        assertEquals(2, service.getSession(uploadId).getChunks().size());
+    }
+
+    @Test
+    void shouldCommitTreeHashedChunksWithoutHashingThemAgain() throws Exception {
+        storageService.setHashAlgorithm(HashAlgorithm.SHA256_TREE);
+        service.setHashAlgorithm(HashAlgorithm.SHA256_TREE);
+        final byte[] content = new byte[TreeHash.BLOCK_SIZE + 100];
+        new Random(7).nextBytes(content);
+        final String uploadId = service.createSession("a.jtl", null, "cuckoo", null).getUploadId();
+        service.saveChunk(uploadId, 0, new ByteArrayInputStream(content, 0, TreeHash.BLOCK_SIZE));
+        service.saveChunk(uploadId, 1, new ByteArrayInputStream(content, TreeHash.BLOCK_SIZE, 100));
+
+        FileMetaData fileMetaData = service.commit(uploadId, (metaData, fileTransferDelegate) -> {
+            assertNull(metaData.getInputStream());
+            assertTrue(HashAlgorithm.SHA256_TREE.isHashed(metaData));
+            return storageService.saveFile(metaData, fileTransferDelegate);
+        });
+
+        assertEquals(FileMetaData.calculateHash(new FileMetaData("a.jtl", null, (long) content.length,
+                new ByteArrayInputStream(content)).withPathPrefix("cuckoo"), HashAlgorithm.SHA256_TREE),
+                fileMetaData.getId());
+        assertArrayEquals(content, Files.readAllBytes(storageService.getFile(fileMetaData.getId(), "a.jtl")
+                .getFile().toPath()));
+    }
+
+    @Test
+    void shouldNotCommitWithMissingChunks() throws Exception {
+        final String uploadId = service.createSession("a.txt", null, null, null).getUploadId();
+        assertThrows(IllegalStateException.class, () -> service.commit(uploadId, storageService::saveFile));
+
+        saveChunk(uploadId, 0, "Hello");
+        saveChunk(uploadId, 2, "world");
+        assertThrows(IllegalStateException.class, () -> service.commit(uploadId, storageService::saveFile));
+        assertEquals(2, service.getSession(uploadId).getChunks().size(), "chunks are kept");
+    }
+
+    @Test
+    void shouldNotCommitIfSizeDoesNotMatch() throws Exception {
+        final String uploadId = service.createSession("a.txt", null, null, 11L).getUploadId();
+        saveChunk(uploadId, 0, "Hello");
+        assertThrows(IllegalStateException.class, () -> service.commit(uploadId, storageService::saveFile));
+    }
+
+    @Test
+    void shouldRejectChunkIndexOutOfRange() throws Exception {
+        final String uploadId = service.createSession("a.txt", null, null, null).getUploadId();
+        assertThrows(IllegalArgumentException.class, () -> saveChunk(uploadId, -1, "Hello"));
+        assertThrows(IllegalArgumentException.class,
+                () -> saveChunk(uploadId, LocalUploadSessionServiceImpl.MAX_CHUNKS, "Hello"));
+    }
+
+    @Test
+    void shouldNotFindUnknownUpload() throws Exception {
+        assertThrows(FileNotFoundException.class, () -> service.getSession("../storage"));
+        assertThrows(FileNotFoundException.class,
+                () -> saveChunk("1b4e28ba-2fa1-11d2-883f-0016d3cca427", 0, "Hello"));
+    }
+
+    @Test
+    void shouldAbortUpload() throws Exception {
+        final String uploadId = service.createSession("a.txt", null, null, null).getUploadId();
+        saveChunk(uploadId, 0, "Hello");
+        service.abort(uploadId);
+        assertThrows(FileNotFoundException.class, () -> service.getSession(uploadId));
+    }
+}
@@ -0,0 +1,150 @@
+package com.tpg.labs.hailstormfs;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LogFileIndexTest {
+
+    private static final String TEST_BASE_URI = "/tmp/hailstorm/test/index";
+
+    private final Path logPath = Paths.get(TEST_BASE_URI, "index.log");
+    private FileIndex fileIndex;
+
+    @BeforeEach
+    void createIndex() throws IOException {
+        FileSystemUtils.deleteRecursively(new File(TEST_BASE_URI));
+        Files.createDirectories(logPath.getParent());
+        fileIndex = new LogFileIndex(logPath);
+        fileIndex.load();
+    }
+
+    @AfterEach
+    void closeIndex() throws IOException {
+        fileIndex.close();
+    }
+
+    private List<String> fileIds(Stream<IndexedFile> indexedFiles) {
+        return indexedFiles.map(IndexedFile::getFileId).collect(Collectors.toList());
+    }
+
+    @Test
+    void shouldListByPrefixAndTagInFileIdOrder() throws IOException {
+        fileIndex.add("b2", "b.jmx", "cuckoo", null);
+        fileIndex.add("a1", "a.docx", "cuckoo", "reports");
+        fileIndex.add("c3", "c.jmx", "sparrow", null);
+
+        assertEquals(Arrays.asList("a1", "b2"), fileIds(fileIndex.list("cuckoo")));
+        assertEquals(Collections.singletonList("a1"), fileIds(fileIndex.list("cuckoo", "reports")));
+        assertEquals(Collections.emptyList(), fileIds(fileIndex.list("cuckoo", "tagly")));
+    }
+
+    @Test
+    void shouldListAfterFileId() throws IOException {
+        fileIndex.add("c3", "c.docx", "cuckoo", "reports");
+        fileIndex.add("a1", "a.docx", "cuckoo", "reports");
+        fileIndex.add("b2", "b.docx", "cuckoo", "reports");
+
+        assertEquals(Arrays.asList("a1", "b2", "c3"), fileIds(fileIndex.list("cuckoo", "reports", null)));
+        assertEquals(Arrays.asList("b2", "c3"), fileIds(fileIndex.list("cuckoo", "reports", "a1")));
+        assertEquals(Collections.singletonList("c3"), fileIds(fileIndex.list("cuckoo", null, "b2")));
+        assertEquals(Collections.emptyList(), fileIds(fileIndex.list("cuckoo", "reports", "c3")));
+    }
+
+    @Test
+    void shouldReplayLogOnLoad() throws IOException {
+        fileIndex.add("a1", "a\tb.docx", "cuckoo", "reports");
+        fileIndex.add("b2", "b.jmx", "cuckoo", null);
+        fileIndex.remove("b2");
+        fileIndex.close();
+
+        fileIndex = new LogFileIndex(logPath);
+        fileIndex.load();
+        assertEquals(Collections.singletonList("a1"), fileIds(fileIndex.list("cuckoo")));
+        assertEquals(Collections.singleton("a\tb.docx"), fileIndex.get("a1").get().getFileNames());
+        assertEquals(Collections.singleton("reports"), fileIndex.get("a1").get().getTags());
+        assertFalse(fileIndex.get("b2").isPresent());
+        assertEquals(2, Files.readAllLines(logPath).size(), "log is compacted");
+    }
+
+    @Test
+    void shouldKeepPendingPurgesUntilPurged() throws IOException {
+        fileIndex.add("a1", "a.docx", "cuckoo", null);
+        fileIndex.add("b2", "b.docx", "cuckoo", null);
+        assertTrue(fileIndex.removeForPurge("a1"));
+        assertTrue(fileIndex.removeForPurge("b2"));
+        fileIndex.purged("b2");
+        fileIndex.close();
+
+        fileIndex = new LogFileIndex(logPath);
+        fileIndex.load();
+        assertEquals(Collections.emptyList(), fileIds(fileIndex.list("cuckoo")));
+        assertEquals(Collections.singleton("a1"), fileIndex.pendingPurges());
+        assertEquals(1, Files.readAllLines(logPath).size(), "log is compacted");
+
+        fileIndex.purged("a1");
+        assertTrue(fileIndex.pendingPurges().isEmpty());
+    }
+
+    @Test
+    void shouldCompactLogInUse() throws IOException {
+        fileIndex.close();
+        fileIndex = new LogFileIndex(logPath, 3);
+        fileIndex.load();
+        fileIndex.add("a1", "a.docx", "cuckoo", "reports");
+        fileIndex.add("b2", "b.jmx", "cuckoo", null);
+        fileIndex.add("c3", "c.jmx", "cuckoo", null);
+        fileIndex.remove("b2");
+        assertEquals(4, Files.readAllLines(logPath).size());
+
+        fileIndex.removeForPurge("c3");
+        assertEquals(Arrays.asList("A\ta1\tcuckoo\t\ta.docx", "A\ta1\tcuckoo\treports\ta.docx", "P\tc3"),
+                Files.readAllLines(logPath));
+
+        // appended to the compacted log
+        fileIndex.purged("c3");
+        fileIndex.add("d4", "d.jmx", "cuckoo", null);
+        fileIndex.close();
+
+        fileIndex = new LogFileIndex(logPath);
+        fileIndex.load();
+        assertEquals(Arrays.asList("a1", "d4"), fileIds(fileIndex.list("cuckoo")));
+        assertEquals(Collections.singletonList("a1"), fileIds(fileIndex.list("cuckoo", "reports")));
+        assertTrue(fileIndex.pendingPurges().isEmpty());
+    }
+
+    @Test
+    void shouldSkipTruncatedRecord() throws IOException {
+        fileIndex.add("a1", "a.docx", "cuckoo", null);
+        fileIndex.close();
+        Files.write(logPath, "A\tb2\tcuc".getBytes(), StandardOpenOption.APPEND);
+
+        fileIndex = new LogFileIndex(logPath);
+        fileIndex.load();
+        assertEquals(Collections.singletonList("a1"), fileIds(fileIndex.list("cuckoo")));
+    }
+
+    @Test
+    void shouldRemoveAllAssociations() throws IOException {
+        fileIndex.add("a1", "a.docx", "cuckoo", "reports");
+        assertTrue(fileIndex.remove("a1"));
+        assertFalse(fileIndex.remove("a1"));
+        assertEquals(0L, fileIndex.list("cuckoo").count());
+        assertEquals(0L, fileIndex.list("cuckoo", "reports").count());
+    }
+}
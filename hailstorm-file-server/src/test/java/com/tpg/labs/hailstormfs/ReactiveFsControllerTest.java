@@ -0,0 +1,248 @@
+package com.tpg.labs.hailstormfs;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWebTestClient;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.MultipartBodyBuilder;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.web.reactive.function.BodyInserters;
+
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.*;
+
+@SpringBootTest(properties = "spring.main.web-application-type=reactive")
+@AutoConfigureWebTestClient
+class ReactiveFsControllerTest {
+
+    @Autowired
+    private WebTestClient client;
+
+    @MockBean
+    private StorageService storageService;
+
+    @MockBean
+    private ReportFileService reportFileService;
+
+    @MockBean
+    private UploadSessionService uploadSessionService;
+
+    @MockBean
+    private DeletionJobService deletionJobService;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Test
+    public void shouldSaveUploadedFile() throws Exception {
+        when(storageService.saveFile(any(FileMetaData.class), any(FileTransferDelegate.class)))
+                .thenReturn("ceb007e9182");
+
+        MultipartBodyBuilder builder = new MultipartBodyBuilder();
+        builder.part("file", new ByteArrayResource("Hello world".getBytes()) {
+            @Override
+            public String getFilename() {
+                return "test.jtl";
+            }
+        });
+
+        client.post().uri("/upload?prefix=cuckoo")
+                .contentType(MediaType.MULTIPART_FORM_DATA)
+                .body(BodyInserters.fromMultipartData(builder.build()))
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.id").isEqualTo("ceb007e9182")
+                .jsonPath("$.originalName").isEqualTo("test.jtl")
+                .jsonPath("$.pathPrefix").isEqualTo("cuckoo");
+    }
+
+    @Test
+    public void shouldCountBytesSent() throws Exception {
+        when(storageService.getFile(anyString(), anyString()))
+                .thenReturn(new ByteArrayResource("Hello world".getBytes()));
+        final double sent = bytesSent();
+
+        client.get().uri("/ceb007e9182/a.txt")
+                .header(HttpHeaders.RANGE, "bytes=6-")
+                .exchange()
+                .expectStatus().isEqualTo(HttpStatus.PARTIAL_CONTENT)
+                .expectBody(String.class).isEqualTo("world");
+
+        assertEquals(sent + "world".length(), bytesSent());
+        assertEquals(0.0, meterRegistry.get("hailstorm.fs.storage.transfers.active").tag("direction", "out")
+                .gauge().value());
+    }
+
+    private double bytesSent() {
+        return meterRegistry.get("hailstorm.fs.storage.bytes").tag("direction", "out").counter().count();
+    }
+
+    @Test
+    public void shouldServeFileWithETag() throws Exception {
+        when(storageService.getFile(anyString(), anyString()))
+                .thenReturn(new ByteArrayResource("Hello world".getBytes()));
+
+        client.get().uri("/ceb007e9182/a.txt")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().valueEquals(HttpHeaders.ETAG, "\"ceb007e9182\"")
+                .expectHeader().valueEquals(HttpHeaders.ACCEPT_RANGES, "bytes")
+                .expectBody(String.class).isEqualTo("Hello world");
+    }
+
+    @Test
+    public void shouldRespondNotModifiedIfETagMatches() throws Exception {
+        when(storageService.getFile(anyString(), anyString()))
+                .thenReturn(new ByteArrayResource("Hello world".getBytes()));
+
+        client.get().uri("/ceb007e9182/a.txt")
+                .header(HttpHeaders.IF_NONE_MATCH, "\"ceb007e9182\"")
+                .exchange()
+                .expectStatus().isNotModified()
+                .expectBody().isEmpty();
+    }
+
+    @Test
+    public void shouldRespondNotModifiedBeforeRedirecting() throws Exception {
+        when(storageService.getFile(anyString(), anyString()))
+                .thenReturn(new ByteArrayResource("Hello world".getBytes()));
+        when(storageService.getDownloadUrl("ceb007e9182", "a.txt"))
+                .thenReturn(Optional.of(new URL("https://bucket.s3.amazonaws.com/storage/ceb007e9182/a.txt")));
+
+        client.get().uri("/ceb007e9182/a.txt")
+                .header(HttpHeaders.IF_NONE_MATCH, "\"ceb007e9182\"")
+                .exchange()
+                .expectStatus().isNotModified()
+                .expectHeader().doesNotExist(HttpHeaders.LOCATION);
+
+        client.get().uri("/ceb007e9182/a.txt")
+                .exchange()
+                .expectStatus().isTemporaryRedirect()
+                .expectHeader().valueEquals(HttpHeaders.LOCATION,
+                        "https://bucket.s3.amazonaws.com/storage/ceb007e9182/a.txt");
+    }
+
+    @Test
+    public void shouldServeRange() throws Exception {
+        when(storageService.getFile(anyString(), anyString()))
+                .thenReturn(new ByteArrayResource("Hello world".getBytes()));
+
+        client.get().uri("/ceb007e9182/a.txt")
+                .header(HttpHeaders.RANGE, "bytes=6-")
+                .exchange()
+                .expectStatus().isEqualTo(206)
+                .expectHeader().valueEquals(HttpHeaders.CONTENT_RANGE, "bytes 6-10/11")
+                .expectBody(String.class).isEqualTo("world");
+    }
+
+    @Test
+    public void shouldServeWholeFileIfRangeValidatorDoesNotMatch() throws Exception {
+        when(storageService.getFile(anyString(), anyString()))
+                .thenReturn(new ByteArrayResource("Hello world".getBytes()));
+
+        client.get().uri("/ceb007e9182/a.txt")
+                .header(HttpHeaders.RANGE, "bytes=6-")
+                .header(HttpHeaders.IF_RANGE, "\"0000\"")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).isEqualTo("Hello world");
+    }
+
+    @Test
+    public void shouldServeGzipFileIfAccepted() throws Exception {
+        final byte[] compressed = new byte[] {0x1f, (byte) 0x8b, 8, 0};
+        when(storageService.getFile(anyString(), anyString()))
+                .thenReturn(new ByteArrayResource("Hello world".getBytes()));
+        when(storageService.getEncodedFile(anyString(), anyString(), eq("gzip")))
+                .thenReturn(Optional.of(new ByteArrayResource(compressed)));
+
+        client.get().uri("/ceb007e9182/a.txt")
+                .header(HttpHeaders.ACCEPT_ENCODING, "gzip")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().valueEquals(HttpHeaders.CONTENT_ENCODING, "gzip")
+                .expectHeader().valueEquals(HttpHeaders.ETAG, "\"ceb007e9182-gzip\"")
+                .expectHeader().valueEquals(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+                .expectBody(byte[].class).isEqualTo(compressed);
+    }
+
+    @Test
+    public void shouldRespondWith404IfFileNotFound() throws Exception {
+        when(storageService.getFile(anyString(), anyString())).thenThrow(new FileNotFoundException());
+
+        client.get().uri("/ceb007e9182/a.txt")
+                .exchange()
+                .expectStatus().isNotFound();
+    }
+
+    @Test
+    public void shouldUploadChunk() throws Exception {
+        UploadSession session = new UploadSession("1b4e28ba", "a.jtl", null, "cuckoo", null);
+        session.addChunk(new UploadSession.Chunk(3, 5));
+        when(uploadSessionService.saveChunk(eq("1b4e28ba"), eq(3), any(InputStream.class), isNull()))
+                .thenAnswer(invocation -> {
+                    InputStream inputStream = invocation.getArgument(2);
+                    while (inputStream.read() != -1) {
+                        // the content is consumed as the storage would
+                    }
+
+                    return session;
+                });
+
+        client.put().uri("/uploads/1b4e28ba/chunks/3")
+                .bodyValue("Hello".getBytes())
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.chunks[0].index").isEqualTo(3)
+                .jsonPath("$.receivedBytes").isEqualTo(5);
+    }
+
+    @Test
+    public void shouldRespondWithConflictIfChunksAreMissing() throws Exception {
+        when(uploadSessionService.commit(eq("1b4e28ba"), any(UploadSessionService.FileSaver.class)))
+                .thenThrow(new IllegalStateException());
+
+        client.post().uri("/uploads/1b4e28ba/commit")
+                .exchange()
+                .expectStatus().isEqualTo(409);
+    }
+
+    @Test
+    public void shouldPurgeFilesWithPrefix() throws Exception {
+        when(deletionJobService.removeFilesWithPrefix("cuckoo")).thenReturn(new DeletionJob("a1b2", "cuckoo", 3));
+
+        client.delete().uri("/files/cuckoo")
+                .exchange()
+                .expectStatus().isAccepted()
+                .expectHeader().valueEquals(HttpHeaders.LOCATION, "/jobs/a1b2");
+    }
+
+    @Test
+    public void shouldStreamProjectReports() throws Exception {
+        when(reportFileService.streamReportMetaData("cuckoo")).thenReturn(Arrays.asList(
+                new ReportMetaData("123", "a.docx"),
+                new ReportMetaData("234", "b.docx")
+        ).stream());
+
+        client.get().uri("/reports/cuckoo")
+                .accept(MediaType.parseMediaType(ReportsController.APPLICATION_NDJSON_VALUE))
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class)
+                .value(body -> assertEquals(2, body.split("\n").length));
+    }
+}
@@ -11,10 +11,13 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.mockito.Mockito.*;
 
 @ExtendWith(SpringExtension.class)
@@ -55,6 +58,33 @@ class ReportFileServiceImplTest {
         assertEquals(expRprtMetaData, reportMetaDataList.get(0));
     }
 
+    @Test
+    void shouldSelectPageOfReportsForPrefix() {
+        final Path reportPath = Paths.get("a", "reports", "2", "b.docx");
+        when(storageService.listPaths("cuckoo", ReportFileServiceImpl.REPORTS_TAG, "1", 10))
+                .thenReturn(Stream.of(reportPath));
+
+        List<ReportMetaData> reportMetaDataList = reportFileService.getReportMetaDataPage("cuckoo", "1", 10);
+        assertEquals(Collections.singletonList(new ReportMetaData("2", "b.docx")), reportMetaDataList);
+    }
+
+    @Test
+    void shouldStreamReportsPageByPage() {
+        ((ReportFileServiceImpl) reportFileService).setStreamPageSize(2);
+        when(storageService.listPaths("cuckoo", ReportFileServiceImpl.REPORTS_TAG, null, 2))
+                .thenReturn(Stream.of(Paths.get("a", "1", "a.docx"), Paths.get("a", "2", "b.docx")));
+        when(storageService.listPaths("cuckoo", ReportFileServiceImpl.REPORTS_TAG, "2", 2))
+                .thenReturn(Stream.of(Paths.get("a", "3", "c.docx")));
+
+        Iterator<ReportMetaData> reports = reportFileService.streamReportMetaData("cuckoo").iterator();
+        assertEquals(new ReportMetaData("1", "a.docx"), reports.next());
+        verify(storageService, never()).listPaths("cuckoo", ReportFileServiceImpl.REPORTS_TAG, "2", 2);
+
+        reports.next();
+        assertEquals(new ReportMetaData("3", "c.docx"), reports.next());
+        assertFalse(reports.hasNext());
+    }
+
     @Test
     void shouldDelegateGetReportToStorageService() throws FileNotFoundException {
         final String fileId = "1", fileName = "a.docx";
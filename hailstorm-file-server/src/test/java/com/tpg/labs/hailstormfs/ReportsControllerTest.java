@@ -5,17 +5,27 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.HttpHeaders;
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.stream.Stream;
 
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.is;
 import static org.mockito.Mockito.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultHandlers.print;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @SpringBootTest
@@ -31,6 +41,9 @@ class ReportsControllerTest {
     @MockBean
     private ReportFileService reportFileService;
 
+    @MockBean
+    private UploadSessionService uploadSessionService;
+
     @Test
     void shouldUploadFile() throws Exception {
         when(reportFileService.saveFile(any(FileMetaData.class), any(FileTransferDelegate.class)))
@@ -62,4 +75,62 @@ class ReportsControllerTest {
                 .andDo(print())
                 .andExpect(status().is2xxSuccessful());
     }
-}
\ No newline at end of file
+
+    @Test
+    void shouldGetPageOfProjectReports() throws Exception {
+        when(reportFileService.getReportMetaDataPage("prefix", "123", 2))
+                .thenReturn(Arrays.asList(
+                        new ReportMetaData("234", "a.docx"),
+                        new ReportMetaData("345", "b.docx")
+                ));
+
+        mvc.perform(get("/reports/prefix").param("cursor", "123").param("limit", "2"))
+                .andExpect(status().is2xxSuccessful())
+                .andExpect(jsonPath("$[1].id", is("345")))
+                .andExpect(header().string(HttpHeaders.LINK, containsString("cursor=345")))
+                .andExpect(header().string(HttpHeaders.LINK, containsString("rel=\"next\"")));
+    }
+
+    @Test
+    void shouldNotLinkPastLastPage() throws Exception {
+        when(reportFileService.getReportMetaDataPage("prefix", null, 2))
+                .thenReturn(Collections.singletonList(new ReportMetaData("234", "a.docx")));
+
+        mvc.perform(get("/reports/prefix").param("limit", "2"))
+                .andExpect(status().is2xxSuccessful())
+                .andExpect(header().doesNotExist(HttpHeaders.LINK));
+    }
+
+    @Test
+    void shouldRejectPageSizeOutOfRange() throws Exception {
+        mvc.perform(get("/reports/prefix").param("limit", "0"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void shouldStreamProjectReports() throws Exception {
+        when(reportFileService.streamReportMetaData("prefix"))
+                .thenReturn(Stream.of(new ReportMetaData("123", "a.docx"), new ReportMetaData("234", "b.docx")));
+
+        MvcResult mvcResult = mvc.perform(get("/reports/prefix")
+                .accept(ReportsController.APPLICATION_NDJSON_VALUE))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mvc.perform(asyncDispatch(mvcResult))
+                .andExpect(status().is2xxSuccessful())
+                .andExpect(header().string(HttpHeaders.CONTENT_TYPE, ReportsController.APPLICATION_NDJSON_VALUE))
+                .andExpect(content().string(
+                        "{\"id\":\"123\",\"title\":\"a.docx\"}\n{\"id\":\"234\",\"title\":\"b.docx\"}\n"));
+    }
+
+    @Test
+    void shouldCommitReportUpload() throws Exception {
+        when(uploadSessionService.commit(eq("1b4e28ba"), any(UploadSessionService.FileSaver.class)))
+                .thenReturn(new FileMetaData("report.docx", null, 4L, null).withId("1234"));
+
+        mvc.perform(post("/reports/uploads/1b4e28ba/commit"))
+                .andExpect(status().is2xxSuccessful())
+                .andExpect(jsonPath("$.id", is("1234")));
+    }
+}
@@ -0,0 +1,153 @@
+package com.tpg.labs.hailstormfs;
+
+import com.adobe.testing.s3mock.junit5.S3MockExtension;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+class S3StorageServiceImplTest {
+
+    @RegisterExtension
+    static final S3MockExtension S3_MOCK = S3MockExtension.builder().silent().withSecureConnection(false).build();
+
+    private static final String TEST_BASE_URI = "/tmp/hailstorm/test/s3";
+    private static final String BUCKET = "hailstorm";
+    private static final int PART_SIZE = 5 * 1024 * 1024;
+
+    private final AmazonS3 s3 = S3_MOCK.createS3Client();
+    private S3StorageServiceImpl service;
+
+    @BeforeEach
+    void createServiceInstance() throws Exception {
+        FileSystemUtils.deleteRecursively(new File(TEST_BASE_URI));
+        if (!s3.doesBucketExistV2(BUCKET)) {
+            s3.createBucket(BUCKET);
+        }
+
+        service = new S3StorageServiceImpl();
+        service.setS3(s3);
+        service.setBaseURI(TEST_BASE_URI);
+        service.setBucket(BUCKET);
+        service.setKeyPrefix("test");
+        service.setPartSize(PART_SIZE);
+        service.afterPropertiesSet();
+    }
+
+    @AfterEach
+    void closeServiceInstance() throws Exception {
+        service.destroy();
+        for (S3ObjectSummary summary : s3.listObjectsV2(BUCKET).getObjectSummaries()) {
+            s3.deleteObject(BUCKET, summary.getKey());
+        }
+    }
+
+    private String saveFile(byte[] content, String prefix) throws IOException {
+        FileMetaData fileMetaData = new FileMetaData("a.txt",
+                "text/plain",
+                (long) content.length,
+                new ByteArrayInputStream(content)).withPathPrefix(prefix);
+
+        return service.saveFile(fileMetaData, mock(FileTransferDelegate.class));
+    }
+
+    private static String readContent(InputStream inputStream) throws IOException {
+        try (InputStream closingStream = inputStream) {
+            return new String(StreamUtils.copyToByteArray(closingStream));
+        }
+    }
+
+    @Test
+    void shouldSaveFileWithSameIdAsLocalStorage() throws Exception {
+        final String content = "Worth lies in self";
+        String fileId = saveFile(content.getBytes(), "cuckoo");
+
+        String localFileId = FileMetaData.calculateHash(new FileMetaData("a.txt", "text/plain", null,
+                new ByteArrayInputStream(content.getBytes())).withPathPrefix("cuckoo"));
+
+        assertEquals(localFileId, fileId);
+        assertTrue(s3.doesObjectExist(BUCKET, "test/storage/" + fileId + "/a.txt"));
+        assertEquals(Collections.singletonList(fileId + "/a.txt"), service.listPaths("cuckoo")
+                .map(Path::toString)
+                .collect(Collectors.toList()));
+
+        assertEquals(content, readContent(service.getFile(fileId, "a.txt").getInputStream()));
+    }
+
+    @Test
+    void shouldUploadInPartsAndReadInRanges() throws Exception {
+        byte[] content = new byte[2 * PART_SIZE + 1024];
+        new Random(7).nextBytes(content);
+        String fileId = saveFile(content, "cuckoo");
+
+        assertTrue(s3.getObjectMetadata(BUCKET, "test/storage/" + fileId + "/a.txt").getETag().contains("-"),
+                "uploaded in parts");
+
+        try (InputStream inputStream = service.getFile(fileId, "a.txt").getInputStream()) {
+            assertTrue(inputStream instanceof S3RangeInputStream);
+            assertArrayEquals(content, StreamUtils.copyToByteArray(inputStream));
+        }
+    }
+
+    @Test
+    void shouldSaveSameFileOnce() throws Exception {
+        final byte[] content = "Worth lies in self".getBytes();
+        String fileId = saveFile(content, "cuckoo");
+        assertEquals(fileId, saveFile(content, "cuckoo"));
+        assertEquals(1, s3.listObjectsV2(BUCKET, "test/storage/" + fileId).getObjectSummaries().size());
+    }
+
+    @Test
+    void shouldDeleteFile() throws Exception {
+        String fileId = saveFile("Worth lies in self".getBytes(), "cuckoo");
+        service.deleteFile(fileId);
+
+        assertFalse(s3.doesObjectExist(BUCKET, "test/storage/" + fileId + "/a.txt"));
+        assertEquals(0L, service.listPaths("cuckoo").count());
+        assertThrows(FileNotFoundException.class, () -> service.getFile(fileId, "a.txt"));
+    }
+
+    @Test
+    void shouldPurgeFileOnlyAfterUnindexing() throws Exception {
+        String fileId = saveFile("Worth lies in self".getBytes(), "cuckoo");
+        service.purgeFile(fileId);
+        assertTrue(s3.doesObjectExist(BUCKET, "test/storage/" + fileId + "/a.txt"));
+
+        assertEquals(Collections.singletonList(fileId), service.unindexFilesWithPrefix("cuckoo"));
+        assertTrue(service.getFile(fileId, "a.txt").exists(), "served until purged");
+
+        service.purgeFile(fileId);
+        assertThrows(FileNotFoundException.class, () -> service.getFile(fileId, "a.txt"));
+    }
+
+    @Test
+    void shouldPresignDownloadUrl() throws Exception {
+        final String content = "Worth lies in self";
+        String fileId = saveFile(content.getBytes(), "cuckoo");
+
+        URL downloadUrl = service.getDownloadUrl(fileId, "a.txt").orElseThrow(AssertionError::new);
+        assertTrue(downloadUrl.getQuery().contains("Signature"));
+        assertEquals(content, readContent(downloadUrl.openStream()));
+
+        service.setPresignedUrlTtl(0);
+        assertFalse(service.getDownloadUrl(fileId, "a.txt").isPresent());
+    }
+}
@@ -0,0 +1,97 @@
+package com.tpg.labs.hailstormfs;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TreeHashTest {
+
+    private static byte[] randomContent(int size) {
+        byte[] content = new byte[size];
+        new Random(7).nextBytes(content);
+        return content;
+    }
+
+    private static List<byte[]> streamedLeaves(byte[] content, int updateSize, ForkJoinPool pool) {
+        TreeHash.TreeDigest digest = new TreeHash.TreeDigest(pool);
+        for (int offset = 0; offset < content.length; offset += updateSize) {
+            digest.update(content, offset, Math.min(updateSize, content.length - offset));
+        }
+
+        return digest.leaves();
+    }
+
+    @Test
+    void shouldHashBlocksOfStreamInOrder() {
+        final byte[] content = randomContent(TreeHash.BLOCK_SIZE * 5 + 7);
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            List<byte[]> leaves = streamedLeaves(content, 64 * 1024, pool);
+
+            assertEquals(6, leaves.size());
+            for (int i = 0; i < leaves.size(); i++) {
+                int offset = i * TreeHash.BLOCK_SIZE;
+                int length = Math.min(TreeHash.BLOCK_SIZE, content.length - offset);
+                assertArrayEquals(TreeHash.leaf(content, offset, length), leaves.get(i));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void shouldHashWholeBlocksWithoutEmptyLeaf() {
+        final byte[] content = randomContent(TreeHash.BLOCK_SIZE * 2);
+        assertEquals(2, streamedLeaves(content, TreeHash.BLOCK_SIZE, ForkJoinPool.commonPool()).size());
+        assertEquals(1, streamedLeaves(new byte[0], 1, ForkJoinPool.commonPool()).size());
+    }
+
+    @Test
+    void shouldHashFileInParallelAsStreamed() throws Exception {
+        final byte[] content = randomContent(TreeHash.BLOCK_SIZE * 3 + 1);
+        Path file = Files.createTempFile("tree-hash-", ".bin");
+        try {
+            Files.write(file, content);
+            List<byte[]> leaves = TreeHash.leavesOf(file, ForkJoinPool.commonPool());
+
+            assertArrayEquals(TreeHash.root(streamedLeaves(content, 8192, ForkJoinPool.commonPool())),
+                    TreeHash.root(leaves));
+            assertArrayEquals(TreeHash.toBytes(leaves), TreeHash.toBytes(TreeHash.fromBytes(TreeHash.toBytes(leaves))));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    void shouldCombineLeavesAsTree() {
+        byte[] first = TreeHash.leaf("a".getBytes(), 0, 1);
+        byte[] second = TreeHash.leaf("b".getBytes(), 0, 1);
+        byte[] third = TreeHash.leaf("c".getBytes(), 0, 1);
+
+        assertArrayEquals(first, TreeHash.root(Collections.singletonList(first)));
+        assertFalse(Arrays.equals(TreeHash.root(Arrays.asList(first, second)),
+                TreeHash.root(Arrays.asList(second, first))));
+        assertArrayEquals(TreeHash.root(Arrays.asList(TreeHash.root(Arrays.asList(first, second)), third)),
+                TreeHash.root(Arrays.asList(first, second, third)));
+        assertArrayEquals(TreeHash.leaf(new byte[0], 0, 0), TreeHash.root(Collections.emptyList()));
+    }
+
+    @Test
+    void shouldPrefixTreeHashIds() throws Exception {
+        String fileId = FileMetaData.calculateHash(new FileMetaData("a.txt", "text/plain", 11L,
+                new ByteArrayInputStream("Hello World".getBytes())), HashAlgorithm.SHA256_TREE);
+
+        assertTrue(fileId.startsWith("sha256tree-"));
+        assertEquals(HashAlgorithm.SHA256_TREE, HashAlgorithm.ofId(fileId));
+        assertEquals(HashAlgorithm.SHA256_TREE, HashAlgorithm.of("sha256-tree"));
+    }
+}
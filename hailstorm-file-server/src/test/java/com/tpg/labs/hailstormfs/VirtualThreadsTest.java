@@ -0,0 +1,31 @@
+package com.tpg.labs.hailstormfs;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class VirtualThreadsTest {
+
+    @Test
+    void shouldRunTasksOnVirtualThreads() throws Exception {
+        assumeTrue(VirtualThreads.isSupported());
+        ExecutorService executorService = VirtualThreads.newThreadPerTaskExecutor("test-");
+        try {
+            Thread thread = executorService.submit(Thread::currentThread).get();
+            assertTrue((Boolean) Thread.class.getMethod("isVirtual").invoke(thread));
+            assertTrue(thread.getName().startsWith("test-"));
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    @Test
+    void shouldFailIfNotSupported() {
+        assumeFalse(VirtualThreads.isSupported());
+        assertThrows(IllegalStateException.class, () -> VirtualThreads.newThreadPerTaskExecutor("test-"));
+    }
+}
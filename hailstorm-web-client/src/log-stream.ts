@@ -9,11 +9,11 @@ import environment from './environment';
 const MAX_REQUEST_VALUE = 2147483647;
 
 export const LogStream: {
-  _logSource: () => Observable<LogEvent>;
+  _logSource: (project?: Project) => Observable<LogEvent>;
   observe: (project: Project) => Observable<LogEvent>;
 } = {
 
-  _logSource: () => {
+  _logSource: (project?: Project) => {
     const client = new RSocketClient({
       serializers: {
         data: JsonSerializer,
@@ -33,6 +33,7 @@ export const LogStream: {
         .subscribe({
           onComplete: function(socket) {
             socket.requestStream({
+              data: project ? { projectCode: project.code, since: 0 } : undefined,
               metadata: String.fromCharCode("logs".length) + "logs"
             }).subscribe({
                 onComplete: () => {
@@ -67,7 +68,7 @@ export const LogStream: {
   },
 
   observe: function(project) {
-    return this._logSource()
+    return this._logSource(project)
       .pipe(
         filter(log => log.projectCode === project.code || !log.projectCode)
       );